@@ -449,7 +449,7 @@ public class Core {
      */
     protected ConPat(Op op, Type type, String tyCon, Pat pat) {
       super(op, type);
-      this.tyCon = requireNonNull(tyCon);
+      this.tyCon = requireNonNull(tyCon).intern();
       this.pat = requireNonNull(pat);
       checkArgument(op == Op.CON_PAT || op == Op.CONS_PAT);
     }
@@ -497,7 +497,7 @@ public class Core {
 
     Con0Pat(DataType type, String tyCon) {
       super(Op.CON0_PAT, type);
-      this.tyCon = requireNonNull(tyCon);
+      this.tyCon = requireNonNull(tyCon).intern();
     }
 
     @Override
@@ -32,9 +32,9 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.primitives.Ints;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -52,9 +52,11 @@ import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.eval.Applicable;
 import net.hydromatic.morel.eval.Applicable2;
 import net.hydromatic.morel.eval.Code;
+import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.Describer;
 import net.hydromatic.morel.eval.EvalEnv;
 import net.hydromatic.morel.eval.EvalEnvs;
+import net.hydromatic.morel.eval.GlobalFrame;
 import net.hydromatic.morel.eval.Session;
 import net.hydromatic.morel.eval.Stack;
 import net.hydromatic.morel.eval.Unit;
@@ -135,9 +137,21 @@ public class CalciteCompiler extends Compiler {
 
   final Calcite calcite;
 
+  /**
+   * Whether to compile relational expressions to Calcite's Enumerable
+   * convention, rather than evaluating them using Calcite's interpreter.
+   */
+  final boolean enumerable;
+
   public CalciteCompiler(TypeSystem typeSystem, Calcite calcite) {
+    this(typeSystem, calcite, false);
+  }
+
+  public CalciteCompiler(
+      TypeSystem typeSystem, Calcite calcite, boolean enumerable) {
     super(typeSystem);
     this.calcite = requireNonNull(calcite, "calcite");
+    this.enumerable = enumerable;
   }
 
   public @Nullable RelNode toRel(Environment env, Core.Exp expression) {
@@ -169,7 +183,7 @@ public class CalciteCompiler extends Compiler {
             env, null, calcite.relBuilder(), ImmutableSortedMap.of(), 0);
     try {
       if (((RelCode) code).toRel(rx, false)) {
-        return calcite.code(rx.env, rx.relBuilder.build(), type);
+        return calcite.code(rx.env, rx.relBuilder.build(), type, enumerable);
       }
     } catch (RuntimeException | AssertionError e) {
       // See the note in compileArg: fall back to local evaluation.
@@ -193,7 +207,8 @@ public class CalciteCompiler extends Compiler {
           new RelContext(cx.env, null, relBuilder, ImmutableSortedMap.of(), 0);
       try {
         if (toRel3(rx, expression, false)) {
-          return calcite.code(rx.env, rx.relBuilder.build(), expression.type);
+          return calcite.code(
+              rx.env, rx.relBuilder.build(), expression.type, enumerable);
         }
       } catch (RuntimeException | AssertionError e) {
         // The query uses a type or construct the Calcite adapter cannot handle
@@ -215,10 +230,14 @@ public class CalciteCompiler extends Compiler {
       return calciteCode;
     }
     // There are slot-bound variables that morelScalar may reference at runtime.
-    // Build a bridge that copies those slot values into globalEnv before
-    // running the Calcite plan, so that GetCode can find them.
+    // Build a bridge that binds those slot values in a child frame of the
+    // global environment before running the Calcite plan, so that GetCode can
+    // find them.
     final ImmutableMap<String, Integer> offsets =
         cx.layout.nameToOffsetMap(cx.localDepth);
+    final GlobalFrame.Names names =
+        GlobalFrame.Names.of(offsets.keySet().asList());
+    final int[] stackOffsets = Ints.toArray(offsets.values());
     return new Code() {
       @Override
       public Describer describe(Describer describer) {
@@ -232,26 +251,20 @@ public class CalciteCompiler extends Compiler {
 
       @Override
       public Object eval(Stack stack) {
-        // Temporarily add slot-bound variables to session.globalEnv so
-        // that morelScalar's GetCode lookups can find them at runtime.
-        final Map<String, Object> env = stack.currentEnv();
-        final Map<String, @Nullable Object> savedValues = new HashMap<>();
-        offsets.forEach(
-            (key, value) -> {
-              savedValues.put(key, env.get(key));
-              env.put(key, stack.slots[stack.top - value]);
-            });
+        // Bind slot-bound variables in a child frame of the global
+        // environment so that morelScalar's GetCode lookups can find them at
+        // runtime.
+        final GlobalFrame env = stack.currentEnv();
+        final @Nullable Object[] values = new Object[stackOffsets.length];
+        for (int i = 0; i < values.length; i++) {
+          values[i] = stack.slots[stack.top - stackOffsets[i]];
+        }
+        final @Nullable GlobalFrame savedEnv = stack.env();
         try {
+          stack.setEnv(env.bind(names.slots(env), values));
           return calciteCode.eval(stack);
         } finally {
-          savedValues.forEach(
-              (key, value) -> {
-                if (value == null) {
-                  env.remove(key);
-                } else {
-                  env.put(key, value);
-                }
-              });
+          stack.setEnv(savedEnv);
         }
       }
     };
@@ -314,7 +327,7 @@ public class CalciteCompiler extends Compiler {
               // Something like '#emps scott', 'scott' is a foreign value
               final Session miniSession = new Session(ImmutableMap.of());
               miniSession.globalEnv =
-                  new HashMap<>(evalEnvOf(cx.env).valueMap());
+                  Codes.globalEnvOf(miniSession, evalEnvOf(cx.env));
               final Object o = code.eval(new Stack(miniSession, 256));
               if (o instanceof RelList) {
                 cx.relBuilder.push(((RelList) o).rel);
@@ -436,7 +449,7 @@ public class CalciteCompiler extends Compiler {
       if (argCode instanceof RelCode) {
         if (((RelCode) argCode).toRel(rx, false)) {
           final Code argCode2 =
-              calcite.code(rx.env, rx.relBuilder.build(), argType);
+              calcite.code(rx.env, rx.relBuilder.build(), argType, enumerable);
           return finishCompileApply(cx, fnCode, argCode2, argType);
         }
       }
@@ -452,7 +465,7 @@ public class CalciteCompiler extends Compiler {
       if (argCode instanceof RelCode) {
         if (((RelCode) argCode).toRel(rx, false)) {
           final Code argCode2 =
-              calcite.code(rx.env, rx.relBuilder.build(), argType);
+              calcite.code(rx.env, rx.relBuilder.build(), argType, enumerable);
           return finishCompileApply(cx, fnValue, argCode2, argType);
         }
       }
@@ -470,7 +483,8 @@ public class CalciteCompiler extends Compiler {
         if (argCodes.left(i) instanceof RelCode
             && ((RelCode) argCodes.left(i)).toRel(rx, false)) {
           final Code argCode2 =
-              calcite.code(rx.env, rx.relBuilder.build(), argCodes.right(i));
+              calcite.code(
+                  rx.env, rx.relBuilder.build(), argCodes.right(i), enumerable);
           argCodes = PairList.copyOf(argCodes);
           argCodes.leftList().set(i, argCode2);
         } else {
@@ -23,6 +23,7 @@ import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.ast.CoreBuilder.core;
 import static net.hydromatic.morel.util.Pair.forEach;
+import static net.hydromatic.morel.util.Static.append;
 import static net.hydromatic.morel.util.Static.last;
 import static net.hydromatic.morel.util.Static.plus;
 import static net.hydromatic.morel.util.Static.skip;
@@ -35,10 +36,12 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.primitives.UnsignedLong;
+import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +51,7 @@ import java.util.function.Supplier;
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.eval.Applicable;
 import net.hydromatic.morel.eval.Applicable1;
 import net.hydromatic.morel.eval.Applicable2;
@@ -55,6 +59,7 @@ import net.hydromatic.morel.eval.Applicable3;
 import net.hydromatic.morel.eval.Applicable4;
 import net.hydromatic.morel.eval.Closure;
 import net.hydromatic.morel.eval.Code;
+import net.hydromatic.morel.eval.CodeGenerator;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.Comparators;
 import net.hydromatic.morel.eval.Describer;
@@ -92,8 +97,27 @@ public class Compiler {
 
   protected final TypeSystem typeSystem;
 
+  /**
+   * Number of steps remaining, in the query being compiled, at which to insert
+   * an {@link RowSinks#exchange exchange} sink; or -1 if the query cannot be
+   * evaluated in parallel. See {@link #exchangeIndex}.
+   */
+  private int exchangeRemaining = -1;
+
+  /**
+   * Whether to translate the expressions of "where" and "yield" steps, and the
+   * bodies of non-recursive functions, into Java classes. See {@link
+   * CodeGenerator}.
+   */
+  private final boolean codegen;
+
   public Compiler(TypeSystem typeSystem) {
+    this(typeSystem, false);
+  }
+
+  public Compiler(TypeSystem typeSystem, boolean codegen) {
     this.typeSystem = requireNonNull(typeSystem, "typeSystem");
+    this.codegen = codegen;
   }
 
   CompiledStatement compileStatement(
@@ -492,9 +516,10 @@ public class Compiler {
   public Code compileRow(
       Context cx, Core.Exp expression, int @Nullable [] ordinalSlots) {
     if (ordinalSlots == null) {
-      return compile(cx, expression);
+      return generate(compile(cx, expression));
     }
-    Code code = compile(cx.withOrdinalSlots(ordinalSlots), expression);
+    Code code =
+        generate(compile(cx.withOrdinalSlots(ordinalSlots), expression));
     if (ordinalSlots[0] == 0) {
       return code;
     }
@@ -516,7 +541,9 @@ public class Compiler {
       int[] ordinalSlots) {
     final Context cxRow = cx.withOrdinalSlots(ordinalSlots);
     final PairList<String, Code> mapCodes = PairList.of();
-    forEach(nameExps, (name, exp) -> mapCodes.add(name, compile(cxRow, exp)));
+    forEach(
+        nameExps,
+        (name, exp) -> mapCodes.add(name, generate(compile(cxRow, exp))));
     if (ordinalSlots[0] > 0) {
       // The ordinal was read at least once. Wrap the first expression in code
       // that advances the counter once per row. The sink resets it per
@@ -527,6 +554,14 @@ public class Compiler {
     return ImmutableSortedMap.copyOf(mapCodes, RecordType.ORDERING);
   }
 
+  /**
+   * Translates code into a Java class, if code generation is enabled and there
+   * is something to gain; otherwise returns the code unchanged.
+   */
+  private Code generate(Code code) {
+    return codegen ? CodeGenerator.generate(code) : code;
+  }
+
   public Code compile(Context cx, Core.Exp expression) {
     final Core.Literal literal;
     final Code argCode;
@@ -624,7 +659,8 @@ public class Compiler {
     return compileApply(cx, apply, false);
   }
 
-  private Code compileApply(Context cx, Core.Apply apply, boolean tailPos) {
+  private Code compileApply(Context cx, Core.Apply apply0, boolean tailPos) {
+    final Core.Apply apply = limitRows(apply0);
     // Is this is a call to a built-in operator?
     switch (apply.fn.op) {
       case FN_LITERAL:
@@ -765,6 +801,99 @@ public class Compiler {
         : finishCompileApply(cx, fnCode, argCode, argType);
   }
 
+  /**
+   * If {@code apply} calls a function that looks at only the first few elements
+   * of a query, returns a call whose query stops after those elements;
+   * otherwise returns {@code apply}.
+   *
+   * <p>For example, {@code exists e in emps, d in depts} (which is {@code
+   * Relational.nonEmpty (from e in emps, d in depts)}) becomes {@code
+   * Relational.nonEmpty (from e in emps, d in depts take 1)}; {@code
+   * Relational.only} needs 2 rows to know whether there is more than one; and
+   * {@code List.find f (from ...)} becomes {@code List.find f (from ... where f
+   * it take 1)}, where {@code it} is the element of the query. When the sink
+   * for {@code take} has its rows, it reports {@link RowSink#isDone()}, and the
+   * scans before it stop iterating.
+   */
+  private Core.Apply limitRows(Core.Apply apply) {
+    if (apply.arg.op != Op.FROM) {
+      return apply;
+    }
+    final Core.From from = (Core.From) apply.arg;
+    if (from.steps.isEmpty() || last(from.steps).op == Op.TAKE) {
+      return apply;
+    }
+    switch (apply.builtIn()) {
+      case RELATIONAL_EMPTY:
+      case RELATIONAL_NON_EMPTY:
+        return withTake(apply, from.steps, 1);
+      case BAG_ONLY:
+      case LIST_ONLY:
+      case RELATIONAL_ONLY:
+        return withTake(apply, from.steps, 2);
+    }
+    if (apply.fn.op != Op.APPLY) {
+      return apply;
+    }
+    final Core.Apply fnApply = (Core.Apply) apply.fn;
+    final boolean negate;
+    switch (fnApply.builtIn()) {
+      case BAG_EXISTS:
+      case BAG_FIND:
+      case LIST_EXISTS:
+      case LIST_FIND:
+        negate = false;
+        break;
+      case BAG_ALL:
+      case LIST_ALL:
+        negate = true;
+        break;
+      default:
+        return apply;
+    }
+    // The predicate will be evaluated twice for the element that stops the
+    // query, so it must be a value, not an expression that computes one; and
+    // the query must not shadow any of its variables.
+    final Core.Exp f = fnApply.arg;
+    final Core.Exp element = core.implicitYieldExp(typeSystem, from.steps);
+    if (f.op != Op.ID && f.op != Op.FN
+        || !(f.type instanceof FnType)
+        || !element.type.equals(from.type().elementType())) {
+      return apply;
+    }
+    final Set<String> names = new HashSet<>();
+    from.steps.forEach(
+        step -> step.env.bindings.forEach(b -> names.add(b.id.name)));
+    for (Core.NamedPat pat : FreeFinder.freePats(typeSystem, f)) {
+      if (names.contains(pat.name)) {
+        return apply;
+      }
+    }
+    final Core.Exp condition =
+        core.apply(apply.pos, PrimitiveType.BOOL, f, element);
+    final Core.StepEnv env = core.lastEnv(from.steps);
+    final List<Core.FromStep> steps =
+        append(
+            from.steps,
+            core.where(
+                env, negate ? core.not(typeSystem, condition) : condition));
+    return withTake(apply, steps, 1);
+  }
+
+  /**
+   * Returns a call to the same function whose argument is a query with the
+   * given steps followed by {@code take count}.
+   */
+  private static Core.Apply withTake(
+      Core.Apply apply, List<Core.FromStep> steps, int count) {
+    final Core.Exp countExp = core.intLiteral(BigDecimal.valueOf(count));
+    final Core.From from =
+        core.from(
+            apply.arg.type,
+            append(steps, core.take(core.lastEnv(steps), countExp)));
+    return core.apply(apply.pos, apply.type, apply.fn, from);
+  }
+
   /**
    * Returns the arity of a function.
    *
@@ -807,15 +936,136 @@ public class Compiler {
   @SuppressWarnings("rawtypes")
   protected Code finishCompileApply2(
       Context cx, Applicable2 applicable2, PairList<Code, Type> argCodes) {
-    return Codes.apply2(applicable2, argCodes.left(0), argCodes.left(1));
+    return Codes.apply2(
+        applicable2, argCodes.left(0), argCodes.left(1), argCodes.right(0));
   }
 
   protected Code compileFrom(Context cx, Core.From from) {
-    Supplier<RowSink> rowSinkFactory =
-        createRowSinkFactory(
-            cx, Core.StepEnv.EMPTY, from.steps, from.type().elementType());
-    Supplier<RowSink> firstRowSinkFactory = rowSinkFactory;
-    return RowSinks.from(firstRowSinkFactory);
+    // A query nested in this one (say in a 'where') has its own exchange.
+    final int savedExchangeRemaining = exchangeRemaining;
+    final int exchangeIndex = exchangeIndex(from.steps);
+    exchangeRemaining =
+        exchangeIndex < 0 ? -1 : from.steps.size() - exchangeIndex;
+    try {
+      Supplier<RowSink> rowSinkFactory =
+          createRowSinkFactory(
+              cx, Core.StepEnv.EMPTY, from.steps, from.type().elementType());
+      Supplier<RowSink> firstRowSinkFactory = rowSinkFactory;
+      return RowSinks.from(firstRowSinkFactory);
+    } finally {
+      exchangeRemaining = savedExchangeRemaining;
+    }
+  }
+
+  /**
+   * Returns the index of the step before which the partitions of a parallel
+   * query are merged, or -1 if the query cannot be evaluated in parallel.
+   *
+   * <p>The steps before the exchange are the first scan followed by inner
+   * scans, {@code left join}s, {@code where}s and {@code yield}s; these process
+   * each row independently, so each partition of the first scan can evaluate
+   * them on its own. If the last step is a {@code yield} it is evaluated by the
+   * partitions, and the exchange goes before it (the sink of the last {@code
+   * yield} also collects the results).
+   *
+   * <p>A query is not split if a step after the exchange is {@code take} (the
+   * query would stop early if evaluated in one thread), or if a step before the
+   * exchange might mutate shared state; see {@link #canPartition}.
+   */
+  private static int exchangeIndex(List<Core.FromStep> steps) {
+    if (steps.isEmpty() || steps.get(0).op != Op.SCAN) {
+      return -1;
+    }
+    int i = 1;
+    while (i < steps.size() && isRowLocal(steps.get(i).op)) {
+      ++i;
+    }
+    for (Core.FromStep step : skip(steps, i)) {
+      if (step.op == Op.TAKE) {
+        return -1;
+      }
+    }
+    if (!canPartition(steps.subList(0, i))) {
+      return -1;
+    }
+    return i == steps.size() && last(steps).op == Op.YIELD ? i - 1 : i;
+  }
+
+  /**
+   * Returns whether a step of a given kind processes each row independently of
+   * other rows.
+   */
+  private static boolean isRowLocal(Op op) {
+    switch (op) {
+      case SCAN:
+      case LEFT_JOIN:
+      case WHERE:
+      case YIELD:
+      case UNORDER:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether a partition of a query can evaluate the given steps
+   * concurrently with other partitions.
+   *
+   * <p>The steps must not call a function that is not built in (whose body we
+   * cannot see), or a function in the {@code Sys} structure.
+   *
+   * <p>The steps may contain a nested query with a {@code group} step; its sink
+   * binds group keys in a frame of its own (see {@link
+   * net.hydromatic.morel.eval.Stack#setEnv}), not in {@link
+   * net.hydromatic.morel.eval.Session#globalEnv}, so partitions do not see each
+   * other's keys.
+   */
+  private static boolean canPartition(List<Core.FromStep> steps) {
+    final boolean[] safe = {true};
+    final Visitor visitor =
+        new Visitor() {
+          @Override
+          protected void visit(Core.Id id) {
+            if (isFunction(id.type)) {
+              safe[0] = false;
+            }
+          }
+
+          @Override
+          protected void visit(Core.Literal literal) {
+            if (literal.value instanceof BuiltIn
+                && ((BuiltIn) literal.value).structure != null
+                && ((BuiltIn) literal.value).structure.equals("Sys")) {
+              safe[0] = false;
+            }
+          }
+
+          @Override
+          protected void visit(Core.Apply apply) {
+            switch (apply.fn.op) {
+              case FN_LITERAL:
+              case FN:
+                break;
+              case RECORD_SELECTOR:
+                if (isFunction(apply.type)) {
+                  safe[0] = false;
+                }
+                break;
+              default:
+                safe[0] = false;
+            }
+            super.visit(apply);
+          }
+
+          private boolean isFunction(Type type) {
+            return type instanceof FnType
+                || type instanceof ForallType
+                    && ((ForallType) type).type instanceof FnType;
+          }
+        };
+    steps.forEach(step -> step.accept(visitor));
+    return safe[0];
   }
 
   /**
@@ -857,6 +1107,56 @@ public class Compiler {
     return ImmutableMap.copyOf(map);
   }
 
+  /**
+   * Compiles the condition of a {@code where} step, and returns a factory that
+   * provides its code for each execution of the query.
+   *
+   * <p>If a conjunct of the condition applies {@code elem} or {@code notelem}
+   * to a collection that does not depend on the row, such as {@code depts} in
+   * {@code from e in emps where e.deptno elem depts}, the factory generates new
+   * code for that conjunct in each execution, and the code builds an index of
+   * the collection once.
+   */
+  private Supplier<Code> compileWhere(
+      Context cx, Core.Exp exp, ImmutableMap<String, Binding> scope) {
+    final List<Core.NamedPat> rowPats =
+        transformEager(scope.values(), b -> b.id);
+    final List<Core.Exp> conjuncts = new ArrayList<>();
+    core.flattenAnd(exp, conjuncts::add);
+    final List<Supplier<Code>> codeFactories = new ArrayList<>();
+    boolean invariant = false;
+    for (Core.Exp conjunct : conjuncts) {
+      if ((conjunct.isCallTo(BuiltIn.OP_ELEM)
+              || conjunct.isCallTo(BuiltIn.OP_NOT_ELEM))
+          && ((Core.Apply) conjunct).arg.op == Op.TUPLE
+          && JoinKeys.isIndependent(typeSystem, conjunct.arg(1), rowPats)) {
+        final Core.Apply apply = (Core.Apply) conjunct;
+        final Applicable2 fnValue =
+            requireNonNull(
+                ((Core.Literal) apply.fn).toApplicable2(typeSystem, apply.pos));
+        final Code elementCode = compile(cx, apply.arg(0));
+        final Code collectionCode = compile(cx, apply.arg(1));
+        codeFactories.add(
+            () -> Codes.invariantElem(fnValue, elementCode, collectionCode));
+        invariant = true;
+      } else {
+        final Code code = compileRow(cx, conjunct, null);
+        codeFactories.add(() -> code);
+      }
+    }
+    if (!invariant) {
+      final Code code = compileRow(cx, exp, null);
+      return () -> code;
+    }
+    return () -> {
+      Code code = codeFactories.get(codeFactories.size() - 1).get();
+      for (int i = codeFactories.size() - 2; i >= 0; i--) {
+        code = Codes.andAlso(codeFactories.get(i).get(), code);
+      }
+      return code;
+    };
+  }
+
   /**
    * Creates the {@link RowSink} factory for a scan, inner {@code join}, {@code
    * left join}, {@code right join} or {@code full join} step.
@@ -888,37 +1188,171 @@ public class Compiler {
     final int @Nullable [] liveSlots = slots[0] == 0 ? null : slots;
     final ImmutableMap<String, Binding> scanAllScope =
         shadowMerge(allScope, scan.env.bindings);
+    final int scanVarCount = depth - cx.localDepth;
+    if (liveSlots == null && !scan.op.optionalizesLeft()) {
+      final RowSinkFactory hashJoinFactory =
+          createHashJoinRowSinkFactory(
+              cx,
+              cxScan,
+              cxFrom,
+              allScope,
+              scanAllScope,
+              scan,
+              scanVarCount,
+              code,
+              steps,
+              elementType);
+      if (hashJoinFactory != null) {
+        return hashJoinFactory;
+      }
+    }
     final Supplier<RowSink> scanNextFactory =
         createRowSinkFactory(
             cxScan, cxFrom, scanAllScope, scan.env, skip(steps), elementType);
-    final int scanVarCount = depth - cx.localDepth;
     if (scan.op.optionalizesLeft()) {
       // 'right join' or 'full join': the source may produce rows that match no
       // input row, so use a build-side sink that materializes the source and
       // emits unmatched source rows at the end.
       final int leftSlotCount = cx.localDepth - cxFrom.localDepth;
+      // The sink materializes the source in 'start', before any input row is
+      // on the stack, so compile the source (which is independent of the
+      // input) and its keys in contexts based on 'cxFrom'.
+      final Code buildCode = compileRow(cxFrom, scan.exp, null);
+      StackLayout buildLayout = cxFrom.layout;
+      int buildDepth = cxFrom.localDepth;
+      for (Core.NamedPat scanPat : scan.pat.expand()) {
+        buildLayout = buildLayout.with(scanPat, buildDepth++);
+      }
+      final Context cxBuild =
+          new Context(
+              cxFrom.env.bindAll(scanBindings), buildLayout, buildDepth);
+      final JoinKeys joinKeys =
+          liveSlots != null
+              ? null
+              : JoinKeys.of(
+                  typeSystem,
+                  scan.condition,
+                  transformEager(allScope.values(), b -> b.id),
+                  scan.pat.expand());
+      final @Nullable ImmutableList<Code> leftKeyCodes;
+      final @Nullable ImmutableList<Code> rightKeyCodes;
+      final Code buildConditionCode;
+      if (joinKeys == null) {
+        leftKeyCodes = null;
+        rightKeyCodes = null;
+        buildConditionCode = conditionCode;
+      } else {
+        leftKeyCodes = transformEager(joinKeys.leftKeys, e -> compile(cx, e));
+        rightKeyCodes =
+            transformEager(joinKeys.rightKeys, e -> compile(cxBuild, e));
+        buildConditionCode = compile(cxScan, joinKeys.residual);
+      }
       return () ->
           RowSinks.buildJoin(
               scan.op,
               scan.pat,
               scanVarCount,
               leftSlotCount,
-              code,
-              conditionCode,
+              buildCode,
+              leftKeyCodes,
+              rightKeyCodes,
+              buildConditionCode,
               liveSlots,
               scanNextFactory.get());
     }
+    // If the scanned collection does not depend on the input row, as on the
+    // inner side of a nested-loop join, the sink reads it once per execution.
+    final boolean invariant =
+        !allScope.isEmpty()
+            && JoinKeys.isIndependent(
+                typeSystem,
+                scan.exp,
+                transformEager(allScope.values(), b -> b.id));
     return () ->
         RowSinks.scan(
             scan.op,
             scan.pat,
             scanVarCount,
             code,
+            invariant,
             conditionCode,
             liveSlots,
             scanNextFactory.get());
   }
 
+  /**
+   * Creates the {@link RowSink} factory for an inner {@code join} or {@code
+   * left join} step that can be evaluated as a hash join, or returns null.
+   *
+   * <p>A hash join requires that the scanned collection does not depend on the
+   * input row, and that the condition contains at least one equi-join key (see
+   * {@link JoinKeys}). For an inner join immediately followed by a {@code
+   * where}, the {@code where} is merged into the condition, so that {@code from
+   * e in emps, d in depts where e.deptno = d.deptno} is a hash join.
+   */
+  private @Nullable RowSinkFactory createHashJoinRowSinkFactory(
+      Context cx,
+      Context cxScan,
+      Context cxFrom,
+      ImmutableMap<String, Binding> allScope,
+      ImmutableMap<String, Binding> scanAllScope,
+      Core.Scan scan,
+      int scanVarCount,
+      Code code,
+      List<Core.FromStep> steps,
+      Type elementType) {
+    final List<Core.NamedPat> leftPats =
+        transformEager(allScope.values(), b -> b.id);
+    if (leftPats.isEmpty()
+        || !JoinKeys.isIndependent(typeSystem, scan.exp, leftPats)) {
+      return null;
+    }
+    final List<Core.Exp> conditions = new ArrayList<>();
+    core.flattenAnd(scan.condition, conditions::add);
+    int stepCount = 1;
+    if (scan.op == Op.SCAN
+        && steps.size() > 1
+        && steps.get(1).op == Op.WHERE
+        && steps.get(1).env.bindings.equals(scan.env.bindings)) {
+      // In an inner join, a condition in a following 'where' is equivalent to
+      // a condition in the join.
+      core.flattenAnd(((Core.Where) steps.get(1)).exp, conditions::add);
+      stepCount = 2;
+    }
+    final JoinKeys joinKeys =
+        JoinKeys.of(
+            typeSystem,
+            core.andAlso(typeSystem, conditions),
+            leftPats,
+            scan.pat.expand());
+    if (joinKeys == null) {
+      return null;
+    }
+    final ImmutableList<Code> leftKeyCodes =
+        transformEager(joinKeys.leftKeys, e -> compile(cx, e));
+    final ImmutableList<Code> rightKeyCodes =
+        transformEager(joinKeys.rightKeys, e -> compile(cxScan, e));
+    final Code residualCode = compile(cxScan, joinKeys.residual);
+    final Supplier<RowSink> nextFactory =
+        createRowSinkFactory(
+            cxScan,
+            cxFrom,
+            scanAllScope,
+            scan.env,
+            skip(steps, stepCount),
+            elementType);
+    return () ->
+        RowSinks.hashJoin(
+            scan.op,
+            scan.pat,
+            scanVarCount,
+            code,
+            leftKeyCodes,
+            rightKeyCodes,
+            residualCode,
+            nextFactory.get());
+  }
+
   private RowSinkFactory createRowSinkFactory(
       Context cx0,
       Context cxFrom,
@@ -926,6 +1360,14 @@ public class Compiler {
       Core.StepEnv stepEnv,
       List<Core.FromStep> steps,
       Type elementType) {
+    if (steps.size() == exchangeRemaining) {
+      // The steps before this one are evaluated in parallel partitions.
+      exchangeRemaining = -1;
+      final RowSinkFactory exchangeNextFactory =
+          createRowSinkFactory(
+              cx0, cxFrom, allScopeBindings, stepEnv, steps, elementType);
+      return () -> RowSinks.exchange(exchangeNextFactory.get());
+    }
     final Context cx = cx0.bindAll(stepEnv.bindings);
     final ImmutableMap<String, Binding> allScope2 =
         shadowMerge(allScopeBindings, stepEnv.bindings);
@@ -957,11 +1399,13 @@ public class Compiler {
 
       case WHERE:
         final Core.Where where = (Core.Where) firstStep;
-        final Code filterCode = compileRow(cx, where.exp, null);
+        final Supplier<Code> filterCodeFactory =
+            compileWhere(cx, where.exp, allScope2);
         final Supplier<RowSink> whereNextFactory =
             createRowSinkFactory(
                 cx, cxFrom, allScope2, firstStep.env, skip(steps), elementType);
-        return () -> RowSinks.where(filterCode, whereNextFactory.get());
+        return () ->
+            RowSinks.where(filterCodeFactory.get(), whereNextFactory.get());
 
       case SKIP:
         final Core.Skip skip = (Core.Skip) firstStep;
@@ -1122,10 +1566,35 @@ public class Compiler {
     // indices starting at cx.localDepth. This allows sort key and downstream
     // code to reference all scope vars via StackCode (no GetCode/env lookup).
     final Context cxResult = cx.withStackSlots(allScopeBindings.values());
-    // Sort key compiled with cxResult: all scope vars use StackCode.
-    final Code code = compile(cxResult, order.exp);
+    // Sort key compiled with cx: the sink evaluates it once, as each row
+    // arrives, rather than in each comparison.
+    final Code code = compile(cx, order.exp);
     final Comparator comparator =
         Comparators.comparatorFor(typeSystem, order.exp.type);
+    // If the order is followed by 'take' (perhaps with 'skip' in between),
+    // only the first 'skip + take' rows need to be sorted.
+    final Core.@Nullable Skip skip =
+        !remainingSteps.isEmpty() && remainingSteps.get(0).op == Op.SKIP
+            ? (Core.Skip) remainingSteps.get(0)
+            : null;
+    final int takeIndex = skip == null ? 0 : 1;
+    if (remainingSteps.size() > takeIndex
+        && remainingSteps.get(takeIndex).op == Op.TAKE) {
+      final Core.Take take = (Core.Take) remainingSteps.get(takeIndex);
+      final Code skipCode = skip == null ? null : compile(cxFrom, skip.exp);
+      final Code takeCode = compile(cxFrom, take.exp);
+      final Supplier<RowSink> nextFactory =
+          createRowSinkFactory(
+              cxResult,
+              cxFrom,
+              ImmutableMap.of(),
+              take.env,
+              skip(remainingSteps, takeIndex + 1),
+              elementType);
+      return () ->
+          RowSinks.topN(
+              code, comparator, skipCode, takeCode, inSlots, nextFactory.get());
+    }
     // Downstream compiled with cxResult so StackCode offsets match the
     // push-back of all inSlots values (including formerly env-based vars).
     final Supplier<RowSink> nextFactory =
@@ -1167,6 +1636,7 @@ public class Compiler {
     final int scanDepth = countStackBased(cx, allScopeBindings.values());
     final ImmutableList.Builder<Applicable> aggregateCodesB =
         ImmutableList.builder();
+    final List<@Nullable Code> argumentCodes0 = new ArrayList<>();
     for (Core.Aggregate aggregate : group.aggregates.values()) {
       final Code argumentCode;
       if (aggregate.argument == null) {
@@ -1185,10 +1655,11 @@ public class Compiler {
       final Applicable aggregateApplicable =
           compileApplicable(
               cx, aggregate.aggregate, aggParamType, aggregate.pos);
+      argumentCodes0.add(argumentCode);
       final Code aggregateCode;
       if (aggregateApplicable == null) {
         // Compile with cxFrom so scan variables use GetCode (read from
-        // session.globalEnv) rather than StackCode, because aggregate
+        // the global environment) rather than StackCode, because aggregate
         // functions are evaluated at result() time when scan vars are no
         // longer on stack.
         aggregateCode = compile(cxFrom, aggregate.aggregate);
@@ -1212,8 +1683,10 @@ public class Compiler {
         transformEager(group.env.bindings, b -> b.id.name);
     final ImmutableList<String> keyNames =
         outNames.subList(0, group.groupExps.size());
+    final @Nullable ImmutableList<Codes.Accumulable> accumulables =
+        accumulables(cx, allScopeBindings, group, keyNames);
     // Downstream uses cxFrom with GROUP output names stripped from the layout,
-    // so those names compile to GetCode (reading from groupEnvs in globalEnv)
+    // so those names compile to GetCode (reading from the group's frame)
     // rather than StackCode (reading the pre-GROUP slot value, e.g. a closure).
     final Context cxResult = cxFrom.withoutStackSlots(outNames);
     final Supplier<RowSink> groupNextFactory =
@@ -1224,6 +1697,28 @@ public class Compiler {
             group.env,
             remainingSteps,
             elementType);
+    if (accumulables != null) {
+      // Every aggregate can be computed incrementally. Evaluate each argument
+      // at accept() time, while scan variables are on the stack, and do not
+      // buffer rows. An aggregate without an argument sees the whole row.
+      final ImmutableList<Code> argumentCodes =
+          transformEager(
+              argumentCodes0,
+              argumentCode ->
+                  argumentCode != null
+                      ? argumentCode
+                      : inSlots.size() == 1
+                          ? inSlots.right(0)
+                          : Codes.tuple(inSlots.rightList()));
+      return () ->
+          RowSinks.accumulateGroup(
+              keyCode,
+              accumulables,
+              argumentCodes,
+              keyNames,
+              outNames,
+              groupNextFactory.get());
+    }
     return () ->
         RowSinks.group(
             keyCode,
@@ -1235,6 +1730,71 @@ public class Compiler {
             groupNextFactory.get());
   }
 
+  /**
+   * Returns the aggregate functions of a GROUP step if they can all be computed
+   * incrementally, otherwise null.
+   *
+   * <p>An aggregate qualifies if its function is {@link Codes.Accumulable} (as
+   * are the built-in {@code count}, {@code sum}, {@code min} and {@code max})
+   * and its argument reads only the input row. An argument that reads a group
+   * key (say {@code k} in {@code group {k = i mod 2} compute sum over k}) can
+   * only be evaluated once the group is known.
+   */
+  private @Nullable ImmutableList<Codes.Accumulable> accumulables(
+      Context cx,
+      ImmutableMap<String, Binding> allScopeBindings,
+      Core.Group group,
+      List<String> keyNames) {
+    final ImmutableList.Builder<Codes.Accumulable> accumulables =
+        ImmutableList.builder();
+    for (Core.Aggregate aggregate : group.aggregates.values()) {
+      final Core.Exp fn = stripCollectionConverter(aggregate.aggregate);
+      final Applicable applicable =
+          compileApplicable(
+              cx, fn, ((FnType) fn.type).paramType, aggregate.pos);
+      if (!(applicable instanceof Codes.Accumulable)) {
+        return null;
+      }
+      if (aggregate.argument != null) {
+        for (Core.NamedPat pat :
+            FreeFinder.freePats(typeSystem, aggregate.argument)) {
+          if (keyNames.contains(pat.name)
+              && !allScopeBindings.containsKey(pat.name)) {
+            return null;
+          }
+        }
+      }
+      accumulables.add((Codes.Accumulable) applicable);
+    }
+    return accumulables.build();
+  }
+
+  /**
+   * Given an aggregate function of the form {@code fn c => f (Bag.fromList c)}
+   * or {@code fn c => f (Bag.toList c)}, returns {@code f}; otherwise returns
+   * the function unchanged.
+   *
+   * <p>The resolver adds such a wrapper when the aggregate function expects a
+   * different kind of collection than the input. The conversion does not affect
+   * aggregate functions that are computed incrementally.
+   */
+  private static Core.Exp stripCollectionConverter(Core.Exp fn) {
+    if (fn.op == Op.FN) {
+      final Core.Fn fn1 = (Core.Fn) fn;
+      if (fn1.exp.op == Op.APPLY) {
+        final Core.Apply apply = (Core.Apply) fn1.exp;
+        if ((apply.arg.isCallTo(BuiltIn.BAG_FROM_LIST)
+                || apply.arg.isCallTo(BuiltIn.BAG_TO_LIST))
+            && ((Core.Apply) apply.arg).arg.op == Op.ID
+            && ((Core.Id) ((Core.Apply) apply.arg).arg)
+                .idPat.equals(fn1.idPat)) {
+          return apply.fn;
+        }
+      }
+    }
+    return fn;
+  }
+
   /** Compiles an EXCEPT/INTERSECT/UNION step into a {@link RowSink} factory. */
   private RowSinkFactory compileSetSink(
       Context cx,
@@ -1856,10 +2416,15 @@ public class Compiler {
           new Context(cx.env.bindAll(bindings), innerLayout, depth)
               .withOrdinalSlots(cx.ordinalSlots);
 
-      final Code bodyCode =
+      Code bodyCode =
           tailPos
               ? compileTail(innerCx, match.exp)
               : compile(innerCx, match.exp);
+      if (cx.recPeers.isEmpty()) {
+        // The body of a recursive function calls its peers, so the interpreter
+        // would do most of the work anyway; generate code only for others.
+        bodyCode = generate(bodyCode);
+      }
       patCodes.add(match.pat, bodyCode);
     }
 
@@ -2278,7 +2843,7 @@ public class Compiler {
       // Rebuild session.globalEnv as a flat map from the current compilation
       // env so closures created during eval (which capture session) start with
       // a valid globalEnv.
-      session.globalEnv = Codes.globalEnvOf(evalEnv);
+      session.globalEnv = Codes.globalEnvOf(session, evalEnv);
       try {
         final Object o =
             code.eval(new Stack(session, Math.max(code.maxSlots(), 256)));
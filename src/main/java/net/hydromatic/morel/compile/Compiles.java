@@ -62,7 +62,11 @@ public abstract class Compiles {
     final Session session = new Session(propMap, typeSystem);
     final Environment env = Environments.env(typeSystem, session, valueMap);
     return TypeResolver.deduceType(
-        env, toDecl(statement), typeSystem, warningConsumer);
+        env,
+        toDecl(statement),
+        typeSystem,
+        Prop.UNIFIER.enumValue(session.map, Prop.Unifier.class),
+        warningConsumer);
   }
 
   /**
@@ -146,7 +150,12 @@ public abstract class Compiles {
     }
 
     final TypeResolver.Resolved resolved =
-        TypeResolver.deduceType(env, decl, typeSystem, warningConsumer);
+        TypeResolver.deduceType(
+            env,
+            decl,
+            typeSystem,
+            Prop.UNIFIER.enumValue(session.map, Prop.Unifier.class),
+            warningConsumer);
     final boolean hybrid = Prop.HYBRID.booleanValue(session.map);
     final int inlinePassCount =
         Math.max(Prop.INLINE_PASS_COUNT.intValue(session.map), 0);
@@ -223,6 +232,7 @@ public abstract class Compiles {
         tracer.onCore(i + 2, coreDecl);
       }
     }
+    coreDecl = decorrelate(coreDecl, typeSystem, env, hybrid);
     checkExtentsFinite(coreDecl);
     tracer.onCore(-1, coreDecl);
     final Compiler compiler;
@@ -230,9 +240,12 @@ public abstract class Compiles {
       if (calcite == null) {
         calcite = Calcite.withDataSets(ImmutableMap.of());
       }
-      compiler = new CalciteCompiler(typeSystem, calcite);
+      compiler =
+          new CalciteCompiler(
+              typeSystem, calcite, Prop.ENUMERABLE.booleanValue(session.map));
     } else {
-      compiler = new Compiler(typeSystem);
+      compiler =
+          new Compiler(typeSystem, Prop.CODEGEN.booleanValue(session.map));
     }
 
     // If the user wrote "scott.depts" we will print "<relation>";
@@ -335,7 +348,26 @@ public abstract class Compiles {
     }
 
     // Pass -1 or any pass beyond the last: return the final result
-    return coreDecl;
+    return decorrelate(
+        coreDecl, typeSystem, env, Prop.HYBRID.booleanValue(session.map));
+  }
+
+  /**
+   * Converts sub-queries into semi-joins, and pushes filters and projections
+   * into scans of foreign tables; does nothing if {@code hybrid}, because
+   * Calcite does both itself.
+   */
+  private static Core.Decl decorrelate(
+      Core.Decl coreDecl,
+      TypeSystem typeSystem,
+      Environment env,
+      boolean hybrid) {
+    if (hybrid) {
+      return coreDecl;
+    }
+    return coreDecl
+        .accept(Decorrelator.of(typeSystem, env))
+        .accept(ForeignPushdown.of(typeSystem, env));
   }
 
   /**
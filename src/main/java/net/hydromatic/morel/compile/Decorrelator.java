@@ -0,0 +1,385 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.FromBuilder;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.TypeSystem;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Shuttle that converts {@code exists} and {@code elem} sub-queries in the
+ * {@code where} clause of a query into semi-joins and anti-joins.
+ *
+ * <p>A sub-query that references the current row of the enclosing query is
+ * evaluated once per row. If the only references are equality conditions
+ * between a variable of the row and a variable of the sub-query, the sub-query
+ * can instead be evaluated once, yielding its side of each condition, and each
+ * row can test whether its own side is an element of the result. For example,
+ *
+ * <pre>{@code
+ * from e in emps
+ *   where exists (from d in depts
+ *     where d.deptno = e.deptno
+ *     andalso d.name = "Sales")
+ * }</pre>
+ *
+ * <p>becomes
+ *
+ * <pre>{@code
+ * let
+ *   val v = from d in depts where d.name = "Sales" yield d.deptno
+ * in
+ *   from e in emps where e.deptno elem v
+ * end
+ * }</pre>
+ *
+ * <p>Negated sub-queries -- {@code not (exists ...)}, {@code forall}, and
+ * {@code notelem} -- become anti-joins, using {@code notelem}. A sub-query that
+ * does not reference the row at all is evaluated once, and the row tests the
+ * result.
+ *
+ * <p>The evaluator indexes the hoisted collection in a hash table the first
+ * time that {@code elem} is applied to it, so each probe costs constant time.
+ *
+ * <p>The sub-query must consist of scans, followed by {@code where} steps and
+ * at most one {@code yield}. The collections of its scans, its conditions and
+ * its yield expression must be variables, field references, literals, and
+ * lists, equality tests and boolean combinations of those, so that evaluating
+ * them for rows that the original query would have skipped cannot fail. Other
+ * sub-queries are left as they are.
+ */
+public class Decorrelator extends EnvShuttle {
+  /** Private constructor. */
+  private Decorrelator(TypeSystem typeSystem, Environment env) {
+    super(typeSystem, env);
+  }
+
+  /** Creates a Decorrelator. */
+  public static Decorrelator of(TypeSystem typeSystem, Environment env) {
+    return new Decorrelator(typeSystem, env);
+  }
+
+  @Override
+  protected Decorrelator push(Environment env) {
+    return new Decorrelator(typeSystem, env);
+  }
+
+  @Override
+  protected Core.Exp visit(Core.From from) {
+    final Core.Exp exp = super.visit(from);
+    if (!(exp instanceof Core.From)) {
+      return exp;
+    }
+    final Core.From from2 = (Core.From) exp;
+    final List<Core.NonRecValDecl> decls = new ArrayList<>();
+    final List<Core.FromStep> steps = new ArrayList<>();
+    for (Core.FromStep step : from2.steps) {
+      if (step instanceof Core.Where) {
+        final Core.Where where = (Core.Where) step;
+        final List<Core.NamedPat> rowPats = new ArrayList<>();
+        where.env.bindings.forEach(b -> rowPats.add(b.id));
+        final List<Core.Exp> conditions = new ArrayList<>();
+        for (Core.Exp condition : core.decomposeAnd(where.exp)) {
+          conditions.add(decorrelate(condition, rowPats, decls));
+        }
+        steps.add(core.where(where.env, core.andAlso(typeSystem, conditions)));
+      } else {
+        steps.add(step);
+      }
+    }
+    if (decls.isEmpty()) {
+      return from2;
+    }
+    Core.Exp result = from2.copy(typeSystem, null, steps);
+    for (int i = decls.size() - 1; i >= 0; i--) {
+      result = core.let(decls.get(i), result);
+    }
+    return result;
+  }
+
+  /**
+   * Rewrites a conjunct of a {@code where} step, adding a declaration to {@code
+   * decls} for each sub-query that it hoists; returns the conjunct unchanged if
+   * it cannot be rewritten.
+   */
+  private Core.Exp decorrelate(
+      Core.Exp condition,
+      List<Core.NamedPat> rowPats,
+      List<Core.NonRecValDecl> decls) {
+    Core.Exp exp = condition;
+    boolean negated = false;
+    if (exp.isCallTo(BuiltIn.BOOL_NOT)) {
+      exp = ((Core.Apply) exp).arg;
+      negated = true;
+    }
+    final Core.Apply apply;
+    final Core.@Nullable Exp element;
+    if (exp.isCallTo(BuiltIn.RELATIONAL_NON_EMPTY)
+        || exp.isCallTo(BuiltIn.RELATIONAL_EMPTY)) {
+      apply = (Core.Apply) exp;
+      element = null;
+      if (apply.isCallTo(BuiltIn.RELATIONAL_EMPTY)) {
+        negated = !negated;
+      }
+      if (!(apply.arg instanceof Core.From)) {
+        return condition;
+      }
+    } else if (exp.isCallTo(BuiltIn.OP_ELEM)
+        || exp.isCallTo(BuiltIn.OP_NOT_ELEM)) {
+      apply = (Core.Apply) exp;
+      element = apply.arg(0);
+      if (apply.isCallTo(BuiltIn.OP_NOT_ELEM)) {
+        negated = !negated;
+      }
+      if (!(apply.arg(1) instanceof Core.From)) {
+        return condition;
+      }
+    } else {
+      return condition;
+    }
+    final Core.From subQuery =
+        (Core.From) (element == null ? apply.arg : apply.arg(1));
+    final @Nullable SubQuery q = SubQuery.of(typeSystem, subQuery, rowPats);
+    if (q == null) {
+      return condition;
+    }
+
+    if (q.outerKeys.isEmpty()) {
+      // The sub-query does not reference the row. Evaluate it, or in the
+      // case of 'exists', the whole condition, once.
+      if (element == null) {
+        final Core.Exp v =
+            hoist(core.nonEmpty(typeSystem, apply.pos, subQuery), decls);
+        return negated ? core.not(typeSystem, v) : v;
+      }
+      final Core.Exp v = hoist(subQuery, decls);
+      return negated ? notElem(element, v) : core.elem(typeSystem, element, v);
+    }
+
+    // Hoist "from ... where innerConditions yield (y, k1, k2, ...)",
+    // and replace the condition with "(x, j1, j2, ...) elem v".
+    final List<Core.Exp> outerExps = new ArrayList<>();
+    final List<Core.Exp> innerExps = new ArrayList<>();
+    if (element != null) {
+      outerExps.add(element);
+      innerExps.add(q.yieldExp);
+    }
+    outerExps.addAll(q.outerKeys);
+    innerExps.addAll(q.innerKeys);
+    final FromBuilder builder = core.fromBuilder(typeSystem);
+    q.scans.forEach(scan -> builder.scan(scan.pat, scan.exp, scan.condition));
+    builder.where(core.andAlso(typeSystem, q.innerConditions));
+    builder.yield_(tuple(innerExps));
+    final Core.Exp v = hoist(builder.build(), decls);
+    final Core.Exp outer = tuple(outerExps);
+    return negated ? notElem(outer, v) : core.elem(typeSystem, outer, v);
+  }
+
+  /** Returns "a0 notelem a1". */
+  private Core.Exp notElem(Core.Exp a0, Core.Exp a1) {
+    return core.call(
+        typeSystem, BuiltIn.OP_NOT_ELEM, a0.type, Pos.ZERO, a0, a1);
+  }
+
+  /** Returns the expression if there is one, otherwise a tuple. */
+  private Core.Exp tuple(List<Core.Exp> exps) {
+    return exps.size() == 1
+        ? exps.get(0)
+        : core.tuple(typeSystem, exps.toArray(new Core.Exp[0]));
+  }
+
+  /**
+   * Declares a variable whose value is {@code exp}, and returns a reference to
+   * it.
+   */
+  private Core.Exp hoist(Core.Exp exp, List<Core.NonRecValDecl> decls) {
+    final Core.IdPat idPat =
+        core.idPat(
+            exp.type,
+            typeSystem.nameGenerator.get(),
+            typeSystem.nameGenerator::inc);
+    decls.add(core.nonRecValDecl(Pos.ZERO, idPat, null, exp));
+    return core.id(idPat);
+  }
+
+  /** A sub-query that has been split into correlated and other parts. */
+  private static class SubQuery {
+    final List<Core.Scan> scans;
+    final List<Core.Exp> innerConditions;
+    final List<Core.Exp> outerKeys;
+    final List<Core.Exp> innerKeys;
+    final Core.Exp yieldExp;
+
+    private SubQuery(
+        List<Core.Scan> scans,
+        List<Core.Exp> innerConditions,
+        List<Core.Exp> outerKeys,
+        List<Core.Exp> innerKeys,
+        Core.Exp yieldExp) {
+      this.scans = scans;
+      this.innerConditions = innerConditions;
+      this.outerKeys = outerKeys;
+      this.innerKeys = innerKeys;
+      this.yieldExp = yieldExp;
+    }
+
+    /**
+     * Splits a sub-query, or returns null if it has steps other than scans,
+     * {@code where} and {@code yield}, or references the row other than by
+     * equality conditions.
+     */
+    static @Nullable SubQuery of(
+        TypeSystem typeSystem,
+        Core.From from,
+        Collection<Core.NamedPat> rowPats) {
+      final List<Core.Scan> scans = new ArrayList<>();
+      final List<Core.Exp> innerConditions = new ArrayList<>();
+      final List<Core.Exp> outerKeys = new ArrayList<>();
+      final List<Core.Exp> innerKeys = new ArrayList<>();
+      Core.@Nullable Exp yieldExp = null;
+      final List<Core.NamedPat> innerPats = new ArrayList<>();
+      for (Core.FromStep step : from.steps) {
+        if (yieldExp != null) {
+          return null;
+        }
+        switch (step.op) {
+          case SCAN:
+            final Core.Scan scan = (Core.Scan) step;
+            if (!innerConditions.isEmpty()
+                || !JoinKeys.isIndependent(typeSystem, scan.exp, rowPats)
+                || !JoinKeys.isIndependent(typeSystem, scan.condition, rowPats)
+                || !isSafe(scan.exp)
+                || !isSafe(scan.condition)
+                || Extents.isInfinite(scan.exp)) {
+              return null;
+            }
+            scans.add(scan);
+            innerPats.clear();
+            for (Binding binding : scan.env.bindings) {
+              innerPats.add(binding.id);
+            }
+            break;
+
+          case WHERE:
+            for (Core.Exp c : core.decomposeAnd(((Core.Where) step).exp)) {
+              if (!isSafe(c)) {
+                return null;
+              }
+              if (JoinKeys.isIndependent(typeSystem, c, rowPats)) {
+                innerConditions.add(c);
+                continue;
+              }
+              if (!JoinKeys.isEquals(c)) {
+                return null;
+              }
+              final Core.Exp a0 = c.arg(0);
+              final Core.Exp a1 = c.arg(1);
+              if (isKey(typeSystem, a0, a1, rowPats, innerPats)) {
+                outerKeys.add(a0);
+                innerKeys.add(a1);
+              } else if (isKey(typeSystem, a1, a0, rowPats, innerPats)) {
+                outerKeys.add(a1);
+                innerKeys.add(a0);
+              } else {
+                return null;
+              }
+            }
+            break;
+
+          case YIELD:
+            yieldExp = ((Core.Yield) step).exp;
+            if (!isSafe(yieldExp)
+                || !JoinKeys.isIndependent(typeSystem, yieldExp, rowPats)) {
+              return null;
+            }
+            break;
+
+          default:
+            return null;
+        }
+      }
+      if (scans.isEmpty()) {
+        return null;
+      }
+      if (yieldExp == null) {
+        yieldExp = core.implicitYieldExp(typeSystem, from.steps);
+      }
+      return new SubQuery(
+          scans, innerConditions, outerKeys, innerKeys, yieldExp);
+    }
+
+    /**
+     * Returns whether {@code outer} and {@code inner} are a pair of keys:
+     * {@code outer} references no variable of the sub-query, and {@code inner}
+     * references no variable of the row.
+     */
+    private static boolean isKey(
+        TypeSystem typeSystem,
+        Core.Exp outer,
+        Core.Exp inner,
+        Collection<Core.NamedPat> rowPats,
+        Collection<Core.NamedPat> innerPats) {
+      final Set<Core.NamedPat> outerFree =
+          FreeFinder.freePats(typeSystem, outer);
+      return JoinKeys.isIndependent(typeSystem, inner, rowPats)
+          && outerFree.stream().noneMatch(innerPats::contains)
+          && outer.type != PrimitiveType.REAL;
+    }
+
+    /**
+     * Returns whether an expression is a variable, field reference, literal, or
+     * a tuple, list, {@code =}, {@code <>}, {@code not}, {@code andalso} or
+     * {@code orelse} of those.
+     *
+     * <p>Such expressions are cheap and cannot throw, so it does not matter
+     * that the hoisted sub-query evaluates them for rows, and for inner rows,
+     * that the original query would not have reached.
+     */
+    private static boolean isSafe(Core.Exp exp) {
+      if (exp instanceof Core.Literal || JoinKeys.isSimple(exp)) {
+        return true;
+      }
+      if (exp.op == Op.TUPLE) {
+        return ((Core.Tuple) exp).args.stream().allMatch(SubQuery::isSafe);
+      }
+      if (JoinKeys.isEquals(exp)
+          || exp.isCallTo(BuiltIn.OP_NE)
+          || exp.isCallTo(BuiltIn.Z_LIST)
+          || exp.isCallTo(BuiltIn.Z_ANDALSO)
+          || exp.isCallTo(BuiltIn.Z_ORELSE)
+          || exp.isCallTo(BuiltIn.BOOL_NOT)) {
+        return isSafe(((Core.Apply) exp).arg);
+      }
+      return false;
+    }
+  }
+}
+
+// End Decorrelator.java
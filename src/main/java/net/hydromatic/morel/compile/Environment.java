@@ -158,7 +158,15 @@ public abstract class Environment {
   }
 
   protected Environment bind(Binding binding) {
-    return new Environments.SubEnvironment(this, binding);
+    return Environments.sub(this, binding);
+  }
+
+  /**
+   * Returns the number of bindings in this environment and its ancestors that
+   * are not covered by an index. Lookups search these bindings one by one.
+   */
+  int unindexedCount() {
+    return 0;
   }
 
   /**
@@ -28,6 +28,7 @@ import com.google.common.collect.ImmutableCollection;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Lists;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -49,11 +50,18 @@ import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
 import net.hydromatic.morel.util.Pair;
+import net.hydromatic.morel.util.PersistentMap;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /** Helpers for {@link Environment}. */
 public abstract class Environments {
 
+  /**
+   * Number of bindings between an environment and its nearest indexed ancestor
+   * at which {@link #index} creates an {@link IndexedEnvironment}.
+   */
+  private static final int INDEX_THRESHOLD = 16;
+
   /** An environment with only "true" and "false". */
   private static final Environment BASIC_ENVIRONMENT =
       EmptyEnvironment.INSTANCE
@@ -218,20 +226,38 @@ public abstract class Environments {
         // would be complicated, so don't even try.
         env = env.nearestAncestorNotObscuredBy(map.keySet());
       }
-      return new MapEnvironment(env, map, instanceMap);
+      return index(new MapEnvironment(env, map, instanceMap));
     }
   }
 
+  /** Creates an environment that is a given environment plus one binding. */
+  static Environment sub(Environment parent, Binding binding) {
+    return index(new SubEnvironment(parent, binding));
+  }
+
+  /**
+   * Wraps an environment in an {@link IndexedEnvironment} if there are many
+   * bindings between it and its nearest indexed ancestor; otherwise returns the
+   * environment.
+   */
+  private static Environment index(Environment env) {
+    return env.unindexedCount() < INDEX_THRESHOLD
+        ? env
+        : IndexedEnvironment.of(env);
+  }
+
   /**
    * Environment that inherits from a parent environment and adds one binding.
    */
   static class SubEnvironment extends Environment {
     private final Environment parent;
     private final Binding binding;
+    private final int unindexedCount;
 
     SubEnvironment(Environment parent, Binding binding) {
       this.parent = requireNonNull(parent);
       this.binding = requireNonNull(binding);
+      this.unindexedCount = parent.unindexedCount() + 1;
     }
 
     @Override
@@ -319,7 +345,7 @@ public abstract class Environments {
       } else {
         env = this;
       }
-      return new Environments.SubEnvironment(env, binding);
+      return sub(env, binding);
     }
 
     @Override
@@ -328,6 +354,11 @@ public abstract class Environments {
       parent.visit(consumer);
     }
 
+    @Override
+    int unindexedCount() {
+      return unindexedCount;
+    }
+
     @Override
     Environment nearestAncestorNotObscuredBy(Set<Core.NamedPat> names) {
       return names.contains(binding.id)
@@ -393,6 +424,7 @@ public abstract class Environments {
     private final Environment parent;
     private final Map<Core.NamedPat, Binding> map;
     private final ImmutableMultimap<Core.IdPat, Binding> instanceMap;
+    private final int unindexedCount;
 
     MapEnvironment(
         Environment parent,
@@ -401,6 +433,8 @@ public abstract class Environments {
       this.parent = requireNonNull(parent);
       this.map = requireNonNull(map);
       this.instanceMap = requireNonNull(instanceMap);
+      this.unindexedCount =
+          parent.unindexedCount() + map.size() + instanceMap.size();
     }
 
     @Override
@@ -410,6 +444,11 @@ public abstract class Environments {
       parent.visit(consumer);
     }
 
+    @Override
+    int unindexedCount() {
+      return unindexedCount;
+    }
+
     @Override
     public @Nullable Binding getTop(String name) {
       final List<Binding> bindings = new ArrayList<>();
@@ -529,6 +568,161 @@ public abstract class Environments {
       return -1;
     }
   }
+
+  /**
+   * Environment that wraps a chain of environments, and indexes the bindings of
+   * that chain and all of its ancestors.
+   *
+   * <p>Looking up a name in a chain of {@link SubEnvironment} and {@link
+   * MapEnvironment} takes time proportional to the number of bindings in the
+   * chain. When there are {@link #INDEX_THRESHOLD} bindings between an
+   * environment and its nearest indexed ancestor (or the root), {@link #index}
+   * wraps the environment in an IndexedEnvironment. Its maps answer {@link
+   * #getTop}, {@link #getOpt(Core.NamedPat)} and {@link #getOpt2} in O(log n)
+   * time, so that a lookup never walks more than {@link #INDEX_THRESHOLD}
+   * bindings before it reaches an index. Each index is built from the previous
+   * index, with which it shares most of its structure, so indexing costs O(log
+   * n) per binding.
+   *
+   * <p>Methods that need every binding, such as {@link #visit} and {@link
+   * #collect}, delegate to the wrapped environment.
+   */
+  static class IndexedEnvironment extends Environment {
+    private final Environment env;
+
+    /** Value that {@link #getTop} returns for each name. */
+    private final PersistentMap<String, Binding> tops;
+
+    /** Value that {@link #getOpt(Core.NamedPat)} returns for each id. */
+    private final PersistentMap<Core.NamedPat, Binding> ids;
+
+    /** Value that {@link #getOpt2} returns for each id. */
+    private final PersistentMap<Core.NamedPat, Pair<Binding, Environment>> ids2;
+
+    private IndexedEnvironment(
+        Environment env,
+        PersistentMap<String, Binding> tops,
+        PersistentMap<Core.NamedPat, Binding> ids,
+        PersistentMap<Core.NamedPat, Pair<Binding, Environment>> ids2) {
+      this.env = requireNonNull(env);
+      this.tops = requireNonNull(tops);
+      this.ids = requireNonNull(ids);
+      this.ids2 = requireNonNull(ids2);
+    }
+
+    /** Creates an IndexedEnvironment that wraps a given environment. */
+    static IndexedEnvironment of(Environment env) {
+      // Find the environments between this environment and the nearest
+      // index, newest first.
+      final List<Environment> envs = new ArrayList<>();
+      Environment e = env;
+      for (; ; ) {
+        if (e instanceof SubEnvironment) {
+          envs.add(e);
+          e = ((SubEnvironment) e).parent;
+        } else if (e instanceof MapEnvironment) {
+          envs.add(e);
+          e = ((MapEnvironment) e).parent;
+        } else {
+          break;
+        }
+      }
+
+      // Starting with the index's maps, add the bindings of each environment,
+      // oldest first, so that a newer binding replaces an older one. Each
+      // environment's bindings go in the order that its lookup methods
+      // search them, last first.
+      PersistentMap<String, Binding> tops = PersistentMap.of();
+      PersistentMap<Core.NamedPat, Binding> ids = PersistentMap.of();
+      PersistentMap<Core.NamedPat, Pair<Binding, Environment>> ids2 =
+          PersistentMap.of();
+      if (e instanceof IndexedEnvironment) {
+        final IndexedEnvironment indexed = (IndexedEnvironment) e;
+        tops = indexed.tops;
+        ids = indexed.ids;
+        ids2 = indexed.ids2;
+      }
+      for (Environment e2 : Lists.reverse(envs)) {
+        if (e2 instanceof SubEnvironment) {
+          final Binding binding = ((SubEnvironment) e2).binding;
+          final Pair<Binding, Environment> pair = Pair.of(binding, e2);
+          if (binding.overloadId != null) {
+            tops = tops.plus(binding.overloadId.name, binding);
+            ids = ids.plus(binding.overloadId, binding);
+            ids2 = ids2.plus(binding.overloadId, pair);
+          }
+          tops = tops.plus(binding.id.name, binding);
+          ids = ids.plus(binding.id, binding);
+          ids2 = ids2.plus(binding.id, pair);
+        } else {
+          final MapEnvironment mapEnv = (MapEnvironment) e2;
+          for (Binding binding : mapEnv.map.values()) {
+            tops = tops.plus(binding.id.name, binding);
+          }
+          for (Binding binding : mapEnv.instanceMap.values()) {
+            tops = tops.plus(requireNonNull(binding.overloadId).name, binding);
+          }
+          for (Binding binding :
+              mapEnv.instanceMap.values().asList().reverse()) {
+            ids = ids.plus(binding.id, binding);
+          }
+          for (Map.Entry<Core.NamedPat, Binding> entry :
+              mapEnv.map.entrySet()) {
+            ids = ids.plus(entry.getKey(), entry.getValue());
+            ids2 = ids2.plus(entry.getKey(), Pair.of(entry.getValue(), e2));
+          }
+        }
+      }
+      return new IndexedEnvironment(env, tops, ids, ids2);
+    }
+
+    @Override
+    public String toString() {
+      return env.toString();
+    }
+
+    @Override
+    void visit(Consumer<Binding> consumer) {
+      env.visit(consumer);
+    }
+
+    @Override
+    public @Nullable Binding getTop(String name) {
+      return tops.get(name);
+    }
+
+    @Override
+    public @Nullable Binding getOpt(Core.NamedPat id) {
+      return ids.get(id);
+    }
+
+    @Override
+    public @Nullable Pair<Binding, Environment> getOpt2(Core.NamedPat id) {
+      return ids2.get(id);
+    }
+
+    @Override
+    void forEachAncestor(Consumer<Environment> consumer) {
+      consumer.accept(this);
+      env.forEachAncestor(consumer);
+    }
+
+    @Override
+    public void collect(Core.NamedPat id, Consumer<Binding> consumer) {
+      env.collect(id, consumer);
+    }
+
+    @Override
+    Environment nearestAncestorNotObscuredBy(Set<Core.NamedPat> names) {
+      final Environment env2 = env.nearestAncestorNotObscuredBy(names);
+      return env2 == env ? this : env2;
+    }
+
+    @Override
+    int distance(int soFar, Core.NamedPat id) {
+      return env.distance(soFar, id);
+    }
+  }
 }
 
 // End Environments.java
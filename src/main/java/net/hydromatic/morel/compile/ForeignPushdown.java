@@ -0,0 +1,418 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.eval.Unit;
+import net.hydromatic.morel.foreign.RelList;
+import net.hydromatic.morel.type.Binding;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.RecordLikeType;
+import net.hydromatic.morel.type.Type;
+import net.hydromatic.morel.type.TypeSystem;
+import org.apache.calcite.rel.RelNode;
+import org.apache.calcite.rel.core.RelFactories;
+import org.apache.calcite.rel.type.RelDataType;
+import org.apache.calcite.rel.type.RelDataTypeField;
+import org.apache.calcite.rex.RexNode;
+import org.apache.calcite.sql.SqlOperator;
+import org.apache.calcite.sql.fun.SqlStdOperatorTable;
+import org.apache.calcite.sql.type.SqlTypeName;
+import org.apache.calcite.tools.RelBuilder;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Shuttle that pushes filters and projections into scans of foreign relations,
+ * for queries that are evaluated by Morel rather than by Calcite.
+ *
+ * <p>A scan over a foreign table, such as {@code from e in scott.emps}, reads a
+ * {@link RelList}. If the {@code where} steps that follow the scan compare
+ * fields of the scanned record to literals, as in
+ *
+ * <pre>{@code
+ * from e in scott.emps
+ *   where e.deptno = 20
+ *   yield e.ename
+ * }</pre>
+ *
+ * <p>this shuttle replaces the list with one whose relational expression has a
+ * {@code Filter} for those comparisons, and a {@code Project} that replaces
+ * each field that the query does not use with a constant. The data source (for
+ * example a JDBC database) can then return only the rows and columns that the
+ * query needs.
+ *
+ * <p>The {@code where} steps are left in place, and Morel evaluates them as
+ * before, so the filter only needs to let through every row that the Morel
+ * conditions accept. Only comparisons on {@code int} fields, and {@code =} and
+ * {@code <>} on {@code string} and {@code bool} fields, are pushed. Morel reads
+ * a null column as {@code 0}, {@code ""} or {@code false}, so if that value
+ * satisfies a comparison, the pushed filter also accepts null.
+ *
+ * <p>Not used in hybrid mode, where {@link CalciteCompiler} translates the
+ * whole query to relational algebra.
+ */
+public class ForeignPushdown extends EnvShuttle {
+  /** Private constructor. */
+  private ForeignPushdown(TypeSystem typeSystem, Environment env) {
+    super(typeSystem, env);
+  }
+
+  /** Creates a ForeignPushdown. */
+  public static ForeignPushdown of(TypeSystem typeSystem, Environment env) {
+    return new ForeignPushdown(typeSystem, env);
+  }
+
+  @Override
+  protected ForeignPushdown push(Environment env) {
+    return new ForeignPushdown(typeSystem, env);
+  }
+
+  @Override
+  protected Core.Exp visit(Core.From from) {
+    final Core.Exp exp = super.visit(from);
+    if (!(exp instanceof Core.From)) {
+      return exp;
+    }
+    final Core.From from2 = (Core.From) exp;
+    final List<Core.FromStep> steps = new ArrayList<>(from2.steps);
+    boolean changed = false;
+    for (int i = 0; i < steps.size(); i++) {
+      final Core.FromStep step = steps.get(i);
+      if (step.op == Op.SCAN) {
+        final Core.@Nullable Scan scan = pushDown(steps, i);
+        if (scan != null) {
+          steps.set(i, scan);
+          changed = true;
+        }
+      }
+    }
+    // Build the query directly, rather than calling 'From.copy', which would
+    // compare the old and new lists, and thereby read both of them.
+    return changed ? core.from(from2.type, steps) : from2;
+  }
+
+  /**
+   * Returns a scan over a list with a filter and project pushed into it, or
+   * null if the {@code i}th step is not a scan of a {@link RelList} or nothing
+   * can be pushed.
+   */
+  private Core.@Nullable Scan pushDown(List<Core.FromStep> steps, int i) {
+    final Core.Scan scan = (Core.Scan) steps.get(i);
+    if (!(scan.pat instanceof Core.IdPat)
+        || !(scan.pat.type instanceof RecordLikeType)) {
+      return null;
+    }
+    final @Nullable Object value = value(scan.exp);
+    if (!(value instanceof RelList)) {
+      return null;
+    }
+    final RelList list = (RelList) value;
+    final Core.IdPat pat = (Core.IdPat) scan.pat;
+    final RecordLikeType recordType = (RecordLikeType) pat.type;
+    final List<RelDataTypeField> fields = list.rel.getRowType().getFieldList();
+    if (fields.size() != recordType.argNameTypes().size()) {
+      return null;
+    }
+
+    final RelBuilder b =
+        RelFactories.LOGICAL_BUILDER.create(list.rel.getCluster(), null);
+    b.push(list.rel);
+
+    // Conditions in the scan, and in the 'where' steps that follow it, up to
+    // the first step that is not a 'where' or an inner join. (Pushing past a
+    // 'take', say, would change which rows it sees.)
+    final List<RexNode> conditions = new ArrayList<>();
+    addConditions(b, pat, recordType, fields, scan.condition, conditions);
+    for (int j = i + 1; j < steps.size(); j++) {
+      final Core.FromStep step = steps.get(j);
+      if (step.op == Op.WHERE) {
+        addConditions(
+            b, pat, recordType, fields, ((Core.Where) step).exp, conditions);
+      } else if (step.op != Op.SCAN) {
+        break;
+      }
+    }
+
+    // Fields that the rest of the query uses.
+    final FieldFinder finder = new FieldFinder(pat);
+    scan.condition.accept(finder);
+    for (int j = i + 1; j < steps.size(); j++) {
+      steps.get(j).accept(finder);
+    }
+    final Core.FromStep lastStep = steps.get(steps.size() - 1);
+    if (lastStep.op != Op.YIELD
+        && lastStep.env.bindings.stream()
+            .anyMatch(binding -> binding.id.equals(pat))) {
+      // The query's implicit 'yield' returns the whole record.
+      finder.whole = true;
+    }
+    final boolean project =
+        !finder.whole && finder.slots.cardinality() < fields.size();
+
+    if (conditions.isEmpty() && !project) {
+      return null;
+    }
+    if (!conditions.isEmpty()) {
+      b.filter(conditions);
+    }
+    if (project) {
+      final List<RexNode> exps = new ArrayList<>();
+      final List<String> names = new ArrayList<>();
+      for (RelDataTypeField field : fields) {
+        exps.add(
+            finder.slots.get(field.getIndex())
+                ? b.field(field.getIndex())
+                : b.getRexBuilder().makeZeroLiteral(field.getType()));
+        names.add(field.getName());
+      }
+      b.project(exps, names, true);
+    }
+    final RelNode rel = b.build();
+    return core.scan(
+        scan.op,
+        scan.env,
+        scan.pat,
+        core.valueLiteral(scan.exp, list.withRel(rel)),
+        scan.condition);
+  }
+
+  /**
+   * Returns the value of an expression that is a literal, or a field of a
+   * foreign value such as {@code #emps scott}; otherwise null.
+   *
+   * <p>The {@link Inliner} does not inline foreign values (their bindings are
+   * parameters), so a scan of a foreign table usually reaches this shuttle as a
+   * chain of record selectors applied to an identifier.
+   */
+  private @Nullable Object value(Core.Exp exp) {
+    switch (exp.op) {
+      case VALUE_LITERAL:
+        return ((Core.Literal) exp).unwrap(Object.class);
+      case ID:
+        final @Nullable Binding binding = env.getOpt(((Core.Id) exp).idPat);
+        return binding == null || binding.value == Unit.INSTANCE
+            ? null
+            : binding.value;
+      case APPLY:
+        final Core.Apply apply = (Core.Apply) exp;
+        if (apply.fn.op != Op.RECORD_SELECTOR) {
+          return null;
+        }
+        final @Nullable Object o = value(apply.arg);
+        if (!(o instanceof List)) {
+          return null;
+        }
+        return ((List<?>) o).get(((Core.RecordSelector) apply.fn).slot);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Translates each conjunct of {@code condition} that compares a field of
+   * {@code pat} with a literal into a Calcite condition.
+   */
+  private static void addConditions(
+      RelBuilder b,
+      Core.IdPat pat,
+      RecordLikeType recordType,
+      List<RelDataTypeField> fields,
+      Core.Exp condition,
+      List<RexNode> conditions) {
+    for (Core.Exp conjunct : core.decomposeAnd(condition)) {
+      if (conjunct.op != Op.APPLY) {
+        continue;
+      }
+      final Core.Apply apply = (Core.Apply) conjunct;
+      if (apply.arg.op != Op.TUPLE || apply.args().size() != 2) {
+        continue;
+      }
+      @Nullable SqlOperator operator = operator(apply.builtIn());
+      if (operator == null) {
+        continue;
+      }
+      Core.Exp field = apply.arg(0);
+      Core.Exp literal = apply.arg(1);
+      if (literal.op == Op.APPLY) {
+        // "10 < e.deptno" becomes "e.deptno > 10"
+        field = apply.arg(1);
+        literal = apply.arg(0);
+        operator = operator.reverse();
+        if (operator == null) {
+          continue;
+        }
+      }
+      final int slot = slot(field, pat);
+      if (slot < 0 || !(literal instanceof Core.Literal)) {
+        continue;
+      }
+      final Type type = recordType.argType(slot);
+      final RelDataType relType = fields.get(slot).getType();
+      final Object value = ((Core.Literal) literal).value;
+      final RexNode rexLiteral;
+      final int c; // how the value of a null column compares to the literal
+      if (type == PrimitiveType.INT
+          && SqlTypeName.INT_TYPES.contains(relType.getSqlTypeName())
+          && value instanceof BigDecimal) {
+        final int i = ((BigDecimal) value).intValueExact();
+        rexLiteral = b.literal(i);
+        c = Integer.compare(0, i);
+      } else if (type == PrimitiveType.STRING
+          && SqlTypeName.CHAR_TYPES.contains(relType.getSqlTypeName())
+          && value instanceof String
+          && isEquality(operator)) {
+        rexLiteral = b.literal(value);
+        c = "".compareTo((String) value);
+      } else if (type == PrimitiveType.BOOL
+          && relType.getSqlTypeName() == SqlTypeName.BOOLEAN
+          && value instanceof Boolean
+          && isEquality(operator)) {
+        rexLiteral = b.literal(value);
+        c = Boolean.compare(false, (Boolean) value);
+      } else {
+        // Other types, such as dates, which Morel reads as strings, have
+        // different comparison semantics in Morel and in the data source.
+        continue;
+      }
+      final RexNode rex = b.call(operator, b.field(slot), rexLiteral);
+      if (relType.isNullable() && holds(operator, c)) {
+        // Morel reads a null column as 0, "" or false, and that value
+        // satisfies the condition; so must null.
+        conditions.add(b.or(b.isNull(b.field(slot)), rex));
+      } else {
+        conditions.add(rex);
+      }
+    }
+  }
+
+  /** Returns whether an operator is {@code =} or {@code <>}. */
+  private static boolean isEquality(SqlOperator operator) {
+    return operator == SqlStdOperatorTable.EQUALS
+        || operator == SqlStdOperatorTable.NOT_EQUALS;
+  }
+
+  /**
+   * Returns whether a comparison holds, given the result {@code c} of comparing
+   * its left argument to its right argument.
+   */
+  private static boolean holds(SqlOperator operator, int c) {
+    switch (operator.getKind()) {
+      case EQUALS:
+        return c == 0;
+      case NOT_EQUALS:
+        return c != 0;
+      case LESS_THAN:
+        return c < 0;
+      case LESS_THAN_OR_EQUAL:
+        return c <= 0;
+      case GREATER_THAN:
+        return c > 0;
+      case GREATER_THAN_OR_EQUAL:
+        return c >= 0;
+      default:
+        throw new AssertionError(operator);
+    }
+  }
+
+  /** Returns the Calcite operator for a Morel comparison, or null. */
+  private static @Nullable SqlOperator operator(BuiltIn builtIn) {
+    switch (builtIn) {
+      case OP_EQ:
+      case BOOL_OP_EQ:
+      case STRING_OP_EQ:
+        return SqlStdOperatorTable.EQUALS;
+      case OP_NE:
+      case BOOL_OP_NE:
+      case STRING_OP_NE:
+        return SqlStdOperatorTable.NOT_EQUALS;
+      case OP_LT:
+      case INT_OP_LT:
+        return SqlStdOperatorTable.LESS_THAN;
+      case OP_LE:
+      case INT_OP_LE:
+        return SqlStdOperatorTable.LESS_THAN_OR_EQUAL;
+      case OP_GT:
+      case INT_OP_GT:
+        return SqlStdOperatorTable.GREATER_THAN;
+      case OP_GE:
+      case INT_OP_GE:
+        return SqlStdOperatorTable.GREATER_THAN_OR_EQUAL;
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * If {@code exp} is a field of {@code pat}, such as {@code #deptno e},
+   * returns the ordinal of the field; otherwise returns -1.
+   */
+  private static int slot(Core.Exp exp, Core.IdPat pat) {
+    if (exp.op == Op.APPLY) {
+      final Core.Apply apply = (Core.Apply) exp;
+      if (apply.fn.op == Op.RECORD_SELECTOR
+          && apply.arg.op == Op.ID
+          && ((Core.Id) apply.arg).idPat.equals(pat)) {
+        return ((Core.RecordSelector) apply.fn).slot;
+      }
+    }
+    return -1;
+  }
+
+  /** Finds the fields of a record variable that an expression uses. */
+  private static class FieldFinder extends Visitor {
+    final Core.IdPat pat;
+
+    /** Ordinals of the fields that are used. */
+    final BitSet slots = new BitSet();
+
+    /** Whether the whole record is used, other than by accessing a field. */
+    boolean whole;
+
+    FieldFinder(Core.IdPat pat) {
+      this.pat = pat;
+    }
+
+    @Override
+    protected void visit(Core.Apply apply) {
+      final int slot = slot(apply, pat);
+      if (slot >= 0) {
+        slots.set(slot);
+      } else {
+        super.visit(apply);
+      }
+    }
+
+    @Override
+    protected void visit(Core.Id id) {
+      if (id.idPat.equals(pat)) {
+        whole = true;
+      }
+    }
+  }
+}
+
+// End ForeignPushdown.java
@@ -0,0 +1,181 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.compile;
+
+import static net.hydromatic.morel.ast.CoreBuilder.core;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Collection;
+import java.util.Set;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.ast.Op;
+import net.hydromatic.morel.type.TypeSystem;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Equi-join keys extracted from a join condition.
+ *
+ * <p>A conjunct {@code l = r}, where {@code l} references only variables of the
+ * input ('left') row and {@code r} only variables of the newly scanned
+ * ('right') element, becomes a pair of key expressions; the remaining conjuncts
+ * form the residual condition. A join with at least one pair of keys can be
+ * evaluated by hashing one side and probing it with the other.
+ *
+ * <p>Only simple key expressions -- variables and field accesses -- are
+ * extracted. They are cheap and cannot throw, so it is safe to evaluate them
+ * for pairs that the original {@code andalso} chain would have rejected before
+ * reaching them.
+ */
+final class JoinKeys {
+  /** Key expressions evaluated against the input ('left') row. */
+  final ImmutableList<Core.Exp> leftKeys;
+
+  /** Key expressions evaluated against the scanned ('right') element. */
+  final ImmutableList<Core.Exp> rightKeys;
+
+  /** Conjunction of the conditions that are not keys; may be {@code true}. */
+  final Core.Exp residual;
+
+  private JoinKeys(
+      ImmutableList<Core.Exp> leftKeys,
+      ImmutableList<Core.Exp> rightKeys,
+      Core.Exp residual) {
+    this.leftKeys = leftKeys;
+    this.rightKeys = rightKeys;
+    this.residual = residual;
+  }
+
+  /**
+   * Extracts equi-join keys from a condition, or returns null if there are
+   * none.
+   *
+   * @param typeSystem Type system
+   * @param condition Join condition
+   * @param leftPats Variables bound by the input ('left') row
+   * @param rightPats Variables bound by the scanned ('right') element
+   */
+  static @Nullable JoinKeys of(
+      TypeSystem typeSystem,
+      Core.Exp condition,
+      Collection<Core.NamedPat> leftPats,
+      Collection<Core.NamedPat> rightPats) {
+    final ImmutableList.Builder<Core.Exp> leftKeys = ImmutableList.builder();
+    final ImmutableList.Builder<Core.Exp> rightKeys = ImmutableList.builder();
+    final ImmutableList.Builder<Core.Exp> residuals = ImmutableList.builder();
+    boolean found = false;
+    for (Core.Exp conjunct : core.decomposeAnd(condition)) {
+      if (isEquals(conjunct)) {
+        final Core.Exp a0 = conjunct.arg(0);
+        final Core.Exp a1 = conjunct.arg(1);
+        if (isSimple(a0) && isSimple(a1)) {
+          final Set<Core.NamedPat> free0 = FreeFinder.freePats(typeSystem, a0);
+          final Set<Core.NamedPat> free1 = FreeFinder.freePats(typeSystem, a1);
+          if (isSide(free0, leftPats, rightPats)
+              && isSide(free1, rightPats, leftPats)) {
+            leftKeys.add(a0);
+            rightKeys.add(a1);
+            found = true;
+            continue;
+          }
+          if (isSide(free1, leftPats, rightPats)
+              && isSide(free0, rightPats, leftPats)) {
+            leftKeys.add(a1);
+            rightKeys.add(a0);
+            found = true;
+            continue;
+          }
+        }
+      }
+      residuals.add(conjunct);
+    }
+    if (!found) {
+      return null;
+    }
+    return new JoinKeys(
+        leftKeys.build(),
+        rightKeys.build(),
+        core.andAlso(typeSystem, residuals.build()));
+  }
+
+  /** Returns whether an expression is a call to one of the "=" operators. */
+  static boolean isEquals(Core.Exp exp) {
+    if (exp.op != Op.APPLY || ((Core.Apply) exp).fn.op != Op.FN_LITERAL) {
+      return false;
+    }
+    // All of these operators are implemented using Object.equals, and are
+    // therefore consistent with Object.hashCode.
+    return exp.isCallTo(BuiltIn.OP_EQ)
+        || exp.isCallTo(BuiltIn.BOOL_OP_EQ)
+        || exp.isCallTo(BuiltIn.CHAR_OP_EQ)
+        || exp.isCallTo(BuiltIn.REAL_OP_EQ)
+        || exp.isCallTo(BuiltIn.STRING_OP_EQ);
+  }
+
+  /**
+   * Returns whether an expression is a variable or a chain of field accesses to
+   * a variable, such as {@code e}, {@code e.deptno} or {@code #1 (#2 p)}.
+   */
+  static boolean isSimple(Core.Exp exp) {
+    switch (exp.op) {
+      case ID:
+        return true;
+      case APPLY:
+        final Core.Apply apply = (Core.Apply) exp;
+        return apply.fn.op == Op.RECORD_SELECTOR && isSimple(apply.arg);
+      default:
+        return false;
+    }
+  }
+
+  /**
+   * Returns whether a set of free variables references at least one variable in
+   * {@code pats} and none in {@code otherPats}.
+   */
+  private static boolean isSide(
+      Set<Core.NamedPat> free,
+      Collection<Core.NamedPat> pats,
+      Collection<Core.NamedPat> otherPats) {
+    boolean any = false;
+    for (Core.NamedPat pat : free) {
+      if (otherPats.contains(pat)) {
+        return false;
+      }
+      if (pats.contains(pat)) {
+        any = true;
+      }
+    }
+    return any;
+  }
+
+  /**
+   * Returns whether an expression references none of the given variables; for
+   * example, whether the collection of a scan is independent of the input row.
+   */
+  static boolean isIndependent(
+      TypeSystem typeSystem, Core.Exp exp, Collection<Core.NamedPat> pats) {
+    for (Core.NamedPat pat : FreeFinder.freePats(typeSystem, exp)) {
+      if (pats.contains(pat)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
+
+// End JoinKeys.java
@@ -80,6 +80,7 @@ import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.ast.Pos;
 import net.hydromatic.morel.ast.Shuttle;
 import net.hydromatic.morel.ast.Visitor;
+import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.type.AliasType;
 import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.Binding.Kind;
@@ -118,6 +119,7 @@ import net.hydromatic.morel.util.Unifier.SubstitutionResult;
 import net.hydromatic.morel.util.Unifier.Term;
 import net.hydromatic.morel.util.Unifier.TermTerm;
 import net.hydromatic.morel.util.Unifier.Variable;
+import net.hydromatic.morel.util.UnionFindUnifier;
 import org.apache.calcite.util.Holder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
@@ -128,7 +130,7 @@ public class TypeResolver {
   private final Consumer<CompileException> warningConsumer;
   private final PairList<Ast.Group, Triple> computeStack = PairList.of();
   private final List<Consumer<Resolved>> validations = new ArrayList<>();
-  private final Unifier unifier = new MartelliUnifier();
+  private final Unifier unifier;
   private final List<TermVariable> terms = new ArrayList<>();
   private final Map<AstNode, Term> map = new HashMap<>();
   private final Map<Variable, Action> actionMap = new HashMap<>();
@@ -207,25 +209,51 @@ public class TypeResolver {
   static final String PROGRESSIVE_LABEL = "z$dummy";
 
   private TypeResolver(
-      TypeSystem typeSystem, Consumer<CompileException> warningConsumer) {
+      TypeSystem typeSystem,
+      Unifier unifier,
+      Consumer<CompileException> warningConsumer) {
     this.typeSystem = requireNonNull(typeSystem);
+    this.unifier = requireNonNull(unifier);
     this.warningConsumer = requireNonNull(warningConsumer);
   }
 
+  /** Deduces the datatype of a declaration, using the default unifier. */
+  public static Resolved deduceType(
+      Environment env,
+      Ast.Decl decl,
+      TypeSystem typeSystem,
+      Consumer<CompileException> warningConsumer) {
+    return deduceType(
+        env, decl, typeSystem, Prop.Unifier.MARTELLI, warningConsumer);
+  }
+
   /** Deduces the datatype of a declaration. */
   public static Resolved deduceType(
       Environment env,
       Ast.Decl decl,
       TypeSystem typeSystem,
+      Prop.Unifier unifier,
       Consumer<CompileException> warningConsumer) {
     final TypeResolver typeResolver =
-        new TypeResolver(typeSystem, warningConsumer);
+        new TypeResolver(typeSystem, unifier(unifier), warningConsumer);
     final Resolved resolved =
         typeResolver.deduceTypeWithRetries(env, decl, typeSystem);
     typeResolver.validations.forEach(v -> v.accept(resolved));
     return resolved;
   }
 
+  /** Creates a unifier of the given kind. */
+  private static Unifier unifier(Prop.Unifier unifier) {
+    switch (unifier) {
+      case MARTELLI:
+        return new MartelliUnifier();
+      case UNION_FIND:
+        return new UnionFindUnifier();
+      default:
+        throw new AssertionError(unifier);
+    }
+  }
+
   /** Converts a type AST to a type. */
   public static Type toType(Ast.Type type, TypeSystem typeSystem) {
     return typeSystem.typeFor(toTypeKey(type));
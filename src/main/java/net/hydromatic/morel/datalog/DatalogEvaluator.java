@@ -20,6 +20,7 @@ package net.hydromatic.morel.datalog;
 
 import static java.lang.String.format;
 import static java.util.Objects.requireNonNull;
+import static net.hydromatic.morel.ast.CoreBuilder.core;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -27,7 +28,6 @@ import java.io.File;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.TreeMap;
 import net.hydromatic.morel.ast.AstNode;
 import net.hydromatic.morel.compile.BuiltIn;
 import net.hydromatic.morel.compile.CompileException;
@@ -36,21 +36,19 @@ import net.hydromatic.morel.compile.Compiles;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.compile.Environments;
 import net.hydromatic.morel.compile.Tracers;
-import net.hydromatic.morel.datalog.DatalogAst.Atom;
-import net.hydromatic.morel.datalog.DatalogAst.Constant;
 import net.hydromatic.morel.datalog.DatalogAst.Declaration;
-import net.hydromatic.morel.datalog.DatalogAst.Fact;
 import net.hydromatic.morel.datalog.DatalogAst.Input;
 import net.hydromatic.morel.datalog.DatalogAst.Param;
 import net.hydromatic.morel.datalog.DatalogAst.Program;
-import net.hydromatic.morel.datalog.DatalogAst.Statement;
-import net.hydromatic.morel.datalog.DatalogAst.Term;
 import net.hydromatic.morel.eval.Prop;
 import net.hydromatic.morel.eval.Session;
+import net.hydromatic.morel.eval.Unit;
 import net.hydromatic.morel.eval.Variant;
 import net.hydromatic.morel.parse.MorelParserImpl;
 import net.hydromatic.morel.type.Binding;
-import net.hydromatic.morel.type.RecordType;
+import net.hydromatic.morel.type.ListType;
+import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.type.RecordLikeType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
 
@@ -92,13 +90,10 @@ public class DatalogEvaluator {
       // 1. Parse Datalog program
       Program ast = DatalogParserImpl.parse(program);
 
-      // 2. Load input files and inject synthetic facts
-      ast = loadInputFiles(ast, session);
-
-      // 3. Analyze for safety and stratification
+      // 2. Analyze for safety and stratification
       DatalogAnalyzer.analyze(ast);
 
-      // 4. Translate to Morel source code
+      // 3. Translate to Morel source code
       String morelSource = DatalogTranslator.translate(ast);
 
       // 4. Parse the Morel source
@@ -106,10 +101,16 @@ public class DatalogEvaluator {
           new MorelParserImpl(new StringReader(morelSource));
       AstNode statement = parser.statementEofSafe();
 
-      // 5. Compile the statement
+      // 5. Load input files, and bind them in the environment
       final TypeSystem typeSystem = requireNonNull(session.typeSystem);
       final Environment env =
-          Environments.env(typeSystem, session, ImmutableMap.of());
+          bindInputFiles(
+              ast,
+              session,
+              typeSystem,
+              Environments.env(typeSystem, session, ImmutableMap.of()));
+
+      // 6. Compile the statement
       final List<CompileException> warnings = new ArrayList<>();
       CompiledStatement compiled =
           Compiles.prepareStatement(
@@ -224,28 +225,25 @@ public class DatalogEvaluator {
       }
     }
   }
+
   /**
-   * Processes {@code .input} directives by reading CSV files and injecting
-   * synthetic {@link Fact} nodes into the program.
+   * Processes {@code .input} directives by reading CSV files and binding each
+   * input relation, as a list of tuples, in the environment.
+   *
+   * <p>The relation is bound under its own name, and the code generated by
+   * {@link DatalogTranslator} references it. Loading therefore costs time
+   * proportional to the size of the file; the rows do not become facts in the
+   * program, and the parser and type resolver never see them.
    *
    * <p>If the program has no {@code .input} directives, returns the original
-   * program unchanged.
+   * environment.
    */
-  private static Program loadInputFiles(Program ast, Session session) {
-    List<Input> inputs = ast.getInputs();
-    if (inputs.isEmpty()) {
-      return ast;
-    }
-
+  private static Environment bindInputFiles(
+      Program ast, Session session, TypeSystem typeSystem, Environment env) {
     final File baseDir = Prop.DIRECTORY.fileValue(session.map);
-    final List<Statement> augmented = new ArrayList<>(ast.statements);
-
-    for (Input input : inputs) {
-      Declaration decl = ast.getDeclaration(input.relationName);
-      if (decl == null) {
-        // Will be caught by the analyzer
-        continue;
-      }
+    for (Input input : ast.getInputs()) {
+      final Declaration decl =
+          requireNonNull(ast.getDeclaration(input.relationName));
 
       final String fileName = input.effectiveFileName();
       final File ioFile = new File(baseDir, fileName);
@@ -258,49 +256,88 @@ public class DatalogEvaluator {
 
       // lint:skip 2
       final net.hydromatic.morel.eval.File file =
-          net.hydromatic.morel.eval.Files.create(ioFile);
+          net.hydromatic.morel.eval.Files.create(ioFile, session.fileCache);
 
       @SuppressWarnings("unchecked")
       final List<List<Object>> rows =
           (List<List<Object>>) file.valueAs(List.class);
-      if (rows == null || rows.isEmpty()) {
-        continue;
-      }
 
-      // Build mapping from declaration param index to sorted field index.
+      // Map each declaration param to a field of the file's records.
       // Files.valueAs returns records with fields in alphabetical order.
-      List<String> paramNames = new ArrayList<>();
-      for (Param p : decl.params) {
-        paramNames.add(p.name);
+      // Match fields by name; if the names do not match, use the fields in
+      // order.
+      final Type fileType = file.typeKey().toType(typeSystem);
+      final List<String> fieldNames =
+          fileType instanceof ListType
+                  && ((ListType) fileType).elementType instanceof RecordLikeType
+              ? ((RecordLikeType) ((ListType) fileType).elementType).argNames()
+              : ImmutableList.of();
+      if (rows != null && !rows.isEmpty() && fieldNames.size() < decl.arity()) {
+        throw new DatalogException(
+            format(
+                "Input file %s has %d fields, but relation '%s' has %d",
+                fileName, fieldNames.size(), decl.name, decl.arity()));
       }
-      TreeMap<String, Integer> sortedIndex = new TreeMap<>(RecordType.ORDERING);
-      for (String name : paramNames) {
-        sortedIndex.put(name, sortedIndex.size());
+      final List<Type> types = new ArrayList<>();
+      final int[] declToField = new int[decl.arity()];
+      boolean byName = true;
+      for (int i = 0; i < decl.arity(); i++) {
+        final Param param = decl.params.get(i);
+        types.add(
+            param.type.equals("int")
+                ? PrimitiveType.INT
+                : PrimitiveType.STRING);
+        declToField[i] = fieldNames.indexOf(param.name);
+        byName &= declToField[i] >= 0;
       }
-      int[] declToSorted = new int[decl.params.size()];
-      for (int i = 0; i < decl.params.size(); i++) {
-        declToSorted[i] = sortedIndex.get(decl.params.get(i).name);
+      if (!byName) {
+        for (int i = 0; i < decl.arity(); i++) {
+          declToField[i] = i;
+        }
       }
 
-      // Convert each row to a Fact
-      for (List<Object> row : rows) {
-        List<Term> terms = new ArrayList<>();
-        for (int i = 0; i < decl.params.size(); i++) {
-          Object value = row.get(declToSorted[i]);
-          String type = decl.params.get(i).type;
-          String datalogType;
-          if (value instanceof Integer) {
-            datalogType = "int";
-          } else {
-            datalogType = "string";
+      // Convert each row to a tuple (or, if arity is 1, a scalar)
+      final ImmutableList.Builder<Object> values = ImmutableList.builder();
+      if (rows != null) {
+        for (List<Object> row : rows) {
+          final Object[] tuple = new Object[decl.arity()];
+          for (int i = 0; i < tuple.length; i++) {
+            tuple[i] =
+                convert(row.get(declToField[i]), decl.params.get(i).type);
           }
-          terms.add(new Constant(value, datalogType));
+          values.add(
+              tuple.length == 0
+                  ? Unit.INSTANCE
+                  : tuple.length == 1 ? tuple[0] : ImmutableList.copyOf(tuple));
         }
-        augmented.add(new Fact(new Atom(input.relationName, terms)));
       }
+
+      final Type type =
+          typeSystem.listType(
+              types.size() == 1 ? types.get(0) : typeSystem.tupleType(types));
+      env =
+          env.bind(
+              core.idPat(
+                  type, input.relationName, typeSystem.nameGenerator::inc),
+              values.build());
     }
+    return env;
+  }
 
-    return new Program(augmented);
+  /** Converts a value read from a file to a Datalog type. */
+  private static Object convert(Object value, String type) {
+    if (type.equals("int")) {
+      if (value instanceof Integer) {
+        return value;
+      }
+      try {
+        return Integer.parseInt(value.toString());
+      } catch (NumberFormatException e) {
+        throw new DatalogException(
+            format("Invalid value for int field: %s", value), e);
+      }
+    }
+    return value.toString();
   }
 }
 
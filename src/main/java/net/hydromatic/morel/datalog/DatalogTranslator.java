@@ -33,6 +33,7 @@ import net.hydromatic.morel.datalog.DatalogAst.Comparison;
 import net.hydromatic.morel.datalog.DatalogAst.Constant;
 import net.hydromatic.morel.datalog.DatalogAst.Declaration;
 import net.hydromatic.morel.datalog.DatalogAst.Fact;
+import net.hydromatic.morel.datalog.DatalogAst.Input;
 import net.hydromatic.morel.datalog.DatalogAst.Output;
 import net.hydromatic.morel.datalog.DatalogAst.Program;
 import net.hydromatic.morel.datalog.DatalogAst.Rule;
@@ -47,6 +48,8 @@ import net.hydromatic.morel.datalog.DatalogAst.Variable;
  *
  * <ul>
  *   <li>Facts-only relations &rarr; list literals ({@code val rel = [...]})
+ *   <li>Input relations &rarr; references to a value of the same name, which
+ *       the evaluator binds in the environment
  *   <li>Recursive rules &rarr; {@code Relational.iterate} with semi-naive
  *       evaluation
  *   <li>Non-recursive rules &rarr; {@code Relational.iterate} with empty seed
@@ -74,6 +77,12 @@ public class DatalogTranslator {
       declarationMap.put(decl.name, decl);
     }
 
+    // Relations read from files by .input directives
+    Set<String> inputRelations = new HashSet<>();
+    for (Input input : ast.getInputs()) {
+      inputRelations.add(input.relationName);
+    }
+
     // Group facts and rules by relation
     Map<String, List<Fact>> factsByRelation = new LinkedHashMap<>();
     Map<String, List<Rule>> rulesByRelation = new LinkedHashMap<>();
@@ -125,17 +134,23 @@ public class DatalogTranslator {
             rulesByRelation.getOrDefault(decl.name, new ArrayList<>());
 
         if (facts.isEmpty() && rules.isEmpty()) {
+          // Either empty, or input-only (bound in the environment)
           continue;
         }
 
+        final boolean input = inputRelations.contains(decl.name);
         if (rules.isEmpty()) {
           // Fact-only: val rel = [facts]
+          // or, if the relation is also an input, val rel = rel @ [facts]
           morel.append("  val ").append(decl.name).append(" = ");
+          if (input) {
+            morel.append(decl.name).append(" @ ");
+          }
           morel.append(translateFactsToList(decl, facts));
           morel.append("\n");
         } else {
           // Has rules: use Relational.iterate
-          appendRuleRelation(morel, decl, facts, rules, declarationMap);
+          appendRuleRelation(morel, decl, input, facts, rules, declarationMap);
         }
       }
 
@@ -162,7 +177,9 @@ public class DatalogTranslator {
         List<Rule> rules =
             rulesByRelation.getOrDefault(relName, new ArrayList<>());
 
-        if (!facts.isEmpty() || !rules.isEmpty()) {
+        if (!facts.isEmpty()
+            || !rules.isEmpty()
+            || inputRelations.contains(relName)) {
           if (decl.arity() <= 1) {
             // Arity 0 or 1: reference the list directly
             morel.append(relName);
@@ -204,10 +221,14 @@ public class DatalogTranslator {
   /**
    * Appends a relation defined by rules (and possibly facts) using {@code
    * Relational.iterate}.
+   *
+   * <p>If the relation is also an input, the seed includes the value of the
+   * same name that the evaluator binds in the environment.
    */
   private static void appendRuleRelation(
       StringBuilder morel,
       Declaration decl,
+      boolean input,
       List<Fact> facts,
       List<Rule> rules,
       Map<String, Declaration> declarationMap) {
@@ -218,6 +239,9 @@ public class DatalogTranslator {
     List<String> seedParts = new ArrayList<>();
     List<Rule> stepRules = new ArrayList<>();
 
+    if (input) {
+      seedParts.add(relName);
+    }
     if (!facts.isEmpty()) {
       seedParts.add(translateFactsToList(decl, facts));
     }
@@ -67,34 +67,33 @@ class Bound {
   public static List<Object> toRange(Bound lo, Bound hi) {
     if (lo.value == null) {
       if (hi.value == null) {
-        return ImmutableList.of(BuiltIn.Constructor.RANGE_ALL.constructor);
+        return DataValue.of(BuiltIn.Constructor.RANGE_ALL);
       }
-      return ImmutableList.of(
+      return DataValue.of(
           hi.inclusive
-              ? BuiltIn.Constructor.RANGE_AT_MOST.constructor
-              : BuiltIn.Constructor.RANGE_LESS_THAN.constructor,
+              ? BuiltIn.Constructor.RANGE_AT_MOST
+              : BuiltIn.Constructor.RANGE_LESS_THAN,
           hi.value);
     }
     if (hi.value == null) {
-      return ImmutableList.of(
+      return DataValue.of(
           lo.inclusive
-              ? BuiltIn.Constructor.RANGE_AT_LEAST.constructor
-              : BuiltIn.Constructor.RANGE_GREATER_THAN.constructor,
+              ? BuiltIn.Constructor.RANGE_AT_LEAST
+              : BuiltIn.Constructor.RANGE_GREATER_THAN,
           lo.value);
     }
     // Both bounds are finite.
     if (lo.inclusive && hi.inclusive && lo.value.equals(hi.value)) {
-      return ImmutableList.of(
-          BuiltIn.Constructor.RANGE_POINT.constructor, lo.value);
+      return DataValue.of(BuiltIn.Constructor.RANGE_POINT, lo.value);
     }
-    return ImmutableList.of(
+    return DataValue.of(
         lo.inclusive
             ? (hi.inclusive
-                ? BuiltIn.Constructor.RANGE_CLOSED.constructor
-                : BuiltIn.Constructor.RANGE_CLOSED_OPEN.constructor)
+                ? BuiltIn.Constructor.RANGE_CLOSED
+                : BuiltIn.Constructor.RANGE_CLOSED_OPEN)
             : (hi.inclusive
-                ? BuiltIn.Constructor.RANGE_OPEN_CLOSED.constructor
-                : BuiltIn.Constructor.RANGE_OPEN.constructor),
+                ? BuiltIn.Constructor.RANGE_OPEN_CLOSED
+                : BuiltIn.Constructor.RANGE_OPEN),
         ImmutableList.of(lo.value, hi.value));
   }
 
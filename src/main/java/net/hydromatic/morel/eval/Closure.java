@@ -31,6 +31,7 @@ import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Pos;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.util.ImmutablePairList;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Value that is sufficient for a function to bind its argument and evaluate its
@@ -105,7 +106,13 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
       if (bindRecurse(pat, argValue, envRef)) {
         final Code code = patCode.getValue();
         final Session session = (Session) envRef.env.getOpt(EvalEnv.SESSION);
-        return code.eval(new Stack(session, code.maxSlots()));
+        final Stack stack = Stack.forThread(session, code.maxSlots());
+        final int savedTop = stack.save();
+        try {
+          return code.eval(stack);
+        } finally {
+          stack.restore(savedTop);
+        }
       }
     }
     throw new Codes.MorelRuntimeException(Codes.BuiltInExn.BIND, pos);
@@ -233,6 +240,9 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
 
       case CON0_PAT:
         final Core.Con0Pat con0Pat = (Core.Con0Pat) pat;
+        if (argValue instanceof DataValue) {
+          return ((DataValue) argValue).is(con0Pat.tyCon);
+        }
         final List con0Value = (List) argValue;
         return con0Value.get(0).equals(con0Pat.tyCon);
 
@@ -242,6 +252,11 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
           final Variant value = (Variant) argValue;
           return Variant.bindConPat(envRef, value, conPat);
         }
+        if (argValue instanceof DataValue) {
+          final DataValue dataValue = (DataValue) argValue;
+          return dataValue.is(conPat.tyCon)
+              && bindRecurse(conPat.pat, dataValue.get(1), envRef);
+        }
         // Old-style [tag, payload] representation
         final List conValue = (List) argValue;
         return conValue.get(0).equals(conPat.tyCon)
@@ -288,13 +303,21 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
   public static class StackClosure
       implements Comparable<StackClosure>, Applicable, Applicable1 {
     /**
-     * The session for this closure, used to create a fresh {@link Stack} when
-     * called without a pre-existing one (see {@link #apply(Object)}). Is {@link
-     * Session#EMPTY} for closures created during compile-time constant
-     * evaluation.
+     * The session for this closure, used to find the stack of the current
+     * thread when called without a pre-existing one (see {@link
+     * #apply(Object)}). Is {@link Session#EMPTY} for closures created during
+     * compile-time constant evaluation.
      */
     final Session session;
 
+    /**
+     * The frame of global values of the stack on which this closure was created
+     * (for example, a frame that binds the keys of a group), or null if the
+     * stack used {@link Session#globalEnv}. The body is evaluated with this
+     * frame, whatever the frame of the caller.
+     */
+    final @Nullable GlobalFrame env;
+
     /**
      * Captured values from the outer stack frame, plus any rec-group peers
      * filled in by {@link #extendWithRecPeers}.
@@ -314,8 +337,12 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
     final Codes.StackMatchCode matchCode;
 
     public StackClosure(
-        Session session, Object[] captured, Codes.StackMatchCode matchCode) {
+        Session session,
+        @Nullable GlobalFrame env,
+        Object[] captured,
+        Codes.StackMatchCode matchCode) {
       this.session = session;
+      this.env = env;
       this.captured = captured;
       this.matchCode = matchCode;
     }
@@ -352,33 +379,44 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
      * Applies this closure to {@code argValue}, using the stack for local
      * variable storage.
      *
-     * <p>If the caller's slots array doesn't have room for this closure's
-     * capacity (e.g., a non-tail recursive call where the outer frame's
-     * bindings are still live), allocates a larger array so that pushBindings
-     * can store the new frame's variables without going out of bounds.
+     * <p>The frame is pushed above the caller's frame, and popped on return,
+     * even if the body throws. The frame does not refer to the caller's slots,
+     * so if the caller's stack doesn't have room for this closure's capacity
+     * (e.g., a non-tail recursive call where the outer frame's bindings are
+     * still live), the frame is pushed onto the {@link Stack#forThread stack of
+     * the current thread}, which grows as the recursion deepens.
      */
     @Override
     public Object apply(Stack stack, Object argValue) {
-      Stack evalStack = stack.ensureSize(matchCode.capacity);
-      int savedTop = evalStack.save();
-      Object result = applyOnce(evalStack, argValue);
-      while (result instanceof Codes.TailCall) {
-        final Codes.TailCall tc = (Codes.TailCall) result;
-        evalStack.restore(savedTop);
-        if (tc.fn instanceof StackClosure) {
-          final StackClosure nextFn = (StackClosure) tc.fn;
-          // Ensure slots array is large enough for the tail-called closure.
-          // The outer closure may have a smaller capacity than the tail-called
-          // closure needs (e.g., fn x => case x of head::tail => ...).
-          evalStack = evalStack.ensureSize(nextFn.matchCode.capacity);
-          result = nextFn.applyOnce(evalStack, tc.arg);
-        } else {
-          result = tc.fn.apply(evalStack, tc.arg);
-          break;
+      final Stack evalStack =
+          stack.reserve(matchCode.capacity)
+              ? stack
+              : Stack.forThread(session, matchCode.capacity);
+      final int savedTop = evalStack.save();
+      final @Nullable GlobalFrame savedEnv = evalStack.env();
+      try {
+        evalStack.setEnv(env);
+        Object result = applyOnce(evalStack, argValue);
+        while (result instanceof Codes.TailCall) {
+          final Codes.TailCall tc = (Codes.TailCall) result;
+          evalStack.restore(savedTop);
+          if (tc.fn instanceof StackClosure
+              && evalStack.reserve(((StackClosure) tc.fn).matchCode.capacity)) {
+            final StackClosure closure = (StackClosure) tc.fn;
+            evalStack.setEnv(closure.env);
+            result = closure.applyOnce(evalStack, tc.arg);
+          } else {
+            // Not a closure, or a closure that needs a larger stack (e.g., fn
+            // x => case x of head::tail => ...) than the outer closure.
+            result = tc.fn.apply(evalStack, tc.arg);
+            break;
+          }
         }
+        return result;
+      } finally {
+        evalStack.restore(savedTop);
+        evalStack.setEnv(savedEnv);
       }
-      evalStack.restore(savedTop);
-      return result;
     }
 
     private Object applyOnce(Stack stack, Object argValue) {
@@ -403,11 +441,21 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
      *
      * <p>Implements {@link Applicable1} so that built-in higher-order functions
      * (e.g. {@code List.map}) can call user-defined functions without needing
-     * to supply an {@link EvalEnv}.
+     * to supply an {@link EvalEnv}. The frame is pushed onto the stack of the
+     * current thread, so the call does not allocate a stack.
      */
     @Override
     public Object apply(Object argValue) {
-      return apply(new Stack(session, matchCode.capacity), argValue);
+      final Stack stack = Stack.forThread(session, matchCode.capacity);
+      final int savedTop = stack.save();
+      try {
+        return apply(stack, argValue);
+      } finally {
+        if (savedTop == 0) {
+          // Outermost call on this stack; let go of the values it pushed.
+          stack.clear();
+        }
+      }
     }
 
     /**
@@ -505,6 +553,9 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
 
         case CON0_PAT:
           final Core.Con0Pat con0Pat = (Core.Con0Pat) pat;
+          if (argValue instanceof DataValue) {
+            return ((DataValue) argValue).is(con0Pat.tyCon);
+          }
           final List con0Value = (List) argValue;
           return con0Value.get(0).equals(con0Pat.tyCon);
 
@@ -513,6 +564,11 @@ public class Closure implements Comparable<Closure>, Applicable, Applicable1 {
           if (argValue instanceof Variant) {
             return pushVariantConPat((Variant) argValue, conPat, stack);
           }
+          if (argValue instanceof DataValue) {
+            final DataValue dataValue = (DataValue) argValue;
+            return dataValue.is(conPat.tyCon)
+                && pushBindings(conPat.pat, dataValue.get(1), stack);
+          }
           final List conValue = (List) argValue;
           return conValue.get(0).equals(conPat.tyCon)
               && pushBindings(conPat.pat, conValue.get(1), stack);
@@ -0,0 +1,343 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+import net.hydromatic.morel.compile.BuiltIn;
+import org.codehaus.commons.compiler.CompileException;
+import org.codehaus.janino.ClassBodyEvaluator;
+
+/**
+ * Translates a tree of {@link Code} objects into a Java class, compiles the
+ * class using Janino, and returns an instance of it.
+ *
+ * <p>The interpreter evaluates a tree by calling {@link Code#eval(Stack)} on
+ * each node, boxing each intermediate value. The generated class evaluates the
+ * tree in a single method, keeps intermediate {@code int} and {@code bool}
+ * values unboxed, and applies integer arithmetic, comparisons, {@code andalso},
+ * {@code orelse} and {@code not} as Java operators, so that the JIT can inline
+ * across what were node boundaries. Calls to other built-in functions become
+ * direct calls to the function object.
+ *
+ * <p>A node that the generator does not understand is not translated; the
+ * generated code calls its {@code eval} method. If a tree contains no node that
+ * can be evaluated as a Java operator, {@link #generate} returns the tree
+ * unchanged.
+ *
+ * <p>Trees of the same shape generate the same source code, and the class
+ * compiled for each distinct source is cached.
+ */
+public abstract class CodeGenerator {
+  private CodeGenerator() {}
+
+  /** Name of each generated class. */
+  private static final String CLASS_NAME = "MorelGeneratedCode";
+
+  /** Constructors of generated classes, keyed by their source code. */
+  private static final LoadingCache<String, Constructor<?>> CACHE =
+      CacheBuilder.newBuilder()
+          .maximumSize(1_000)
+          .build(CacheLoader.from(CodeGenerator::compile));
+
+  /**
+   * Returns a {@link Code} that evaluates the same as {@code code} using a
+   * generated class, or {@code code} if there is nothing to gain.
+   *
+   * <p>The returned code describes itself as {@code code} does, so plans are
+   * the same whether or not code generation is enabled.
+   */
+  public static Code generate(Code code) {
+    final Translator translator = new Translator();
+    final Expr expr = translator.translate(code);
+    if (translator.operatorCount == 0) {
+      return code;
+    }
+    final Constructor<?> constructor = CACHE.getUnchecked(source(expr));
+    try {
+      return (Code) constructor.newInstance(translator.values.toArray(), code);
+    } catch (InstantiationException
+        | IllegalAccessException
+        | InvocationTargetException e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  /** Returns the body of a class that evaluates an expression. */
+  private static String source(Expr expr) {
+    return "private final Object[] v;\n"
+        + "private final net.hydromatic.morel.eval.Code code;\n"
+        + "public "
+        + CLASS_NAME
+        + "(Object[] v, net.hydromatic.morel.eval.Code code) {\n"
+        + "  this.v = v;\n"
+        + "  this.code = code;\n"
+        + "}\n"
+        + "public Object eval(net.hydromatic.morel.eval.Stack stack) {\n"
+        + "  return "
+        + expr.boxed()
+        + ";\n"
+        + "}\n"
+        + "public int maxSlots() {\n"
+        + "  return code.maxSlots();\n"
+        + "}\n"
+        + "public boolean isConstant() {\n"
+        + "  return code.isConstant();\n"
+        + "}\n"
+        + "public net.hydromatic.morel.eval.Describer describe(\n"
+        + "    net.hydromatic.morel.eval.Describer describer) {\n"
+        + "  return code.describe(describer);\n"
+        + "}\n";
+  }
+
+  /** Compiles the body of a class, and returns its constructor. */
+  private static Constructor<?> compile(String source) {
+    final ClassBodyEvaluator evaluator = new ClassBodyEvaluator();
+    evaluator.setClassName(CLASS_NAME);
+    evaluator.setImplementedInterfaces(new Class<?>[] {Code.class});
+    evaluator.setParentClassLoader(CodeGenerator.class.getClassLoader());
+    try {
+      evaluator.cook(source);
+      return evaluator.getClazz().getConstructor(Object[].class, Code.class);
+    } catch (CompileException | NoSuchMethodException e) {
+      throw new RuntimeException(
+          "Error while compiling generated Java code:\n" + source, e);
+    }
+  }
+
+  /** Kind of Java value that a generated expression produces. */
+  private enum Kind {
+    INT,
+    BOOL,
+    OBJECT
+  }
+
+  /** Java expression, and the kind of value it produces. */
+  private static class Expr {
+    final String java;
+    final Kind kind;
+
+    Expr(String java, Kind kind) {
+      this.java = requireNonNull(java);
+      this.kind = requireNonNull(kind);
+    }
+
+    /** Returns this expression as an {@code Object}. */
+    String boxed() {
+      switch (kind) {
+        case INT:
+          return "Integer.valueOf(" + java + ")";
+        case BOOL:
+          return "Boolean.valueOf(" + java + ")";
+        default:
+          return java;
+      }
+    }
+
+    /** Returns this expression as an {@code int}. */
+    String asInt() {
+      return kind == Kind.INT ? java : "((Integer) " + java + ").intValue()";
+    }
+
+    /** Returns this expression as a {@code boolean}. */
+    String asBool() {
+      return kind == Kind.BOOL
+          ? java
+          : "((Boolean) " + java + ").booleanValue()";
+    }
+  }
+
+  /** Translates a tree of {@link Code} into a Java expression. */
+  private static class Translator {
+    /**
+     * Values that the generated code reads from its {@code v} array: constants,
+     * function values, and codes that were not translated.
+     */
+    final List<Object> values = new ArrayList<>();
+
+    /** Number of nodes translated to Java operators. */
+    int operatorCount;
+
+    /** Returns an expression that reads a value from the {@code v} array. */
+    String value(Object value, String type) {
+      values.add(value);
+      return "((" + type + ") v[" + (values.size() - 1) + "])";
+    }
+
+    Expr translate(Code code) {
+      if (code instanceof Codes.StackCode) {
+        final int offset = ((Codes.StackCode) code).offset;
+        return new Expr("stack.slots[stack.top - " + offset + "]", Kind.OBJECT);
+      }
+      if (code instanceof Codes.ConstantCode) {
+        final Object value = ((Codes.ConstantCode) code).value;
+        if (value instanceof Integer) {
+          final int i = (Integer) value;
+          return new Expr(
+              i == Integer.MIN_VALUE ? "Integer.MIN_VALUE" : "(" + i + ")",
+              Kind.INT);
+        }
+        if (value instanceof Boolean) {
+          return new Expr(value.toString(), Kind.BOOL);
+        }
+        return new Expr(value(value, "Object"), Kind.OBJECT);
+      }
+      if (code instanceof Codes.AndAlsoCode) {
+        final Codes.AndAlsoCode andAlso = (Codes.AndAlsoCode) code;
+        return operator(
+            Kind.BOOL,
+            translate(andAlso.code0).asBool(),
+            " && ",
+            translate(andAlso.code1).asBool());
+      }
+      if (code instanceof Codes.OrElseCode) {
+        final Codes.OrElseCode orElse = (Codes.OrElseCode) code;
+        return operator(
+            Kind.BOOL,
+            translate(orElse.code0).asBool(),
+            " || ",
+            translate(orElse.code1).asBool());
+      }
+      if (code instanceof Codes.ApplyCode1) {
+        return translateApply1((Codes.ApplyCode1) code);
+      }
+      if (code instanceof Codes.ApplyCode2) {
+        return translateApply2((Codes.ApplyCode2) code);
+      }
+      if (code instanceof Codes.TupleCode) {
+        final StringBuilder b = new StringBuilder();
+        for (Code c : ((Codes.TupleCode) code).codes) {
+          b.append(b.length() == 0 ? "" : ", ").append(translate(c).boxed());
+        }
+        // Same representation as TupleCode.eval.
+        return new Expr(
+            "net.hydromatic.morel.eval.Tuple.wrap(new Object[] {" + b + "})",
+            Kind.OBJECT);
+      }
+      // Not translated; call the code.
+      return new Expr(
+          value(code, "net.hydromatic.morel.eval.Code") + ".eval(stack)",
+          Kind.OBJECT);
+    }
+
+    private Expr translateApply1(Codes.ApplyCode1 apply) {
+      final Expr arg = translate(apply.argCode0);
+      switch (Codes.builtIn(apply.fnValue)) {
+        case BOOL_NOT:
+          return operator(Kind.BOOL, "", "!", arg.asBool());
+        case INT_OP_NEGATE:
+          return operator(Kind.INT, "", "- ", arg.asInt());
+        default:
+          return new Expr(
+              value(apply.fnValue, "net.hydromatic.morel.eval.Applicable1")
+                  + ".apply("
+                  + arg.boxed()
+                  + ")",
+              Kind.OBJECT);
+      }
+    }
+
+    private Expr translateApply2(Codes.ApplyCode2 apply) {
+      final Expr a0 = translate(apply.argCode0);
+      final Expr a1 = translate(apply.argCode1);
+      final BuiltIn builtIn = Codes.builtIn(apply.fnValue);
+      switch (builtIn) {
+        case INT_OP_PLUS:
+          return operator(Kind.INT, a0.asInt(), " + ", a1.asInt());
+        case INT_OP_MINUS:
+          return operator(Kind.INT, a0.asInt(), " - ", a1.asInt());
+        case INT_OP_TIMES:
+          return operator(Kind.INT, a0.asInt(), " * ", a1.asInt());
+        case INT_OP_LT:
+        case INT_OP_LE:
+        case INT_OP_GT:
+        case INT_OP_GE:
+          return operator(
+              Kind.BOOL, a0.asInt(), comparison(builtIn), a1.asInt());
+        case OP_EQ:
+        case OP_NE:
+        case OP_LT:
+        case OP_LE:
+        case OP_GT:
+        case OP_GE:
+          // The generic comparison operators are polymorphic, but both
+          // arguments have the same type; if either is an 'int', both are.
+          if (a0.kind == Kind.INT || a1.kind == Kind.INT) {
+            return operator(
+                Kind.BOOL, a0.asInt(), comparison(builtIn), a1.asInt());
+          }
+          if ((a0.kind == Kind.BOOL || a1.kind == Kind.BOOL)
+              && (builtIn == BuiltIn.OP_EQ || builtIn == BuiltIn.OP_NE)) {
+            return operator(
+                Kind.BOOL, a0.asBool(), comparison(builtIn), a1.asBool());
+          }
+          break;
+        default:
+          break;
+      }
+      return new Expr(
+          value(apply.fnValue, "net.hydromatic.morel.eval.Applicable2")
+              + ".apply("
+              + a0.boxed()
+              + ", "
+              + a1.boxed()
+              + ")",
+          Kind.OBJECT);
+    }
+
+    /** Returns an expression that applies a Java operator. */
+    private Expr operator(Kind kind, String left, String op, String right) {
+      ++operatorCount;
+      return new Expr("(" + left + op + right + ")", kind);
+    }
+
+    /** Returns the Java operator for a comparison. */
+    private static String comparison(BuiltIn builtIn) {
+      switch (builtIn) {
+        case OP_EQ:
+          return " == ";
+        case OP_NE:
+          return " != ";
+        case INT_OP_LT:
+        case OP_LT:
+          return " < ";
+        case INT_OP_LE:
+        case OP_LE:
+          return " <= ";
+        case INT_OP_GT:
+        case OP_GT:
+          return " > ";
+        case INT_OP_GE:
+        case OP_GE:
+          return " >= ";
+        default:
+          throw new AssertionError(builtIn);
+      }
+    }
+  }
+}
+
+// End CodeGenerator.java
@@ -32,6 +32,9 @@ import static net.hydromatic.morel.util.Static.transform;
 import static net.hydromatic.morel.util.Static.transformEager;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -52,9 +55,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -88,7 +91,9 @@ import net.hydromatic.morel.type.TupleType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
 import net.hydromatic.morel.util.Characters;
+import net.hydromatic.morel.util.ChunkedList;
 import net.hydromatic.morel.util.ColorScheme;
+import net.hydromatic.morel.util.ConsList;
 import net.hydromatic.morel.util.ImmutablePairList;
 import net.hydromatic.morel.util.JavaVersion;
 import net.hydromatic.morel.util.Lindig;
@@ -2412,12 +2417,17 @@ public abstract class Codes {
     return new BaseApplicable2<Boolean, Applicable1, List>(builtIn) {
       @Override
       public Boolean apply(Applicable1 f, List list) {
-        for (Object o : list) {
-          if (!(Boolean) f.apply(o)) {
-            return false;
+        final Iterator iterator = list.iterator();
+        try {
+          while (iterator.hasNext()) {
+            if (!(Boolean) f.apply(iterator.next())) {
+              return false;
+            }
           }
+          return true;
+        } finally {
+          RowSinks.close(iterator);
         }
-        return true;
       }
     };
   }
@@ -2553,12 +2563,17 @@ public abstract class Codes {
     return new BaseApplicable2<Boolean, Applicable1, List>(builtIn) {
       @Override
       public Boolean apply(Applicable1 f, List list) {
-        for (Object o : list) {
-          if ((Boolean) f.apply(o)) {
-            return true;
+        final Iterator iterator = list.iterator();
+        try {
+          while (iterator.hasNext()) {
+            if ((Boolean) f.apply(iterator.next())) {
+              return true;
+            }
           }
+          return false;
+        } finally {
+          RowSinks.close(iterator);
         }
-        return false;
       }
     };
   }
@@ -2591,12 +2606,18 @@ public abstract class Codes {
         builtIn) {
       @Override
       public List apply(Applicable1<Boolean, Object> f, List list) {
-        for (Object o : list) {
-          if (f.apply(o)) {
-            return optionSome(o);
+        final Iterator iterator = list.iterator();
+        try {
+          while (iterator.hasNext()) {
+            final Object o = iterator.next();
+            if (f.apply(o)) {
+              return optionSome(o);
+            }
           }
+          return OPTION_NONE;
+        } finally {
+          RowSinks.close(iterator);
         }
-        return OPTION_NONE;
       }
     };
   }
@@ -2778,12 +2799,40 @@ public abstract class Codes {
   private static final Applicable1 LIST_LENGTH = length(BuiltIn.LIST_LENGTH);
 
   private static Applicable1 length(BuiltIn builtIn) {
-    return new BaseApplicable1<Integer, List>(builtIn) {
-      @Override
-      public Integer apply(List list) {
-        return list.size();
-      }
-    };
+    return new Length(builtIn);
+  }
+
+  /**
+   * Implements {@link #LIST_LENGTH}, {@link #BAG_LENGTH} and {@link
+   * #RELATIONAL_COUNT}.
+   */
+  private static class Length extends BaseApplicable1<Integer, List>
+      implements Accumulable {
+    Length(BuiltIn builtIn) {
+      super(builtIn);
+    }
+
+    @Override
+    public Integer apply(List list) {
+      return list.size();
+    }
+
+    @Override
+    public Accumulator accumulator() {
+      return new Accumulator() {
+        int count;
+
+        @Override
+        public void add(Object value) {
+          ++count;
+        }
+
+        @Override
+        public Object result() {
+          return count;
+        }
+      };
+    }
   }
 
   /** @see BuiltIn#LIST_MAP */
@@ -3377,6 +3426,10 @@ public abstract class Codes {
       new BaseApplicable2<List, Object, Iterable>(BuiltIn.OP_CONS) {
         @Override
         public List apply(Object e, Iterable iterable) {
+          if (iterable instanceof List) {
+            // O(1) if the tail is a ConsList or a non-empty ImmutableList.
+            return ConsList.of(e, (List) iterable);
+          }
           return ImmutableList.builder().add(e).addAll(iterable).build();
         }
       };
@@ -3403,7 +3456,7 @@ public abstract class Codes {
       new BaseApplicable2<Boolean, Object, List>(BuiltIn.OP_ELEM) {
         @Override
         public Boolean apply(Object a0, List a1) {
-          return a1.contains(a0);
+          return elemIndex(a1).contains(a1, a0);
         }
       };
 
@@ -3536,7 +3589,7 @@ public abstract class Codes {
       new BaseApplicable2<Boolean, Object, List>(BuiltIn.OP_NOT_ELEM) {
         @Override
         public Boolean apply(Object a0, List a1) {
-          return !a1.contains(a0);
+          return !elemIndex(a1).contains(a1, a0);
         }
       };
 
@@ -3710,7 +3763,7 @@ public abstract class Codes {
    *
    * @see #optionSome(Object)
    */
-  static final List OPTION_NONE = ImmutableList.of("NONE");
+  static final List OPTION_NONE = DataValue.of(BuiltIn.Constructor.OPTION_NONE);
 
   /**
    * Creates a value of {@code SOME v}.
@@ -3719,7 +3772,7 @@ public abstract class Codes {
    * @see #OPTION_NONE
    */
   static List optionSome(Object o) {
-    return ImmutableList.of(BuiltIn.Constructor.OPTION_SOME.constructor, o);
+    return DataValue.of(BuiltIn.Constructor.OPTION_SOME, o);
   }
 
   /** @see BuiltIn#OPTION_VAL_OF */
@@ -3749,15 +3802,15 @@ public abstract class Codes {
 
   /** @see BuiltIn.Constructor#ORDER_EQUAL */
   private static final List ORDER_EQUAL =
-      ImmutableList.of(BuiltIn.Constructor.ORDER_EQUAL.constructor);
+      DataValue.of(BuiltIn.Constructor.ORDER_EQUAL);
 
   /** @see BuiltIn.Constructor#ORDER_GREATER */
   private static final List ORDER_GREATER =
-      ImmutableList.of(BuiltIn.Constructor.ORDER_GREATER.constructor);
+      DataValue.of(BuiltIn.Constructor.ORDER_GREATER);
 
   /** @see BuiltIn.Constructor#ORDER_LESS */
   private static final List ORDER_LESS =
-      ImmutableList.of(BuiltIn.Constructor.ORDER_LESS.constructor);
+      DataValue.of(BuiltIn.Constructor.ORDER_LESS);
 
   /**
    * Converts the result of {@link Comparable#compareTo(Object)} to an {@code
@@ -4803,9 +4856,15 @@ public abstract class Codes {
         @Override
         public List apply(
             final List initialList, Applicable1<List, List> update) {
-          List list = initialList;
-          List newList = list;
-          final Set seen = new LinkedHashSet(list);
+          // The relation is append-only. Each iteration appends the
+          // genuinely new elements as a chunk, without copying the elements
+          // already in the relation, and "seen" is its distinct index; so
+          // the total cost is linear in the size of the fixed point.
+          final ChunkedList relation = new ChunkedList();
+          relation.add(initialList);
+          List list = relation.snapshot();
+          List newList = initialList;
+          final Set seen = new HashSet(initialList);
           for (; ; ) {
             List nextList = update.apply(FlatLists.of(list, newList));
             // Subtract already-seen elements (semi-naive evaluation).
@@ -4819,11 +4878,8 @@ public abstract class Codes {
             if (genuinelyNew.isEmpty()) {
               return list;
             }
-            list =
-                ImmutableList.builder()
-                    .addAll(list)
-                    .addAll(genuinelyNew)
-                    .build();
+            relation.add(genuinelyNew);
+            list = relation.snapshot();
             newList = genuinelyNew;
           }
         }
@@ -4852,7 +4908,8 @@ public abstract class Codes {
    * List.hd}.
    */
   private static class RelationalMinMax
-      extends BasePositionedApplicable1<Object, List> implements Typed {
+      extends BasePositionedApplicable1<Object, List>
+      implements Typed, Accumulable {
     /** Comparator for the element type; null until {@link #withType} is run. */
     private final @Nullable Comparator comparator;
 
@@ -4891,6 +4948,36 @@ public abstract class Codes {
           ? ordering.max(list)
           : ordering.min(list);
     }
+
+    @Override
+    public Accumulator accumulator() {
+      final Comparator comparator =
+          requireNonNull(this.comparator, "comparator");
+      // Like Ordering.max and Ordering.min, keep the first of several equal
+      // extreme values.
+      final int sign = builtIn == BuiltIn.RELATIONAL_MAX ? 1 : -1;
+      return new Accumulator() {
+        boolean empty = true;
+        @Nullable Object best;
+
+        @Override
+        public void add(Object value) {
+          //noinspection unchecked
+          if (empty || sign * comparator.compare(value, best) > 0) {
+            best = value;
+            empty = false;
+          }
+        }
+
+        @Override
+        public Object result() {
+          if (empty) {
+            throw new MorelRuntimeException(BuiltInExn.EMPTY, pos);
+          }
+          return requireNonNull(best);
+        }
+      };
+    }
   }
 
   /** @see BuiltIn#RELATIONAL_NON_EMPTY */
@@ -4923,13 +5010,20 @@ public abstract class Codes {
 
     @Override
     public Object apply(List list) {
-      if (list.isEmpty()) {
-        throw new MorelRuntimeException(BuiltInExn.EMPTY, pos);
-      }
-      if (list.size() > 1) {
-        throw new MorelRuntimeException(BuiltInExn.SIZE, pos);
+      // Read at most two elements; the list may be a lazy scan of a file.
+      final Iterator iterator = list.iterator();
+      try {
+        if (!iterator.hasNext()) {
+          throw new MorelRuntimeException(BuiltInExn.EMPTY, pos);
+        }
+        final Object o = iterator.next();
+        if (iterator.hasNext()) {
+          throw new MorelRuntimeException(BuiltInExn.SIZE, pos);
+        }
+        return o;
+      } finally {
+        RowSinks.close(iterator);
       }
-      return list.get(0);
     }
   }
 
@@ -6787,40 +6881,68 @@ public abstract class Codes {
   private static final Applicable1 Z_LIST = identity(BuiltIn.Z_LIST);
 
   /** Implements {@link #RELATIONAL_SUM} for type {@code int list}. */
-  private static final Applicable Z_SUM_INT =
-      new BaseApplicable1<Integer, List<? extends Number>>(BuiltIn.Z_SUM_INT) {
-        @Override
-        protected String name() {
-          return "Relational.sum$int";
-        }
+  private static final Applicable Z_SUM_INT = new Sum(BuiltIn.Z_SUM_INT);
 
-        @Override
-        public Integer apply(List<? extends Number> numbers) {
-          int sum = 0;
-          for (Number o : numbers) {
-            sum += o.intValue();
+  /** Implements {@link #RELATIONAL_SUM} for type {@code real list}. */
+  private static final Applicable Z_SUM_REAL = new Sum(BuiltIn.Z_SUM_REAL);
+
+  /** Implements {@link #Z_SUM_INT} and {@link #Z_SUM_REAL}. */
+  private static class Sum
+      extends BaseApplicable1<Object, List<? extends Number>>
+      implements Accumulable {
+    Sum(BuiltIn builtIn) {
+      super(builtIn);
+      checkArgument(
+          builtIn == BuiltIn.Z_SUM_INT || builtIn == BuiltIn.Z_SUM_REAL);
+    }
+
+    @Override
+    protected String name() {
+      return builtIn == BuiltIn.Z_SUM_INT
+          ? "Relational.sum$int"
+          : "Relational.sum$real";
+    }
+
+    @Override
+    public Object apply(List<? extends Number> numbers) {
+      final Accumulator accumulator = accumulator();
+      numbers.forEach(accumulator::add);
+      return accumulator.result();
+    }
+
+    @Override
+    public Accumulator accumulator() {
+      if (builtIn == BuiltIn.Z_SUM_INT) {
+        return new Accumulator() {
+          int sum;
+
+          @Override
+          public void add(Object value) {
+            sum += ((Number) value).intValue();
           }
-          return sum;
-        }
-      };
 
-  /** Implements {@link #RELATIONAL_SUM} for type {@code real list}. */
-  private static final Applicable Z_SUM_REAL =
-      new BaseApplicable1<Float, List<? extends Number>>(BuiltIn.Z_SUM_REAL) {
-        @Override
-        protected String name() {
-          return "Relational.sum$real";
-        }
+          @Override
+          public Object result() {
+            return sum;
+          }
+        };
+      } else {
+        return new Accumulator() {
+          float sum;
 
-        @Override
-        public Float apply(List<? extends Number> numbers) {
-          float sum = 0;
-          for (Number o : numbers) {
-            sum += o.floatValue();
+          @Override
+          public void add(Object value) {
+            sum += ((Number) value).floatValue();
           }
-          return sum;
-        }
-      };
+
+          @Override
+          public Object result() {
+            return sum;
+          }
+        };
+      }
+    }
+  }
 
   /** Implements the bag variant of {@link BuiltIn#TEST_OVER_COUNT}. */
   private static final Applicable Z_TEST_OVER_COUNT_BAG =
@@ -6993,14 +7115,317 @@ public abstract class Codes {
     return new TailApplyCode(fnValue, argCode);
   }
 
-  /** Generates the code for applying a function value to an argument. */
+  /**
+   * Generates the code for applying a function value to an argument.
+   *
+   * <p>If the function is an {@code int} or {@code real} operator, the code
+   * evaluates its argument without boxing; see {@link IntCode}.
+   */
   public static Code apply1(Applicable1 fnValue, Code argCode) {
-    return new ApplyCode1(fnValue, argCode);
+    switch (builtIn(fnValue)) {
+      case INT_ABS:
+        return new IntApplyCode1(fnValue, argCode) {
+          @Override
+          public int evalInt(Stack stack) {
+            final int i = intCode0.evalInt(stack);
+            if (i == Integer.MIN_VALUE) {
+              return (Integer) fnValue.apply(i); // throws Overflow
+            }
+            return Math.abs(i);
+          }
+        };
+      case INT_OP_NEGATE:
+        return new IntApplyCode1(fnValue, argCode) {
+          @Override
+          public int evalInt(Stack stack) {
+            return -intCode0.evalInt(stack);
+          }
+        };
+      case REAL_OP_NEGATE:
+        return new RealApplyCode1(fnValue, argCode) {
+          @Override
+          public float evalReal(Stack stack) {
+            return -realCode0.evalReal(stack);
+          }
+        };
+      default:
+        return new ApplyCode1(fnValue, argCode);
+    }
   }
 
-  /** Generates the code for applying a function value to two arguments. */
+  /**
+   * Generates the code for applying a function value to two arguments.
+   *
+   * <p>If the function is an {@code int} or {@code real} operator, the code
+   * evaluates its arguments without boxing; see {@link IntCode}.
+   */
   public static Code apply2(Applicable2 fnValue, Code argCode0, Code argCode1) {
-    return new ApplyCode2(fnValue, argCode0, argCode1);
+    switch (builtIn(fnValue)) {
+      case INT_DIV:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            final int i0 = intCode0.evalInt(stack);
+            final int i1 = intCode1.evalInt(stack);
+            if (i1 == 0) {
+              return (Integer) fnValue.apply(i0, i1); // throws Div
+            }
+            return Math.floorDiv(i0, i1);
+          }
+        };
+      case INT_MAX:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return Math.max(intCode0.evalInt(stack), intCode1.evalInt(stack));
+          }
+        };
+      case INT_MIN:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return Math.min(intCode0.evalInt(stack), intCode1.evalInt(stack));
+          }
+        };
+      case INT_MOD:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            final int i0 = intCode0.evalInt(stack);
+            final int i1 = intCode1.evalInt(stack);
+            if (i1 == 0) {
+              return (Integer) fnValue.apply(i0, i1); // throws Div
+            }
+            return Math.floorMod(i0, i1);
+          }
+        };
+      case INT_OP_MINUS:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return intCode0.evalInt(stack) - intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_PLUS:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return intCode0.evalInt(stack) + intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_TIMES:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return intCode0.evalInt(stack) * intCode1.evalInt(stack);
+          }
+        };
+      case INT_QUOT:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return intCode0.evalInt(stack) / intCode1.evalInt(stack);
+          }
+        };
+      case INT_REM:
+        return new IntApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public int evalInt(Stack stack) {
+            return intCode0.evalInt(stack) % intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_GE:
+      case INT_OP_GT:
+      case INT_OP_LE:
+      case INT_OP_LT:
+        return intCompare(fnValue, argCode0, argCode1);
+      case OP_ELEM:
+        return new ElemCode(fnValue, argCode0, argCode1, false);
+      case OP_NOT_ELEM:
+        return new ElemCode(fnValue, argCode0, argCode1, true);
+      case REAL_OP_MINUS:
+        return new RealApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public float evalReal(Stack stack) {
+            return realCode0.evalReal(stack) - realCode1.evalReal(stack);
+          }
+        };
+      case REAL_OP_PLUS:
+        return new RealApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public float evalReal(Stack stack) {
+            return realCode0.evalReal(stack) + realCode1.evalReal(stack);
+          }
+        };
+      case REAL_OP_TIMES:
+        return new RealApplyCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public float evalReal(Stack stack) {
+            return realCode0.evalReal(stack) * realCode1.evalReal(stack);
+          }
+        };
+      case REAL_OP_GE:
+        return new RealCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return realCode0.evalReal(stack) >= realCode1.evalReal(stack);
+          }
+        };
+      case REAL_OP_GT:
+        return new RealCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return realCode0.evalReal(stack) > realCode1.evalReal(stack);
+          }
+        };
+      case REAL_OP_LE:
+        return new RealCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return realCode0.evalReal(stack) <= realCode1.evalReal(stack);
+          }
+        };
+      case REAL_OP_LT:
+        return new RealCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return realCode0.evalReal(stack) < realCode1.evalReal(stack);
+          }
+        };
+      default:
+        return new ApplyCode2(fnValue, argCode0, argCode1);
+    }
+  }
+
+  /**
+   * Generates the code for {@code elem} or {@code notelem} whose collection,
+   * {@code argCode1}, has the same value every time that the code is evaluated.
+   *
+   * <p>The code builds an index of the collection when it is first evaluated,
+   * so the caller must generate new code for each execution of the enclosing
+   * query.
+   */
+  public static Code invariantElem(
+      Applicable2 fnValue, Code argCode0, Code argCode1) {
+    final BuiltIn builtIn = builtIn(fnValue);
+    checkArgument(
+        builtIn == BuiltIn.OP_ELEM || builtIn == BuiltIn.OP_NOT_ELEM,
+        "not elem: %s",
+        builtIn);
+    return new InvariantElemCode(
+        fnValue, argCode0, argCode1, builtIn == BuiltIn.OP_NOT_ELEM);
+  }
+
+  /**
+   * Generates the code for applying a function value to two arguments of a
+   * given type.
+   *
+   * <p>The polymorphic comparison operators, such as {@code =} and {@code <},
+   * box and compare their arguments as {@link Comparable} objects. If the
+   * arguments are {@code int}, generates code that compares them without
+   * boxing.
+   */
+  public static Code apply2(
+      Applicable2 fnValue, Code argCode0, Code argCode1, Type argType) {
+    if (argType == PrimitiveType.INT) {
+      switch (builtIn(fnValue)) {
+        case OP_EQ:
+        case OP_GE:
+        case OP_GT:
+        case OP_LE:
+        case OP_LT:
+        case OP_NE:
+          return intCompare(fnValue, argCode0, argCode1);
+        default:
+          break;
+      }
+    }
+    return apply2(fnValue, argCode0, argCode1);
+  }
+
+  /**
+   * Generates code that compares two {@code int} arguments without boxing. The
+   * function value must be an {@code int} comparison operator or one of the
+   * polymorphic comparison operators.
+   */
+  private static Code intCompare(
+      Applicable2 fnValue, Code argCode0, Code argCode1) {
+    switch (builtIn(fnValue)) {
+      case OP_EQ:
+        return new IntCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return intCode0.evalInt(stack) == intCode1.evalInt(stack);
+          }
+        };
+      case OP_NE:
+        return new IntCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return intCode0.evalInt(stack) != intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_GE:
+      case OP_GE:
+        return new IntCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return intCode0.evalInt(stack) >= intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_GT:
+      case OP_GT:
+        return new IntCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return intCode0.evalInt(stack) > intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_LE:
+      case OP_LE:
+        return new IntCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return intCode0.evalInt(stack) <= intCode1.evalInt(stack);
+          }
+        };
+      case INT_OP_LT:
+      case OP_LT:
+        return new IntCompareCode2(fnValue, argCode0, argCode1) {
+          @Override
+          public Object eval(Stack stack) {
+            return intCode0.evalInt(stack) < intCode1.evalInt(stack);
+          }
+        };
+      default:
+        throw new AssertionError(fnValue);
+    }
+  }
+
+  /**
+   * Returns code that evaluates {@code code}, whose value is an {@code int},
+   * without boxing if possible.
+   */
+  static IntCode asInt(Code code) {
+    return code instanceof IntCode ? (IntCode) code : new UnboxIntCode(code);
+  }
+
+  /**
+   * Returns code that evaluates {@code code}, whose value is a {@code real},
+   * without boxing if possible.
+   */
+  static RealCode asReal(Code code) {
+    return code instanceof RealCode ? (RealCode) code : new UnboxRealCode(code);
+  }
+
+  /**
+   * Returns the built-in function that a function value implements, or {@link
+   * BuiltIn#Z_VOID} if it is not a built-in function.
+   */
+  static BuiltIn builtIn(Object fnValue) {
+    return fnValue instanceof BaseApplicable
+        ? ((BaseApplicable) fnValue).builtIn
+        : BuiltIn.Z_VOID;
   }
 
   /** Generates the code for applying a function value to a 2-tuple argument. */
@@ -7045,8 +7470,8 @@ public abstract class Codes {
    * Returns an applicable that constructs an instance of a datatype.
    *
    * <p>For the {@code variant} datatype, creates a {@link Variant}. For other
-   * datatypes, creates a {@link List} with two elements [constructorName,
-   * value].
+   * datatypes, creates a {@link DataValue}, which is also a {@link List} with
+   * two elements [constructorName, value].
    */
   public static Applicable tyCon(Type dataType, String name) {
     requireNonNull(dataType);
@@ -7056,7 +7481,12 @@ public abstract class Codes {
         && ((DataType) dataType).name.equals("variant")) {
       return new ValueTyCon(name);
     }
-    // Standard datatype constructor - return List
+    // Standard datatype constructor - return DataValue
+    final int ordinal =
+        dataType instanceof DataType
+            ? DataValue.ordinal((DataType) dataType, name)
+            : -1;
+    final String name2 = name.intern();
     return new BaseApplicable1(BuiltIn.Z_TY_CON) {
       @Override
       protected String name() {
@@ -7065,7 +7495,7 @@ public abstract class Codes {
 
       @Override
       public Object apply(Object arg) {
-        return ImmutableList.of(name, arg);
+        return DataValue.of(ordinal, name2, arg);
       }
     };
   }
@@ -7120,18 +7550,18 @@ public abstract class Codes {
   }
 
   /**
-   * Creates a flat {@link Map} for {@link Session#globalEnv} from an evaluation
-   * environment, excluding the internal {@code $session} binding.
+   * Creates a {@link GlobalFrame} for {@link Session#globalEnv} from an
+   * evaluation environment, excluding the internal {@code $session} binding.
    */
-  public static Map<String, Object> globalEnvOf(EvalEnv evalEnv) {
-    final Map<String, Object> map = new HashMap<>();
+  public static GlobalFrame globalEnvOf(Session session, EvalEnv evalEnv) {
+    final GlobalFrame frame = new GlobalFrame(session.slotTable);
     evalEnv.visit(
         (k, v) -> {
           if (!EvalEnv.SESSION.equals(k)) {
-            map.put(k, v);
+            frame.put(k, v);
           }
         });
-    return map;
+    return frame;
   }
 
   /** Creates a compilation environment. */
@@ -7175,6 +7605,7 @@ public abstract class Codes {
       List<String> names,
       @Nullable Code argumentCode,
       int scanDepth) {
+    final GlobalFrame.Names globalNames = GlobalFrame.Names.of(names);
     return new Applicable() {
       @Override
       public Describer describe(Describer describer) {
@@ -7200,22 +7631,19 @@ public abstract class Codes {
                 s.restore(savedTop);
               }
             } else {
-              // Single env-based variable (scanDepth == 0): bind into
-              // session.globalEnv so GetCode can find it.
-              final Map<String, Object> env = stack.currentEnv();
-              final String varName = names.get(0);
-              final Object savedValue = env.get(varName);
+              // Single env-based variable (scanDepth == 0): bind in a child
+              // frame of the global environment so GetCode can find it.
+              final GlobalFrame env = stack.currentEnv();
+              final Object[] values = new Object[1];
+              final @Nullable GlobalFrame savedEnv = stack.env();
               try {
+                stack.setEnv(env.bind(globalNames.slots(env), values));
                 for (Object row : rows) {
-                  env.put(varName, row);
+                  values[0] = row;
                   argRows.add(argumentCode.eval(stack));
                 }
               } finally {
-                if (savedValue == null) {
-                  env.remove(varName);
-                } else {
-                  env.put(varName, savedValue);
-                }
+                stack.setEnv(savedEnv);
               }
             }
           } else if (envCount == 0) {
@@ -7231,44 +7659,36 @@ public abstract class Codes {
               s.restore(savedTop);
             }
           } else {
-            // Mixed: push stack-based vars, bind env-based vars per row via
-            // session.globalEnv so GetCode can find them.
+            // Mixed: push stack-based vars, bind env-based vars per row in a
+            // child frame of the global environment so GetCode can find them.
             Stack s = stack.ensureSize(scanDepth);
             final int savedTop = s.top;
-            final Map<String, Object> env = stack.currentEnv();
-            // Save old values for the env-based variables.
-            final int envCount2 = names.size() - scanDepth;
-            final Object[] savedEnvValues = new Object[envCount2];
-            for (int j = 0; j < envCount2; j++) {
-              savedEnvValues[j] = env.get(names.get(scanDepth + j));
-            }
+            final GlobalFrame env = s.currentEnv();
+            final int[] slots = globalNames.slots(env);
+            final Object[] values = new Object[envCount];
+            final @Nullable GlobalFrame savedEnv = s.env();
             try {
+              s.setEnv(
+                  env.bind(
+                      Arrays.copyOfRange(slots, scanDepth, names.size()),
+                      values));
               for (Object row : rows) {
                 final Object[] arr = (Object[]) row;
                 for (int j = 0; j < scanDepth; j++) {
                   s.push(arr[j]);
                 }
-                for (int j = scanDepth; j < names.size(); j++) {
-                  env.put(names.get(j), arr[j]);
-                }
+                System.arraycopy(arr, scanDepth, values, 0, envCount);
                 argRows.add(argumentCode.eval(s));
                 s.restore(savedTop);
               }
             } finally {
-              for (int j = 0; j < envCount2; j++) {
-                final Object saved = savedEnvValues[j];
-                if (saved == null) {
-                  env.remove(names.get(scanDepth + j));
-                } else {
-                  env.put(names.get(scanDepth + j), saved);
-                }
-              }
+              s.setEnv(savedEnv);
             }
           }
         } else if (names.size() != 1) {
           // Reconcile the fact that we internally represent rows as arrays when
           // we're buffering for "group", lists at other times.
-          argRows = transform(rows, row -> Arrays.asList((Object[]) row));
+          argRows = transform(rows, row -> Tuple.wrap((Object[]) row));
         } else {
           argRows = rows;
         }
@@ -7901,16 +8321,18 @@ public abstract class Codes {
       for (int i = 0; i < values.length; i++) {
         values[i] = codes.get(i).eval(stack);
       }
-      return Arrays.asList(values);
+      return Tuple.wrap(values);
     }
   }
 
   /** Code that retrieves the value of a variable from the environment. */
   private static class GetCode implements Code {
     private final String name;
+    private final GlobalFrame.Names names;
 
     GetCode(String name) {
       this.name = requireNonNull(name);
+      this.names = GlobalFrame.Names.of(ImmutableList.of(name));
     }
 
     @Override
@@ -7925,8 +8347,8 @@ public abstract class Codes {
 
     @Override
     public Object eval(Stack stack) {
-      final Map<String, Object> env = stack.currentEnv();
-      return env.get(name);
+      final GlobalFrame env = stack.currentEnv();
+      return env.get(names.slots(env)[0]);
     }
   }
 
@@ -7940,10 +8362,12 @@ public abstract class Codes {
    */
   private static class GlobalMarshalCode implements Code {
     final ImmutableList<String> names;
+    final GlobalFrame.Names globalNames;
     final Code body;
 
     GlobalMarshalCode(ImmutableList<String> names, Code body) {
       this.names = requireNonNull(names);
+      this.globalNames = GlobalFrame.Names.of(names);
       this.body = requireNonNull(body);
     }
 
@@ -7961,9 +8385,9 @@ public abstract class Codes {
     @Override
     public Object eval(Stack stack) {
       final int savedTop = stack.save();
-      final Map<String, Object> env = stack.currentEnv();
-      for (String name : names) {
-        stack.push(env.get(name));
+      final GlobalFrame env = stack.currentEnv();
+      for (int slot : globalNames.slots(env)) {
+        stack.push(env.get(slot));
       }
       final Object result = body.eval(stack);
       stack.restore(savedTop);
@@ -8112,8 +8536,8 @@ public abstract class Codes {
   }
 
   /** Code that implements a constant. */
-  private static class ConstantCode implements Code {
-    private final Object value;
+  static class ConstantCode implements Code {
+    final Object value;
 
     ConstantCode(Object value) {
       this.value = value;
@@ -8136,9 +8560,9 @@ public abstract class Codes {
   }
 
   /** Code that implements {@link #andAlso(Code, Code)}. */
-  private static class AndAlsoCode implements Code {
-    private final Code code0;
-    private final Code code1;
+  static class AndAlsoCode implements Code {
+    final Code code0;
+    final Code code1;
 
     AndAlsoCode(Code code0, Code code1) {
       this.code0 = code0;
@@ -8163,9 +8587,9 @@ public abstract class Codes {
   }
 
   /** Code that implements {@link #orElse(Code, Code)}. */
-  private static class OrElseCode implements Code {
-    private final Code code0;
-    private final Code code1;
+  static class OrElseCode implements Code {
+    final Code code0;
+    final Code code1;
 
     OrElseCode(Code code0, Code code1) {
       this.code0 = code0;
@@ -8478,7 +8902,8 @@ public abstract class Codes {
       for (int i = 0; i < captureOffsets.length; i++) {
         captured[i] = stack.slots[stack.top - captureOffsets[i]];
       }
-      return new Closure.StackClosure(stack.session, captured, this);
+      return new Closure.StackClosure(
+          stack.session, stack.env(), captured, this);
     }
   }
 
@@ -8511,9 +8936,9 @@ public abstract class Codes {
   }
 
   /** Applies an {@link Applicable1} to one {@link Code} argument. */
-  private static class ApplyCode1 implements Code {
-    private final Applicable1 fnValue;
-    private final Code argCode0;
+  static class ApplyCode1 implements Code {
+    final Applicable1 fnValue;
+    final Code argCode0;
 
     ApplyCode1(Applicable1 fnValue, Code argCode0) {
       this.fnValue = fnValue;
@@ -8538,10 +8963,10 @@ public abstract class Codes {
   }
 
   /** Applies an {@link BaseApplicable2} to two {@link Code} arguments. */
-  private static class ApplyCode2 implements Code {
-    private final Applicable2 fnValue;
-    private final Code argCode0;
-    private final Code argCode1;
+  static class ApplyCode2 implements Code {
+    final Applicable2 fnValue;
+    final Code argCode0;
+    final Code argCode1;
 
     ApplyCode2(Applicable2 fnValue, Code argCode0, Code argCode1) {
       this.fnValue = fnValue;
@@ -8567,6 +8992,354 @@ public abstract class Codes {
     }
   }
 
+  /**
+   * Applies an {@code int} operator to one argument, evaluating it without
+   * boxing.
+   */
+  private abstract static class IntApplyCode1 extends ApplyCode1
+      implements IntCode {
+    final IntCode intCode0;
+
+    IntApplyCode1(Applicable1 fnValue, Code argCode0) {
+      super(fnValue, argCode0);
+      this.intCode0 = asInt(argCode0);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      return evalInt(stack);
+    }
+  }
+
+  /**
+   * Applies a {@code real} operator to one argument, evaluating it without
+   * boxing.
+   */
+  private abstract static class RealApplyCode1 extends ApplyCode1
+      implements RealCode {
+    final RealCode realCode0;
+
+    RealApplyCode1(Applicable1 fnValue, Code argCode0) {
+      super(fnValue, argCode0);
+      this.realCode0 = asReal(argCode0);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      return evalReal(stack);
+    }
+  }
+
+  /**
+   * Applies an {@code int} operator to two arguments, evaluating them without
+   * boxing.
+   */
+  private abstract static class IntApplyCode2 extends ApplyCode2
+      implements IntCode {
+    final IntCode intCode0;
+    final IntCode intCode1;
+
+    IntApplyCode2(Applicable2 fnValue, Code argCode0, Code argCode1) {
+      super(fnValue, argCode0, argCode1);
+      this.intCode0 = asInt(argCode0);
+      this.intCode1 = asInt(argCode1);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      return evalInt(stack);
+    }
+  }
+
+  /**
+   * Applies a {@code real} operator to two arguments, evaluating them without
+   * boxing.
+   */
+  private abstract static class RealApplyCode2 extends ApplyCode2
+      implements RealCode {
+    final RealCode realCode0;
+    final RealCode realCode1;
+
+    RealApplyCode2(Applicable2 fnValue, Code argCode0, Code argCode1) {
+      super(fnValue, argCode0, argCode1);
+      this.realCode0 = asReal(argCode0);
+      this.realCode1 = asReal(argCode1);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      return evalReal(stack);
+    }
+  }
+
+  /**
+   * Compares two {@code int} arguments, evaluating them without boxing.
+   * Subclasses override {@link #eval}; the {@link Boolean} result is one of two
+   * cached instances, so is not allocated.
+   */
+  private abstract static class IntCompareCode2 extends ApplyCode2 {
+    final IntCode intCode0;
+    final IntCode intCode1;
+
+    IntCompareCode2(Applicable2 fnValue, Code argCode0, Code argCode1) {
+      super(fnValue, argCode0, argCode1);
+      this.intCode0 = asInt(argCode0);
+      this.intCode1 = asInt(argCode1);
+    }
+
+    @Override
+    public abstract Object eval(Stack stack);
+  }
+
+  /** Compares two {@code real} arguments, evaluating them without boxing. */
+  private abstract static class RealCompareCode2 extends ApplyCode2 {
+    final RealCode realCode0;
+    final RealCode realCode1;
+
+    RealCompareCode2(Applicable2 fnValue, Code argCode0, Code argCode1) {
+      super(fnValue, argCode0, argCode1);
+      this.realCode0 = asReal(argCode0);
+      this.realCode1 = asReal(argCode1);
+    }
+
+    @Override
+    public abstract Object eval(Stack stack);
+  }
+
+  /**
+   * Evaluates code whose value is a boxed {@link Integer}, and unboxes it. It
+   * describes itself as the code it wraps.
+   */
+  private static class UnboxIntCode implements IntCode {
+    private final Code code;
+
+    UnboxIntCode(Code code) {
+      this.code = requireNonNull(code);
+    }
+
+    @Override
+    public int maxSlots() {
+      return code.maxSlots();
+    }
+
+    @Override
+    public boolean isConstant() {
+      return code.isConstant();
+    }
+
+    @Override
+    public int evalInt(Stack stack) {
+      return (Integer) code.eval(stack);
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return code.describe(describer);
+    }
+  }
+
+  /**
+   * Evaluates code whose value is a boxed {@link Float}, and unboxes it. It
+   * describes itself as the code it wraps.
+   */
+  private static class UnboxRealCode implements RealCode {
+    private final Code code;
+
+    UnboxRealCode(Code code) {
+      this.code = requireNonNull(code);
+    }
+
+    @Override
+    public int maxSlots() {
+      return code.maxSlots();
+    }
+
+    @Override
+    public boolean isConstant() {
+      return code.isConstant();
+    }
+
+    @Override
+    public float evalReal(Stack stack) {
+      return (Float) code.eval(stack);
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return code.describe(describer);
+    }
+  }
+
+  /**
+   * Minimum size of a collection for which {@code elem} and {@code notelem}
+   * build a hash index; for smaller collections, a scan is cheaper.
+   */
+  private static final int ELEM_INDEX_MIN_SIZE = 16;
+
+  /**
+   * Hash indexes of large collections that have been searched by {@code elem}
+   * and {@code notelem}. Keys are weak, and therefore compared by identity; an
+   * index does not reference its collection, so does not keep it alive.
+   */
+  private static final LoadingCache<List<Object>, ElemIndex> ELEM_INDEXES =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .maximumSize(64)
+          .build(CacheLoader.from(ElemIndex::create));
+
+  /**
+   * Returns an index of the elements of a collection, for {@code elem} and
+   * {@code notelem}.
+   *
+   * <p>The index of a small collection, or of a collection that may change
+   * (such as a relation backed by a database table, or the rows of a data file
+   * that is re-read when the file changes), scans the collection.
+   */
+  @SuppressWarnings("unchecked")
+  private static ElemIndex elemIndex(List list) {
+    if (list.size() < ELEM_INDEX_MIN_SIZE
+        || list instanceof RelList
+        || list instanceof Files.DataList) {
+      return ElemIndex.SCAN;
+    }
+    return ELEM_INDEXES.getUnchecked(list);
+  }
+
+  /**
+   * Index for testing whether a value is an element of a collection.
+   *
+   * <p>Morel values are immutable, so once built, an index is valid for as long
+   * as its collection is.
+   */
+  private static class ElemIndex {
+    /** Index that scans the collection. */
+    static final ElemIndex SCAN = new ElemIndex(null);
+
+    /**
+     * Hash set of the elements, or null if the index scans the collection.
+     *
+     * <p>A hash set gives the same answers as {@link List#contains}, which
+     * tests {@link Object#equals}, if {@code hashCode} is consistent with
+     * {@code equals} for every element. That is true for the values that
+     * represent {@code int}, {@code real} (where NaN equals NaN and 0.0 does
+     * not equal ~0.0, as in {@code =}), {@code string}, and records and tuples
+     * of them, but not for {@link Variant}, so a collection that contains a
+     * variant is scanned.
+     */
+    private final @Nullable Set<Object> set;
+
+    private ElemIndex(@Nullable Set<Object> set) {
+      this.set = set;
+    }
+
+    static ElemIndex create(List<Object> list) {
+      final Set<Object> set = new HashSet<>();
+      for (Object o : list) {
+        if (!isHashable(o)) {
+          return SCAN;
+        }
+        set.add(o);
+      }
+      return new ElemIndex(set);
+    }
+
+    private static boolean isHashable(Object o) {
+      if (o instanceof Variant) {
+        return false;
+      }
+      if (o instanceof List) {
+        for (Object o2 : (List<?>) o) {
+          if (!isHashable(o2)) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
+
+    /** Returns whether {@code list}, the collection, contains a value. */
+    boolean contains(List<?> list, Object o) {
+      return set != null ? set.contains(o) : list.contains(o);
+    }
+  }
+
+  /**
+   * Code that implements {@code elem} or {@code notelem}.
+   *
+   * <p>If the collection is large, the code finds the collection's index in a
+   * cache. The compiler generates {@link InvariantElemCode} if it knows that
+   * the collection is loop-invariant.
+   */
+  private static class ElemCode implements Code {
+    final Applicable2 fnValue;
+    final Code argCode0;
+    final Code argCode1;
+    final boolean negate;
+
+    ElemCode(
+        Applicable2 fnValue, Code argCode0, Code argCode1, boolean negate) {
+      this.fnValue = fnValue;
+      this.argCode0 = argCode0;
+      this.argCode1 = argCode1;
+      this.negate = negate;
+    }
+
+    @Override
+    public int maxSlots() {
+      return maxOf(argCode0, argCode1);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      final Object element = argCode0.eval(stack);
+      final List list = (List) argCode1.eval(stack);
+      return elemIndex(list).contains(list, element) != negate;
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "apply2",
+          d -> d.arg("fnValue", fnValue).arg("", argCode0).arg("", argCode1));
+    }
+  }
+
+  /**
+   * Code that implements {@code elem} or {@code notelem} whose collection is
+   * loop-invariant, say {@code depts} in {@code from e in emps where e.deptno
+   * elem depts}.
+   *
+   * <p>The first evaluation evaluates the collection and builds its index;
+   * subsequent evaluations only evaluate the element. Each execution of the
+   * query creates its own instance.
+   */
+  private static class InvariantElemCode extends ElemCode {
+    private @Nullable List list;
+    private @Nullable ElemIndex index;
+
+    InvariantElemCode(
+        Applicable2 fnValue, Code argCode0, Code argCode1, boolean negate) {
+      super(fnValue, argCode0, argCode1, negate);
+    }
+
+    @Override
+    public Object eval(Stack stack) {
+      final Object element = argCode0.eval(stack);
+      @Nullable List list = this.list;
+      @Nullable ElemIndex index = this.index;
+      if (list == null || index == null) {
+        list = (List) argCode1.eval(stack);
+        index =
+            list.size() < ELEM_INDEX_MIN_SIZE
+                ? ElemIndex.SCAN
+                : ElemIndex.create(list);
+        this.list = list;
+        this.index = index;
+      }
+      return index.contains(list, element) != negate;
+    }
+  }
+
   /** Applies an {@link Applicable2} to an argument that yields a 2-tuple. */
   private static class ApplyCode2Tuple implements Code {
     private final Applicable2 fnValue;
@@ -8881,6 +9654,30 @@ public abstract class Codes {
     Applicable withType(TypeSystem typeSystem, Type type);
   }
 
+  /**
+   * Aggregate function that can be computed incrementally, one value at a time,
+   * rather than by applying it to a list of all values.
+   *
+   * <p>A {@code group} step uses accumulators to evaluate such aggregates as
+   * rows arrive, and therefore does not need to buffer rows.
+   */
+  public interface Accumulable extends Applicable {
+    /** Creates an accumulator, with no values, for one group. */
+    Accumulator accumulator();
+  }
+
+  /** Running state of an {@link Accumulable} aggregate function. */
+  public interface Accumulator {
+    /** Adds a value. */
+    void add(Object value);
+
+    /**
+     * Returns the value of the aggregate function applied to the values added
+     * so far.
+     */
+    Object result();
+  }
+
   /** Implementation of {@link Applicable} that stores a {@link BuiltIn}. */
   abstract static class BaseApplicable implements Applicable {
     protected final BuiltIn builtIn;
@@ -26,6 +26,7 @@ import com.google.common.base.Suppliers;
 import com.google.common.collect.ImmutableMap;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import net.hydromatic.morel.type.DataType;
@@ -160,8 +161,25 @@ public class Comparators {
                   (name, t) -> b.add(name, Ord.of(b.size(), comparatorFor(t))));
           final ImmutableMap<String, Ord<Comparator>> constructorComparators =
               b.toImmutableMap();
+          final Comparator[] comparators =
+              b.rightList().stream().map(o -> o.e).toArray(Comparator[]::new);
           return (Comparator<List>)
               (list1, list2) -> {
+                if (list1 instanceof DataValue
+                    && list2 instanceof DataValue
+                    && ((DataValue) list1).ordinal >= 0
+                    && ((DataValue) list2).ordinal >= 0) {
+                  // Compare ordinals, without looking up names.
+                  final DataValue v1 = (DataValue) list1;
+                  final DataValue v2 = (DataValue) list2;
+                  if (v1.ordinal != v2.ordinal) {
+                    return Integer.compare(v1.ordinal, v2.ordinal);
+                  }
+                  final Object arg1 = v1.arg();
+                  return arg1 == null
+                      ? 0
+                      : comparators[v1.ordinal].compare(arg1, v2.arg());
+                }
                 final String s1 = (String) list1.get(0);
                 final String s2 = (String) list2.get(0);
                 if (s1.equals(s2)) {
@@ -194,19 +212,19 @@ public class Comparators {
     private Comparator<List> listComparator(Type elementType) {
       final Comparator<Object> elementComparator =
           (Comparator<Object>) comparatorFor(elementType);
+      // Iterate rather than call List.get, which is not O(1) for all lists
+      // (for example, ConsList).
       return (list1, list2) -> {
-        final int n1 = list1.size();
-        final int n2 = list2.size();
-        final int n = Math.min(n1, n2);
-        for (int i = 0; i < n; i++) {
-          final Object element0 = list1.get(i);
-          final Object element1 = list2.get(i);
-          final int c = elementComparator.compare(element0, element1);
+        final Iterator iterator1 = list1.iterator();
+        final Iterator iterator2 = list2.iterator();
+        while (iterator1.hasNext() && iterator2.hasNext()) {
+          final int c =
+              elementComparator.compare(iterator1.next(), iterator2.next());
           if (c != 0) {
             return c;
           }
         }
-        return Integer.compare(n1, n2);
+        return Boolean.compare(iterator1.hasNext(), iterator2.hasNext());
       };
     }
 
@@ -0,0 +1,179 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.Objects;
+import java.util.RandomAccess;
+import net.hydromatic.morel.compile.BuiltIn;
+import net.hydromatic.morel.type.DataType;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Value of a datatype, such as {@code SOME 1} or {@code LESS}.
+ *
+ * <p>Holds the ordinal of its constructor within its datatype, the name of the
+ * constructor, and the argument of the constructor, if it has one. Comparing
+ * two values of the same datatype compares their ordinals, rather than looking
+ * up their constructor names.
+ *
+ * <p>For compatibility with code that does not know about this class, a
+ * datatype value is also a {@link List}: {@code [name]} if the constructor has
+ * no argument, otherwise {@code [name, argument]}. It is equal to, and has the
+ * same hash code as, any other list with the same elements.
+ */
+public final class DataValue extends AbstractList<Object>
+    implements RandomAccess {
+  /**
+   * Ordinal of each built-in constructor within its datatype, indexed by {@link
+   * BuiltIn.Constructor#ordinal()}.
+   */
+  private static final int[] BUILT_IN_ORDINALS = builtInOrdinals();
+
+  /** Ordinal of the constructor within its datatype. */
+  public final int ordinal;
+
+  /** Name of the constructor. */
+  public final String constructor;
+
+  /** Argument of the constructor, or null if it has no argument. */
+  private final @Nullable Object arg;
+
+  /** Hash code, or 0 if not yet computed. */
+  private int hash;
+
+  private DataValue(int ordinal, String constructor, @Nullable Object arg) {
+    this.ordinal = ordinal;
+    this.constructor = requireNonNull(constructor);
+    this.arg = arg;
+  }
+
+  /** Creates a value of a constructor that has no argument. */
+  public static DataValue of(int ordinal, String constructor) {
+    return new DataValue(ordinal, constructor, null);
+  }
+
+  /** Creates a value of a constructor that has an argument. */
+  public static DataValue of(int ordinal, String constructor, Object arg) {
+    return new DataValue(ordinal, constructor, requireNonNull(arg));
+  }
+
+  /** Creates a value of a built-in constructor that has no argument. */
+  public static DataValue of(BuiltIn.Constructor constructor) {
+    return of(ordinal(constructor), constructor.constructor);
+  }
+
+  /** Creates a value of a built-in constructor that has an argument. */
+  public static DataValue of(BuiltIn.Constructor constructor, Object arg) {
+    return of(ordinal(constructor), constructor.constructor, arg);
+  }
+
+  /** Returns the ordinal of a built-in constructor within its datatype. */
+  public static int ordinal(BuiltIn.Constructor constructor) {
+    return BUILT_IN_ORDINALS[constructor.ordinal()];
+  }
+
+  /**
+   * Returns the ordinal of a constructor within a datatype, or -1 if the
+   * datatype has no such constructor.
+   *
+   * <p>Ordinals follow the order of {@link DataType#typeConstructors}, which is
+   * also the order in which {@link Comparators} sorts values.
+   */
+  public static int ordinal(DataType dataType, String constructor) {
+    int i = 0;
+    for (String name : dataType.typeConstructors.keySet()) {
+      if (name.equals(constructor)) {
+        return i;
+      }
+      ++i;
+    }
+    return -1;
+  }
+
+  private static int[] builtInOrdinals() {
+    final int[] ordinals = new int[BuiltIn.Constructor.values().length];
+    for (BuiltIn.Datatype datatype : BuiltIn.Datatype.values()) {
+      final List<BuiltIn.Constructor> constructors = datatype.constructors();
+      for (int i = 0; i < constructors.size(); i++) {
+        ordinals[constructors.get(i).ordinal()] = i;
+      }
+    }
+    return ordinals;
+  }
+
+  /** Returns whether this value was created by a given constructor. */
+  public boolean is(String constructor) {
+    // Constructor names are usually the same String object.
+    return this.constructor == constructor
+        || this.constructor.equals(constructor);
+  }
+
+  /** Returns the argument of the constructor, or null if it has none. */
+  public @Nullable Object arg() {
+    return arg;
+  }
+
+  @Override
+  public Object get(int index) {
+    if (index == 0) {
+      return constructor;
+    }
+    if (index == 1 && arg != null) {
+      return arg;
+    }
+    throw new IndexOutOfBoundsException("index " + index);
+  }
+
+  @Override
+  public int size() {
+    return arg == null ? 1 : 2;
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      // Same as List.hashCode.
+      h = 31 + constructor.hashCode();
+      if (arg != null) {
+        h = 31 * h + arg.hashCode();
+      }
+      hash = h;
+    }
+    return h;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (o instanceof DataValue) {
+      final DataValue that = (DataValue) o;
+      return is(that.constructor) && Objects.equals(this.arg, that.arg);
+    }
+    return super.equals(o);
+  }
+}
+
+// End DataValue.java
@@ -374,25 +374,33 @@ public class Discretes {
       // In descending order, the successor is the predecessor in the inner
       // order.
       final Object p = inner.prev(((List<?>) v).get(1));
-      return p == null ? null : ImmutableList.of("DESC", p);
+      return p == null
+          ? null
+          : DataValue.of(BuiltIn.Constructor.DESCENDING_DESC, p);
     }
 
     @Override
     public @Nullable Object prev(Object v) {
       final Object n = inner.next(((List<?>) v).get(1));
-      return n == null ? null : ImmutableList.of("DESC", n);
+      return n == null
+          ? null
+          : DataValue.of(BuiltIn.Constructor.DESCENDING_DESC, n);
     }
 
     @Override
     public @Nullable Object minValue() {
       final Object max = inner.maxValue();
-      return max == null ? null : ImmutableList.of("DESC", max);
+      return max == null
+          ? null
+          : DataValue.of(BuiltIn.Constructor.DESCENDING_DESC, max);
     }
 
     @Override
     public @Nullable Object maxValue() {
       final Object min = inner.minValue();
-      return min == null ? null : ImmutableList.of("DESC", min);
+      return min == null
+          ? null
+          : DataValue.of(BuiltIn.Constructor.DESCENDING_DESC, min);
     }
   }
 
@@ -439,14 +447,13 @@ public class Discretes {
     @Override
     public @Nullable Object next(Object v) {
       final List<?> list = (List<?>) v;
-      final String name = (String) list.get(0);
-      final int i = ctorNames.indexOf(name);
+      final int i = ordinal(list);
       final Optional<Discrete<Object>> d = ctorDiscretes.get(i);
       if (d.isPresent()) {
         // Unary constructor: try to advance its argument.
         final Object next = d.get().next(list.get(1));
         if (next != null) {
-          return ImmutableList.of(name, next);
+          return DataValue.of(i, ctorNames.get(i), next);
         }
       }
       // Move to the first value of the next constructor.
@@ -456,14 +463,13 @@ public class Discretes {
     @Override
     public @Nullable Object prev(Object v) {
       final List<?> list = (List<?>) v;
-      final String name = (String) list.get(0);
-      final int i = ctorNames.indexOf(name);
+      final int i = ordinal(list);
       final Optional<Discrete<Object>> d = ctorDiscretes.get(i);
       if (d.isPresent()) {
         // Unary constructor: try to retreat its argument.
         final Object prev = d.get().prev(list.get(1));
         if (prev != null) {
-          return ImmutableList.of(name, prev);
+          return DataValue.of(i, ctorNames.get(i), prev);
         }
       }
       // Move to the last value of the previous constructor.
@@ -480,6 +486,14 @@ public class Discretes {
       return lastOf(ctorNames.size() - 1);
     }
 
+    /** Returns the index of the constructor of a value. */
+    private int ordinal(List<?> list) {
+      if (list instanceof DataValue && ((DataValue) list).ordinal >= 0) {
+        return ((DataValue) list).ordinal;
+      }
+      return ctorNames.indexOf((String) list.get(0));
+    }
+
     /** Returns the minimum value starting at constructor index {@code i}. */
     private @Nullable Object firstOf(int i) {
       if (i >= ctorNames.size()) {
@@ -487,11 +501,11 @@ public class Discretes {
       }
       final Optional<Discrete<Object>> d = ctorDiscretes.get(i);
       if (!d.isPresent()) {
-        return ImmutableList.of(ctorNames.get(i));
+        return DataValue.of(i, ctorNames.get(i));
       }
       final Object min = d.get().minValue();
       return min != null
-          ? ImmutableList.of(ctorNames.get(i), min)
+          ? DataValue.of(i, ctorNames.get(i), min)
           : firstOf(i + 1);
     }
 
@@ -502,11 +516,11 @@ public class Discretes {
       }
       final Optional<Discrete<Object>> d = ctorDiscretes.get(i);
       if (!d.isPresent()) {
-        return ImmutableList.of(ctorNames.get(i));
+        return DataValue.of(i, ctorNames.get(i));
       }
       final Object max = d.get().maxValue();
       return max != null
-          ? ImmutableList.of(ctorNames.get(i), max)
+          ? DataValue.of(i, ctorNames.get(i), max)
           : lastOf(i - 1);
     }
   }
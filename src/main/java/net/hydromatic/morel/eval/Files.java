@@ -18,6 +18,8 @@
  */
 package net.hydromatic.morel.eval;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.nio.file.Files.newInputStream;
 import static java.util.Objects.requireNonNull;
 import static org.apache.calcite.util.Util.first;
@@ -27,14 +29,25 @@ import com.google.common.collect.ImmutableSortedMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.AbstractList;
-import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.SortedMap;
 import java.util.TreeMap;
-import java.util.function.Function;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.GZIPInputStream;
 import net.hydromatic.morel.type.Keys;
 import net.hydromatic.morel.type.PrimitiveType;
@@ -51,14 +64,39 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 public class Files {
   private Files() {}
 
+  /**
+   * Size of the window by which a CSV file is mapped into memory. Most files
+   * are mapped in one window.
+   */
+  static final long MAP_SIZE = 1L << 30;
+
+  /**
+   * Size of the largest CSV file whose rows are cached after a scan has read
+   * all of them. Larger files are read each time they are scanned, so that a
+   * scan does not need memory proportional to the size of the file; but are
+   * cached if an operation needs the whole list.
+   */
+  static final long CACHE_SIZE = 1L << 26;
+
   /** Creates a file (or directory). Never returns null. */
   // lint:skip 1
   public static File create(java.io.File ioFile) {
-    return createUnknown(null, ioFile).expand();
+    return create(ioFile, new Cache());
+  }
+
+  /**
+   * Creates a file (or directory) whose data files read their contents via a
+   * given cache. Never returns null.
+   */
+  // lint:skip 1
+  public static File create(java.io.File ioFile, Cache cache) {
+    return createUnknown(null, ioFile, cache).expand();
   }
 
   static UnknownFile createUnknown(
-      @Nullable Directory directory, java.io.File ioFile) { // lint:skip
+      @Nullable Directory directory,
+      java.io.File ioFile, // lint:skip
+      Cache cache) {
     FileType fileType;
     if (ioFile.isDirectory()) {
       fileType = FileType.DIRECTORY;
@@ -72,9 +110,9 @@ public class Files {
       }
     }
     if (directory != null) {
-      return new UnknownChildFile(directory, ioFile, fileType);
+      return new UnknownChildFile(directory, ioFile, fileType, cache);
     } else {
-      return new UnknownFile(ioFile, fileType);
+      return new UnknownFile(ioFile, fileType, cache);
     }
   }
 
@@ -123,19 +161,17 @@ public class Files {
     return nameTypes;
   }
 
-  /**
-   * Creates a function that converts a string field value to the desired type.
-   */
-  static Function<String, Object> parser(Type.Key type) {
+  /** Returns the type of field that holds values of a given type. */
+  static FieldType fieldType(Type.Key type) {
     switch (type.op) {
       case DATA_TYPE:
         switch (type.toString()) {
           case "int":
-            return s -> s.equals("NULL") ? 0 : Integer.parseInt(s);
+            return FieldType.INT;
           case "real":
-            return s -> s.equals("NULL") ? 0f : Float.parseFloat(s);
+            return FieldType.REAL;
           case "string":
-            return Files::unquoteString;
+            return FieldType.STRING;
           default:
             throw new IllegalArgumentException("unknown type " + type);
         }
@@ -144,25 +180,22 @@ public class Files {
     }
   }
 
-  /** Converts "abc" to "abc" and "'abc, def'" to "abc, def". */
-  static Object unquoteString(String s) {
-    if (s.startsWith("'")) {
-      return s.substring(1, s.length() - 1);
-    }
-    return s;
-  }
-
   /** Abstract implementation of File. */
   abstract static class AbstractFile implements File {
     final java.io.File ioFile; // lint:skip
     final String baseName;
     final FileType fileType;
+    final Cache cache;
 
     /** Creates an AbstractFile. */
-    AbstractFile(java.io.File ioFile, FileType fileType) { // lint:skip
+    AbstractFile(
+        java.io.File ioFile, // lint:skip
+        FileType fileType,
+        Cache cache) {
       this.ioFile = requireNonNull(ioFile, "file");
       this.baseName = removeSuffix(ioFile.getName(), fileType.suffix);
       this.fileType = requireNonNull(fileType, "fileType");
+      this.cache = requireNonNull(cache, "cache");
     }
 
     @Override
@@ -176,13 +209,13 @@ public class Files {
     final java.io.File ioFile; // lint:skip
     final SortedMap<String, File> entries; // mutable
 
-    Directory(java.io.File file) { // lint:skip
+    Directory(java.io.File file, Cache cache) { // lint:skip
       this.ioFile = file;
 
       entries = new TreeMap<>(RecordType.ORDERING);
       for (java.io.File subFile : // lint:skip
           first(ioFile.listFiles(), new java.io.File[0])) { // lint:skip
-        UnknownFile f = createUnknown(this, subFile);
+        UnknownFile f = createUnknown(this, subFile, cache);
         entries.put(f.baseName, f);
       }
     }
@@ -237,41 +270,30 @@ public class Files {
   /** File that is not a directory, and can be parsed into a set of records. */
   private static class DataFile extends AbstractFile {
     final Type.Key typeKey;
-    final PairList<Integer, Function<String, Object>> parsers;
+
+    /**
+     * For each field in the file, in the order that they occur in the file, its
+     * ordinal in the record (whose fields are sorted by name) and its type.
+     */
+    final PairList<Integer, FieldType> fields;
+
+    /** The rows of this file, as a list that reads them lazily. */
+    final DataList list = new DataList(this);
 
     DataFile(
         java.io.File file, // lint:skip
         FileType fileType,
+        Cache cache,
         Type.Key typeKey,
-        PairList<Integer, Function<String, Object>> parsers) {
-      super(file, fileType);
+        PairList<Integer, FieldType> fields) {
+      super(file, fileType, cache);
       this.typeKey = requireNonNull(typeKey, "typeKey");
-      this.parsers = parsers.immutable();
+      this.fields = fields.immutable();
     }
 
     @Override
     public <V> V valueAs(Class<V> clazz) {
-      try (BufferedReader r = fileType.open(ioFile)) {
-        String firstLine = r.readLine();
-        if (firstLine == null) {
-          return null;
-        }
-        final Object[] values = new Object[parsers.size()];
-        final List<List<Object>> list = new ArrayList<>();
-        for (; ; ) {
-          String line = r.readLine();
-          if (line == null) {
-            return clazz.cast(list);
-          }
-          String[] fields = line.split(",");
-          parsers.forEachIndexed(
-              (i, j, parser) -> values[j] = parser.apply(fields[i]));
-          list.add(ImmutableList.copyOf(values));
-        }
-      } catch (IOException e) {
-        // ignore
-        return null;
-      }
+      return clazz.cast(list);
     }
 
     @Override
@@ -301,8 +323,11 @@ public class Files {
      */
     static final Type.Key PROGRESSIVE_UNIT_LIST = Keys.list(PROGRESSIVE_UNIT);
 
-    protected UnknownFile(java.io.File file, FileType fileType) { // lint:skip
-      super(file, fileType);
+    protected UnknownFile(
+        java.io.File file, // lint:skip
+        FileType fileType,
+        Cache cache) {
+      super(file, fileType, cache);
     }
 
     @Override
@@ -322,7 +347,7 @@ public class Files {
     public File expand() {
       switch (fileType) {
         case DIRECTORY:
-          return new Directory(ioFile);
+          return new Directory(ioFile, cache);
 
         case FILE:
           return this;
@@ -336,16 +361,15 @@ public class Files {
                         RecordType.ORDERING)
                     .putAll(nameTypes)
                     .build();
-            final PairList<Integer, Function<String, Object>> fieldParsers =
-                PairList.of();
+            final PairList<Integer, FieldType> fields = PairList.of();
             nameTypes.forEach(
                 (name, typeKey) -> {
                   final int j = sortedNameTypes.keySet().asList().indexOf(name);
-                  fieldParsers.add(j, parser(typeKey));
+                  fields.add(j, fieldType(typeKey));
                 });
 
             final Type.Key listType = Keys.list(Keys.record(sortedNameTypes));
-            return new DataFile(ioFile, fileType, listType, fieldParsers);
+            return new DataFile(ioFile, fileType, cache, listType, fields);
           } catch (IOException e) {
             // ignore, and skip file
             return this;
@@ -370,8 +394,9 @@ public class Files {
     protected UnknownChildFile(
         Directory directory,
         java.io.File file, // lint:skip
-        FileType fileType) {
-      super(file, fileType);
+        FileType fileType,
+        Cache cache) {
+      super(file, fileType, cache);
       this.directory = requireNonNull(directory, "directory");
     }
 
@@ -391,10 +416,10 @@ public class Files {
    * file into a set of records.
    */
   enum FileType {
-    DIRECTORY("", false),
-    FILE("", false),
-    CSV(".csv", true),
-    CSV_GZ(".csv.gz", true);
+    DIRECTORY("", false, false),
+    FILE("", false, false),
+    CSV(".csv", true, false),
+    CSV_GZ(".csv.gz", true, true);
 
     /** The non-trivial file types. */
     static final List<FileType> INSTANCES =
@@ -407,9 +432,17 @@ public class Files {
     /** Whether this file is a list of records. */
     final boolean list;
 
-    FileType(String suffix, boolean list) {
+    /**
+     * Whether this file is compressed. The rows of a compressed file are always
+     * cached after a scan has read all of them, so that the file is
+     * decompressed only once.
+     */
+    final boolean gzip;
+
+    FileType(String suffix, boolean list, boolean gzip) {
       this.suffix = suffix;
       this.list = list;
+      this.gzip = gzip;
     }
 
     BufferedReader open(java.io.File file) throws IOException { // lint:skip
@@ -429,6 +462,542 @@ public class Files {
         throws IOException {
       return deduceFieldsCsv(r);
     }
+
+    /** Creates a parser for the rows of a file. */
+    CsvParser parser(
+        java.io.File file, // lint:skip
+        PairList<Integer, FieldType> fields)
+        throws IOException {
+      switch (this) {
+        case CSV:
+          return new MappedCsvParser(file.toPath(), fields, MAP_SIZE);
+        case CSV_GZ:
+          return new StreamCsvParser(
+              new GZIPInputStream(newInputStream(file.toPath())), fields);
+        default:
+          throw new IllegalArgumentException(
+              "cannot parse file " + file + " of type " + this);
+      }
+    }
+  }
+
+  /** Type of a field in a data file. */
+  enum FieldType {
+    INT,
+    REAL,
+    STRING
+  }
+
+  /**
+   * Cache of the contents of data files.
+   *
+   * <p>An entry is keyed by the path of the file, and is valid while the file's
+   * modification time and size are unchanged. A compressed file is therefore
+   * decompressed and parsed once, not each time it is used.
+   *
+   * <p>Each {@link Session} has a cache.
+   */
+  public static class Cache {
+    private final Map<String, CacheEntry> map = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the rows of a data file if they are in the cache and the file has
+     * not changed, otherwise null.
+     */
+    @Nullable
+    List<List<Object>> get(DataFile file) {
+      final CacheEntry entry = map.get(file.ioFile.getAbsolutePath());
+      return entry != null
+              && entry.lastModified == file.ioFile.lastModified()
+              && entry.length == file.ioFile.length()
+          ? entry.rows
+          : null;
+    }
+
+    /**
+     * Returns the rows of a data file, reading it if it is not in the cache or
+     * has changed. Returns an empty list if the file cannot be read.
+     */
+    List<List<Object>> rows(DataFile file) {
+      final List<List<Object>> rows = get(file);
+      if (rows != null) {
+        return rows;
+      }
+      final RowIterator iterator;
+      try {
+        iterator = new RowIterator(file, true);
+      } catch (IOException e) {
+        // ignore
+        return ImmutableList.of();
+      }
+      try {
+        while (iterator.hasNext()) {
+          iterator.next();
+        }
+        // Having read the whole file, the iterator has populated the cache.
+        return requireNonNull(iterator.rows).build();
+      } catch (UncheckedIOException e) {
+        // ignore
+        return ImmutableList.of();
+      } finally {
+        iterator.close();
+      }
+    }
+
+    /** Adds the rows of a data file to the cache. */
+    void put(
+        DataFile file,
+        long lastModified,
+        long length,
+        List<List<Object>> rows) {
+      map.put(
+          file.ioFile.getAbsolutePath(),
+          new CacheEntry(lastModified, length, rows));
+    }
+  }
+
+  /** Entry in a {@link Cache}. */
+  private static class CacheEntry {
+    final long lastModified;
+    final long length;
+    final List<List<Object>> rows;
+
+    CacheEntry(long lastModified, long length, List<List<Object>> rows) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.rows = rows;
+    }
+  }
+
+  /**
+   * The rows of a data file, as a list.
+   *
+   * <p>Iterating over the list reads rows from the file one at a time (or from
+   * the cache, if the file has been read), so a scan that stops early, such as
+   * {@code from e in file.logs take 10}, reads only the start of the file.
+   * Methods that need the whole list, such as {@link #get} and {@link #size},
+   * read the whole file via the cache.
+   */
+  static class DataList extends AbstractList<List<Object>> {
+    private final DataFile file;
+
+    DataList(DataFile file) {
+      this.file = requireNonNull(file);
+    }
+
+    @Override
+    public Iterator<List<Object>> iterator() {
+      final List<List<Object>> rows = file.cache.get(file);
+      if (rows != null) {
+        return rows.iterator();
+      }
+      try {
+        return new RowIterator(
+            file, file.ioFile.length() <= CACHE_SIZE || file.fileType.gzip);
+      } catch (IOException e) {
+        // ignore
+        return Collections.emptyIterator();
+      }
+    }
+
+    @Override
+    public boolean isEmpty() {
+      final Iterator<List<Object>> iterator = iterator();
+      try {
+        return !iterator.hasNext();
+      } finally {
+        if (iterator instanceof RowIterator) {
+          ((RowIterator) iterator).close();
+        }
+      }
+    }
+
+    @Override
+    public List<Object> get(int index) {
+      return file.cache.rows(file).get(index);
+    }
+
+    @Override
+    public int size() {
+      return file.cache.rows(file).size();
+    }
+  }
+
+  /**
+   * Iterator over the rows of a data file.
+   *
+   * <p>Closes the file when it reaches the end, or when {@link #close()} is
+   * called. If it reaches the end and is collecting rows, adds them to the
+   * cache.
+   */
+  private static class RowIterator
+      implements Iterator<List<Object>>, AutoCloseable {
+    private final DataFile file;
+    private final long lastModified;
+    private final long length;
+    private @Nullable CsvParser parser;
+    private final Object[] values;
+    private @Nullable List<Object> next;
+
+    /** Rows read so far, if they are to be cached; otherwise null. */
+    final ImmutableList.@Nullable Builder<List<Object>> rows;
+
+    RowIterator(DataFile file, boolean cache) throws IOException {
+      this.file = file;
+      this.lastModified = file.ioFile.lastModified();
+      this.length = file.ioFile.length();
+      this.values = new Object[file.fields.size()];
+      this.rows = cache ? ImmutableList.builder() : null;
+      final CsvParser parser = file.fileType.parser(file.ioFile, file.fields);
+      if (parser.skipLine()) {
+        this.parser = parser;
+      } else {
+        // The file is empty; it does not even have a header line.
+        parser.close();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      if (next == null && parser != null) {
+        try {
+          if (parser.next(values)) {
+            next = Tuple.copyOf(values);
+            if (rows != null) {
+              rows.add(next);
+            }
+          } else {
+            close();
+            if (rows != null) {
+              file.cache.put(file, lastModified, length, rows.build());
+            }
+          }
+        } catch (IOException e) {
+          close();
+          throw new UncheckedIOException(e);
+        }
+      }
+      return next != null;
+    }
+
+    @Override
+    public List<Object> next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final List<Object> row = requireNonNull(next);
+      next = null;
+      return row;
+    }
+
+    @Override
+    public void close() {
+      if (parser != null) {
+        try {
+          parser.close();
+        } catch (IOException e) {
+          // ignore
+        }
+        parser = null;
+      }
+    }
+  }
+
+  /**
+   * Parser for the rows of a CSV file.
+   *
+   * <p>Reads bytes into a buffer, refilling it as needed, finds the end of each
+   * line, then parses the fields of the line in place. It parses int values
+   * directly from the bytes, and creates a string only for string and real
+   * values, not for each line or field.
+   *
+   * <p>A field that starts with a single quote ends at the next single quote
+   * that is followed by a comma or the end of the line, and may therefore
+   * contain commas. The quotes are not part of the value.
+   */
+  abstract static class CsvParser implements Closeable {
+    /** Type of each field in the file. */
+    private final FieldType[] types;
+
+    /** Ordinal in the record of each field in the file. */
+    private final int[] ordinals;
+
+    /** Buffer of bytes; the bytes before {@link #pos} have been parsed. */
+    ByteBuffer buf;
+
+    /** Start of the current line. */
+    int pos;
+
+    private byte[] scratch = new byte[64];
+
+    CsvParser(PairList<Integer, FieldType> fields, ByteBuffer buf) {
+      this.types = fields.rightList().toArray(new FieldType[0]);
+      this.ordinals = new int[fields.size()];
+      for (int i = 0; i < ordinals.length; i++) {
+        ordinals[i] = fields.left(i);
+      }
+      this.buf = buf;
+    }
+
+    /**
+     * Reads more bytes into the buffer, keeping the bytes from {@link #pos} to
+     * the limit, and moving {@link #pos}. Returns false if there are no more
+     * bytes.
+     */
+    abstract boolean refill() throws IOException;
+
+    /**
+     * Finds the end of the current line, refilling the buffer if necessary.
+     * Returns the index of the line's '\n', or of the limit of the buffer if
+     * the line is the last and has no '\n', or -1 if there are no more lines.
+     */
+    private int lineEnd() throws IOException {
+      int i = pos;
+      for (; ; ) {
+        final int limit = buf.limit();
+        for (; i < limit; i++) {
+          if (buf.get(i) == '\n') {
+            return i;
+          }
+        }
+        final int scanned = i - pos;
+        if (!refill()) {
+          return pos < buf.limit() ? buf.limit() : -1;
+        }
+        i = pos + scanned;
+      }
+    }
+
+    /** Skips a line. Returns false if there are no more lines. */
+    boolean skipLine() throws IOException {
+      final int end = lineEnd();
+      if (end < 0) {
+        return false;
+      }
+      pos = Math.min(end + 1, buf.limit());
+      return true;
+    }
+
+    /**
+     * Parses the next non-empty line into an array of values. Returns false if
+     * there are no more lines.
+     */
+    boolean next(Object[] values) throws IOException {
+      for (; ; ) {
+        final int end = lineEnd();
+        if (end < 0) {
+          return false;
+        }
+        int lineEnd = end;
+        if (lineEnd > pos && buf.get(lineEnd - 1) == '\r') {
+          --lineEnd;
+        }
+        if (lineEnd == pos) {
+          // Skip empty line
+          pos = end + 1;
+          continue;
+        }
+        int i = pos;
+        for (int f = 0; f < types.length; f++) {
+          // Find the end of the field.
+          int start = i;
+          int fieldEnd;
+          int next;
+          if (i < lineEnd && buf.get(i) == '\'') {
+            ++start;
+            int j = start;
+            while (j < lineEnd
+                && !(buf.get(j) == '\''
+                    && (j + 1 == lineEnd || buf.get(j + 1) == ','))) {
+              ++j;
+            }
+            fieldEnd = j;
+            next = j < lineEnd ? j + 1 : j;
+          } else {
+            int j = i;
+            while (j < lineEnd && buf.get(j) != ',') {
+              ++j;
+            }
+            fieldEnd = j;
+            next = j;
+          }
+          values[ordinals[f]] = parse(types[f], start, fieldEnd);
+          i = next < lineEnd ? next + 1 : lineEnd;
+        }
+        pos = Math.min(end + 1, buf.limit());
+        return true;
+      }
+    }
+
+    /** Parses the value of a field. */
+    private Object parse(FieldType type, int start, int end) {
+      switch (type) {
+        case INT:
+          return parseInt(start, end);
+        case REAL:
+          if (isNull(start, end)) {
+            return 0f;
+          }
+          return Float.parseFloat(string(start, end, ISO_8859_1));
+        default:
+          return string(start, end, UTF_8);
+      }
+    }
+
+    /** Parses an int value, without creating a string. */
+    private int parseInt(int start, int end) {
+      if (isNull(start, end)) {
+        return 0;
+      }
+      int i = start;
+      final boolean negative = i < end && buf.get(i) == '-';
+      if (negative || i < end && buf.get(i) == '+') {
+        ++i;
+      }
+      if (i == end || end - i > 10) {
+        // Let Integer.parseInt give the usual error, or parse very long
+        // numbers (such as those with leading zeros).
+        return Integer.parseInt(string(start, end, ISO_8859_1));
+      }
+      long n = 0;
+      for (; i < end; i++) {
+        final int digit = buf.get(i) - '0';
+        if (digit < 0 || digit > 9) {
+          return Integer.parseInt(string(start, end, ISO_8859_1));
+        }
+        n = n * 10 + digit;
+      }
+      if (negative) {
+        n = -n;
+      }
+      if (n < Integer.MIN_VALUE || n > Integer.MAX_VALUE) {
+        return Integer.parseInt(string(start, end, ISO_8859_1));
+      }
+      return (int) n;
+    }
+
+    /** Returns whether a field is "NULL". */
+    private boolean isNull(int start, int end) {
+      return end - start == 4
+          && buf.get(start) == 'N'
+          && buf.get(start + 1) == 'U'
+          && buf.get(start + 2) == 'L'
+          && buf.get(start + 3) == 'L';
+    }
+
+    /** Creates a string from a range of bytes. */
+    private String string(int start, int end, Charset charset) {
+      final int length = end - start;
+      if (buf.hasArray()) {
+        // CHECKSTYLE: IGNORE 1
+        return new String(
+            buf.array(), buf.arrayOffset() + start, length, charset);
+      }
+      if (scratch.length < length) {
+        scratch = new byte[Math.max(length, scratch.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        scratch[i] = buf.get(start + i);
+      }
+      // CHECKSTYLE: IGNORE 1
+      return new String(scratch, 0, length, charset);
+    }
+  }
+
+  /**
+   * CSV parser that maps a file into memory.
+   *
+   * <p>If the file is larger than the window size, maps one window at a time.
+   */
+  static class MappedCsvParser extends CsvParser {
+    private final FileChannel channel;
+    private final long size;
+    private final long windowSize;
+
+    /** Offset in the file of the start of the buffer. */
+    private long offset;
+
+    MappedCsvParser(
+        Path path, PairList<Integer, FieldType> fields, long windowSize)
+        throws IOException {
+      this(FileChannel.open(path, StandardOpenOption.READ), fields, windowSize);
+    }
+
+    private MappedCsvParser(
+        FileChannel channel,
+        PairList<Integer, FieldType> fields,
+        long windowSize)
+        throws IOException {
+      super(fields, map(channel, 0, windowSize));
+      this.channel = channel;
+      this.size = channel.size();
+      this.windowSize = windowSize;
+    }
+
+    private static ByteBuffer map(
+        FileChannel channel, long offset, long windowSize) throws IOException {
+      final long length = Math.min(channel.size() - offset, windowSize);
+      return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    @Override
+    boolean refill() throws IOException {
+      if (offset + buf.limit() >= size) {
+        return false;
+      }
+      offset += pos;
+      // If a line is longer than the window, double the window.
+      final long windowSize =
+          buf.limit() - pos < this.windowSize
+              ? this.windowSize
+              : (buf.limit() - pos) * 2L;
+      buf = map(channel, offset, windowSize);
+      pos = 0;
+      return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+      channel.close();
+    }
+  }
+
+  /** CSV parser that reads from a stream, such as a decompressing stream. */
+  static class StreamCsvParser extends CsvParser {
+    private final InputStream in;
+
+    StreamCsvParser(InputStream in, PairList<Integer, FieldType> fields) {
+      super(fields, ByteBuffer.wrap(new byte[1 << 16], 0, 0));
+      this.in = in;
+    }
+
+    @Override
+    boolean refill() throws IOException {
+      // Move the unparsed bytes to the start of the buffer (a larger buffer,
+      // if it is full), then read as many bytes as will fit.
+      final int remaining = buf.limit() - pos;
+      byte[] bytes = buf.array();
+      if (remaining == bytes.length) {
+        bytes = Arrays.copyOf(bytes, bytes.length * 2);
+      }
+      System.arraycopy(buf.array(), pos, bytes, 0, remaining);
+      int limit = remaining;
+      while (limit < bytes.length) {
+        final int n = in.read(bytes, limit, bytes.length - limit);
+        if (n < 0) {
+          break;
+        }
+        limit += n;
+      }
+      buf = ByteBuffer.wrap(bytes, 0, limit);
+      pos = 0;
+      return limit > remaining;
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
   }
 }
 
@@ -0,0 +1,238 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import static com.google.common.base.Preconditions.checkState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Values of global variables, stored in slots.
+ *
+ * <p>Each global name has a slot number in a {@link SlotTable}. Code that reads
+ * or writes a global, such as {@link Codes#get(String)} and the group and
+ * aggregate code that binds group keys, holds the {@link Names} it uses, and
+ * resolves them to slots the first time it is evaluated against a table, so
+ * that at evaluation time it reads an array element rather than hashing the
+ * name.
+ *
+ * <p>Each {@link Session} has its own slot table, shared by the frames that it
+ * creates for successive statements; so slots are freed when the session goes
+ * away. A name is given a slot once per session, not once per declaration, so
+ * the table grows only with the number of distinct names (the names of
+ * identifiers in source code, without the ordinal that distinguishes
+ * declarations of the same name). A slot that holds null is unbound.
+ *
+ * <p>A frame created by {@link #bind} is a child frame: it binds a few slots
+ * (say the keys and aggregates of one group) and reads other slots from its
+ * parent. Code that binds variables during evaluation creates a child frame and
+ * evaluates with it (see {@link Stack#setEnv}), rather than changing the
+ * session's frame, so concurrent evaluations do not see each other's values.
+ *
+ * <p>A frame is NOT thread-safe while it is being populated; the frame of a
+ * session is populated between statements, and a child frame before it is
+ * published.
+ */
+public final class GlobalFrame {
+  /** Table that assigns slots to names. */
+  final SlotTable table;
+
+  /** Parent frame, if this is a child frame. */
+  private final @Nullable GlobalFrame parent;
+
+  /**
+   * Slots bound by this child frame, whose values are the corresponding
+   * elements of {@link #values}; null if this is not a child frame, in which
+   * case {@link #values} is indexed by slot.
+   */
+  private final int @Nullable [] bound;
+
+  private @Nullable Object[] values;
+
+  /** Creates an empty frame whose names have slots in a given table. */
+  public GlobalFrame(SlotTable table) {
+    this(table, null, null, new Object[64]);
+  }
+
+  private GlobalFrame(
+      SlotTable table,
+      @Nullable GlobalFrame parent,
+      int @Nullable [] bound,
+      @Nullable Object[] values) {
+    this.table = table;
+    this.parent = parent;
+    this.bound = bound;
+    this.values = values;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder("{");
+    final int size = table.size();
+    for (int i = 0; i < size; i++) {
+      final @Nullable Object value = get(i);
+      if (value != null) {
+        b.append(b.length() > 1 ? ", " : "")
+            .append(table.name(i))
+            .append('=')
+            .append(value);
+      }
+    }
+    return b.append('}').toString();
+  }
+
+  /**
+   * Returns a child frame that binds {@code slots} to {@code values} and
+   * otherwise has the values of this frame.
+   *
+   * <p>The child frame uses the {@code values} array, and does not copy it; the
+   * caller may assign its elements until it publishes the frame.
+   */
+  public GlobalFrame bind(int[] slots, @Nullable Object[] values) {
+    return new GlobalFrame(table, this, slots, values);
+  }
+
+  /** Returns the value in a slot, or null if the slot is unbound. */
+  public @Nullable Object get(int slot) {
+    final int @Nullable [] bound = this.bound;
+    if (bound != null) {
+      for (int i = 0; i < bound.length; i++) {
+        if (bound[i] == slot) {
+          return values[i];
+        }
+      }
+      return parent.get(slot);
+    }
+    return slot < values.length ? values[slot] : null;
+  }
+
+  /**
+   * Sets the value in a slot; if {@code value} is null, unbinds the slot. Only
+   * a frame that is not a child frame can be set.
+   */
+  public void set(int slot, @Nullable Object value) {
+    checkState(bound == null, "cannot set a slot of a child frame");
+    if (slot >= values.length) {
+      values = Arrays.copyOf(values, Math.max(slot + 1, values.length * 2));
+    }
+    values[slot] = value;
+  }
+
+  /** Binds a name. Slower than {@link #set(int, Object)}. */
+  public void put(String name, Object value) {
+    set(table.slot(name), value);
+  }
+
+  /**
+   * Assigns slot numbers to global names.
+   *
+   * <p>Thread-safe: the partitions of a query may resolve names concurrently.
+   */
+  public static final class SlotTable {
+    /** Slot number of each name. */
+    private final Map<String, Integer> slots = new HashMap<>();
+
+    /** Name of each slot. */
+    private final List<String> names = new ArrayList<>();
+
+    /** Returns the slot of a name, allocating a slot if it has none. */
+    public synchronized int slot(String name) {
+      final Integer slot = slots.get(name);
+      if (slot != null) {
+        return slot;
+      }
+      slots.put(name, names.size());
+      names.add(name);
+      return names.size() - 1;
+    }
+
+    /** Returns the slots of a list of names. */
+    public synchronized int[] slots(List<String> names) {
+      final int[] slots = new int[names.size()];
+      for (int i = 0; i < slots.length; i++) {
+        slots[i] = slot(names.get(i));
+      }
+      return slots;
+    }
+
+    /** Returns the name of a slot. */
+    public synchronized String name(int slot) {
+      return names.get(slot);
+    }
+
+    /** Returns the number of slots. */
+    public synchronized int size() {
+      return names.size();
+    }
+  }
+
+  /**
+   * A list of global names whose slots are resolved when code is evaluated.
+   *
+   * <p>Code is compiled once but may be evaluated against the frames of more
+   * than one session (for example, a session created to evaluate a constant
+   * during planning). {@link #slots} resolves the names in the table of the
+   * frame, and remembers the slots until it is given a frame with a different
+   * table.
+   */
+  public static final class Names {
+    public final List<String> names;
+    private @Nullable Resolved resolved;
+
+    private Names(List<String> names) {
+      this.names = names;
+    }
+
+    /** Creates a Names. */
+    public static Names of(List<String> names) {
+      return new Names(names);
+    }
+
+    /** Returns the slots of the names in the table of a frame. */
+    public int[] slots(GlobalFrame frame) {
+      // "resolved" is not volatile; a thread that does not see another
+      // thread's write resolves the names again. Resolved has only final
+      // fields, so a thread that sees the write sees its contents.
+      @Nullable Resolved resolved = this.resolved;
+      if (resolved == null || resolved.table != frame.table) {
+        resolved = new Resolved(frame.table, frame.table.slots(names));
+        this.resolved = resolved;
+      }
+      return resolved.slots;
+    }
+
+    /** Slots of the names in a particular table. */
+    private static final class Resolved {
+      final SlotTable table;
+      final int[] slots;
+
+      Resolved(SlotTable table, int[] slots) {
+        this.table = table;
+        this.slots = slots;
+      }
+    }
+  }
+}
+
+// End GlobalFrame.java
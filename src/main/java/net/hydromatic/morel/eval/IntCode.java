@@ -0,0 +1,42 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+/**
+ * Compiled expression whose value is an {@code int}, and that can be evaluated
+ * without boxing.
+ *
+ * <p>A node that consumes an {@code int} argument calls {@link #evalInt} on it,
+ * so that a chain of arithmetic operations allocates no {@link Integer}
+ * objects; only the last node in the chain boxes, when its value is returned
+ * from {@link #eval}.
+ *
+ * @see Codes#asInt(Code)
+ */
+public interface IntCode extends Code {
+  /** Evaluates this expression, returning an {@code int}. */
+  int evalInt(Stack stack);
+
+  @Override
+  default Object eval(Stack stack) {
+    return evalInt(stack);
+  }
+}
+
+// End IntCode.java
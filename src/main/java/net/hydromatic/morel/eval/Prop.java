@@ -60,6 +60,23 @@ public enum Prop {
       "Startup banner message displayed when launching the Morel " //
           + "shell."),
 
+  /**
+   * Boolean property "codegen" controls whether the expressions of {@code
+   * where} and {@code yield} steps, and the bodies of non-recursive functions,
+   * are translated into Java classes and compiled using Janino; default false.
+   *
+   * <p>Only integer arithmetic, comparisons, {@code andalso}, {@code orelse}
+   * and {@code not} become Java operators; other parts of an expression are
+   * evaluated by the interpreter, as they are when this property is false.
+   */
+  CODEGEN(
+      "codegen",
+      Boolean.class,
+      true,
+      false,
+      "Whether to compile the expressions of 'where' and 'yield' steps, and "
+          + "the bodies of non-recursive functions, to Java bytecode."),
+
   /**
    * String property "colorScheme" selects the color scheme used for syntax
    * highlighting in the shell.
@@ -93,6 +110,23 @@ public enum Prop {
       "Path of the directory that the 'file' variable maps to in " //
           + "this connection."),
 
+  /**
+   * Boolean property "enumerable" controls whether, in a hybrid execution plan,
+   * Calcite relational expressions are converted to Calcite's Enumerable
+   * convention and compiled to Java, rather than evaluated by Calcite's
+   * interpreter; default false. Has no effect unless "hybrid" is true.
+   *
+   * <p>Compiled expressions are cached, and are shared by all sessions. An
+   * expression that cannot be compiled is interpreted.
+   */
+  ENUMERABLE(
+      "enumerable",
+      Boolean.class,
+      true,
+      false,
+      "Whether, in a hybrid execution plan, to compile relational expressions "
+          + "to Java using Calcite's Enumerable convention."),
+
   /**
    * String property "excludeStructures" is a Java regular expression that
    * controls which built-in structures are excluded from the environment. A
@@ -200,6 +234,26 @@ public enum Prop {
       Output.CLASSIC,
       "How values should be formatted. \"classic\" (the default) prints values in a compact nested format; \"tabular\" prints values in a table if their type is a list of records."),
 
+  /**
+   * Integer property "parallelism" is the number of partitions into which a
+   * query's first scan is split, so that the partitions can be evaluated in
+   * parallel. Default is 1, which evaluates each query in one thread.
+   *
+   * <p>Only the steps from the first scan up to the first step other than a
+   * scan, {@code where} or {@code yield} are evaluated in parallel; the
+   * partitions' rows are then merged, in order, into the remaining steps.
+   * Queries that call functions other than built-in functions, or that contain
+   * {@code take}, are not split.
+   */
+  PARALLELISM(
+      "parallelism",
+      Integer.class,
+      true,
+      1,
+      "Number of partitions into which a query is split so that they can be "
+          + "evaluated in parallel. If 1 (the default), queries are evaluated "
+          + "in one thread."),
+
   /**
    * Integer property "printDepth" controls printing. The depth of nesting of
    * recursive data structure at which ellipsis begins.
@@ -340,7 +394,19 @@ public enum Prop {
       false,
       null,
       "Overrides the local timezone. Value is a timezone ID (e.g. 'UTC' or "
-          + "'America/New_York'). If not set, the JVM default timezone is used.");
+          + "'America/New_York'). If not set, the JVM default timezone is used."),
+
+  /**
+   * Enum property "unifier" is the algorithm that the type resolver uses to
+   * unify type terms. Default is "martelli".
+   */
+  UNIFIER(
+      "unifier",
+      Unifier.class,
+      true,
+      Unifier.MARTELLI,
+      "Algorithm used to unify types during type inference: \"martelli\" (the "
+          + "default) or \"union_find\".");
 
   public final String camelName;
   public final Class<?> type;
@@ -543,7 +609,8 @@ public enum Prop {
       case BANNER:
         return "Morel version ...";
       case OUTPUT:
-        return requireNonNull((Output) defaultValue)
+      case UNIFIER:
+        return requireNonNull((Enum<?>) defaultValue)
             .name()
             .toLowerCase(Locale.ROOT);
       default:
@@ -558,6 +625,14 @@ public enum Prop {
     /** Tabular output if the value is a list of records, otherwise classic. */
     TABULAR
   }
+
+  /** Allowed values for {@link #UNIFIER} property. */
+  public enum Unifier {
+    /** Martelli-Montanari unifier. The default. */
+    MARTELLI,
+    /** Unifier based on a union-find data structure. */
+    UNION_FIND
+  }
 }
 
 // End Prop.java
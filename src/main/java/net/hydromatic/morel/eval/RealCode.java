@@ -0,0 +1,40 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+/**
+ * Compiled expression whose value is a {@code real}, and that can be evaluated
+ * without boxing.
+ *
+ * <p>Morel represents a {@code real} value as a Java {@code float}.
+ *
+ * @see IntCode
+ * @see Codes#asReal(Code)
+ */
+public interface RealCode extends Code {
+  /** Evaluates this expression, returning a {@code float}. */
+  float evalReal(Stack stack);
+
+  @Override
+  default Object eval(Stack stack) {
+    return evalReal(stack);
+  }
+}
+
+// End RealCode.java
@@ -31,6 +31,20 @@ public interface RowSink extends Describable {
   /** Returns the collected results using a {@link Stack}. */
   List<Object> result(Stack stack);
 
+  /**
+   * Returns whether this sink will ignore any further rows; for example, a
+   * {@code take} sink that has received as many rows as it needs.
+   *
+   * <p>A scan that feeds this sink may stop early, and close its source, if
+   * this method returns true; likewise a step such as {@code order} or {@code
+   * group} that emits its rows in {@link #result(Stack)}. A step that does not
+   * limit rows itself returns the value of the sink that follows it, so the
+   * signal propagates back to the scans. {@link #start(Stack)} resets the sink.
+   */
+  default boolean isDone() {
+    return false;
+  }
+
   default void start(EvalEnv env) {
     throw new UnsupportedOperationException("use start(Stack)");
   }
@@ -23,27 +23,35 @@ import static com.google.common.collect.Comparators.isInOrder;
 import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.util.Ord.forEachIndexed;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.MultimapBuilder;
-import com.google.common.collect.Multimaps;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.RandomAccess;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.IntConsumer;
 import java.util.function.Supplier;
 import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Op;
 import net.hydromatic.morel.type.RecordType;
 import net.hydromatic.morel.util.ImmutablePairList;
+import net.hydromatic.morel.util.ThreadLocals;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
 /** Implementations of {@link RowSink}. */
@@ -73,6 +81,20 @@ public abstract class RowSinks {
         : new ExceptAllRowSink(codes, names, inSlots, rowSink);
   }
 
+  /**
+   * Creates a {@link RowSink} that marks the end of the steps that can be
+   * evaluated in parallel.
+   *
+   * <p>It passes rows through unchanged. If the {@link Prop#PARALLELISM
+   * parallelism} property is greater than 1 when the query is evaluated, the
+   * query's first scan is split into partitions, each partition evaluates the
+   * steps up to this sink on its own {@link Stack}, and this sink merges the
+   * partitions' rows, in order, into the steps that follow it.
+   */
+  public static RowSink exchange(RowSink rowSink) {
+    return new ExchangeRowSink(rowSink);
+  }
+
   /** Creates a {@link RowSink} for a {@code group} step. */
   public static RowSink group(
       Code keyCode,
@@ -92,6 +114,21 @@ public abstract class RowSinks {
         rowSink);
   }
 
+  /**
+   * Creates a {@link RowSink} for a {@code group} step whose aggregate
+   * functions can all be computed incrementally.
+   */
+  public static RowSink accumulateGroup(
+      Code keyCode,
+      ImmutableList<Codes.Accumulable> aggregates,
+      ImmutableList<Code> argumentCodes,
+      ImmutableList<String> keyNames,
+      ImmutableList<String> outNames,
+      RowSink rowSink) {
+    return new AccumulateGroupRowSink(
+        keyCode, aggregates, argumentCodes, keyNames, outNames, rowSink);
+  }
+
   /** Creates a {@link RowSink} for an {@code intersect} step. */
   public static RowSink intersect(
       boolean distinct,
@@ -113,20 +150,76 @@ public abstract class RowSinks {
     return new OrderRowSink(code, comparator, inSlots, rowSink);
   }
 
+  /**
+   * Creates a {@link RowSink} for an {@code order} step followed by a {@code
+   * take} step, and optionally a {@code skip} step between them.
+   */
+  public static RowSink topN(
+      Code code,
+      Comparator comparator,
+      @Nullable Code skipCode,
+      Code takeCode,
+      ImmutablePairList<String, Code> inSlots,
+      RowSink rowSink) {
+    return new TopNRowSink(
+        code, comparator, skipCode, takeCode, inSlots, rowSink);
+  }
+
   /**
    * Creates a {@link RowSink} for a scan, inner {@code join}, or {@code left
    * join} step (all evaluated as nested loops).
+   *
+   * <p>If {@code invariant}, the collection does not depend on the input row,
+   * and is evaluated once per execution of the query.
    */
   public static RowSink scan(
       Op op,
       Core.Pat pat,
       int varCount,
       Code code,
+      boolean invariant,
       Code conditionCode,
       int @Nullable [] ordinalSlots,
       RowSink rowSink) {
     return new ScanRowSink(
-        op, pat, varCount, code, conditionCode, ordinalSlots, rowSink);
+        op,
+        pat,
+        varCount,
+        code,
+        invariant,
+        conditionCode,
+        ordinalSlots,
+        rowSink);
+  }
+
+  /**
+   * Creates a {@link RowSink} for an inner {@code join} or {@code left join}
+   * step whose condition contains one or more equi-join keys.
+   *
+   * <p>The source ('right') side must not depend on the input ('left') row. It
+   * is evaluated once per execution of the query, and its elements are put into
+   * a hash table keyed by {@code rightKeyCodes}; each input row probes the
+   * table with {@code leftKeyCodes}, and {@code conditionCode} (the residual,
+   * non-key part of the condition) is applied to each matching pair.
+   */
+  public static RowSink hashJoin(
+      Op op,
+      Core.Pat pat,
+      int varCount,
+      Code code,
+      ImmutableList<Code> leftKeyCodes,
+      ImmutableList<Code> rightKeyCodes,
+      Code conditionCode,
+      RowSink rowSink) {
+    return new HashJoinRowSink(
+        op,
+        pat,
+        varCount,
+        code,
+        leftKeyCodes,
+        rightKeyCodes,
+        conditionCode,
+        rowSink);
   }
 
   /**
@@ -134,6 +227,11 @@ public abstract class RowSinks {
    * full join} step. Such a join may emit source ('right') rows that match no
    * input ('left') row, so the source is materialized and probed by each input
    * row, and unmatched source rows are emitted at the end.
+   *
+   * <p>If {@code leftKeyCodes} and {@code rightKeyCodes} are not null, the
+   * materialized source is partitioned on its equi-join keys, and each input
+   * row probes only the partition with its key; {@code conditionCode} is then
+   * the residual, non-key part of the condition.
    */
   public static RowSink buildJoin(
       Op op,
@@ -141,6 +239,8 @@ public abstract class RowSinks {
       int varCount,
       int leftSlotCount,
       Code code,
+      @Nullable ImmutableList<Code> leftKeyCodes,
+      @Nullable ImmutableList<Code> rightKeyCodes,
       Code conditionCode,
       int @Nullable [] ordinalSlots,
       RowSink rowSink) {
@@ -150,6 +250,8 @@ public abstract class RowSinks {
         varCount,
         leftSlotCount,
         code,
+        leftKeyCodes,
+        rightKeyCodes,
         conditionCode,
         ordinalSlots,
         rowSink);
@@ -214,6 +316,22 @@ public abstract class RowSinks {
     return new CollectRowSink(code, ordinalSlots);
   }
 
+  /**
+   * Whether the current thread is evaluating a partition of a query. A query
+   * evaluated inside a partition, say by a function that a partition calls, is
+   * not split again.
+   */
+  private static final ThreadLocal<Boolean> IN_PARTITION =
+      ThreadLocal.withInitial(() -> false);
+
+  /**
+   * Receives the number of partitions each time a query evaluated in the
+   * current thread is split into partitions. For testing.
+   */
+  @VisibleForTesting
+  public static final ThreadLocal<@Nullable IntConsumer> PARTITION_LISTENER =
+      new ThreadLocal<>();
+
   /** Code that evaluates a query. */
   private static class FromCode implements Code {
     private final Supplier<RowSink> rowSinkFactory;
@@ -236,9 +354,108 @@ public abstract class RowSinks {
     public Object eval(Stack stack) {
       final RowSink rowSink = rowSinkFactory.get();
       rowSink.start(stack);
+      final int parallelism = parallelism(stack);
+      if (parallelism > 1 && rowSink instanceof ScanRowSink) {
+        final ScanRowSink scan = (ScanRowSink) rowSink;
+        final @Nullable ExchangeRowSink exchange = scan.exchange();
+        if (exchange != null) {
+          return evalParallel(stack, scan, exchange, parallelism);
+        }
+      }
       rowSink.accept(stack);
       return rowSink.result(stack);
     }
+
+    /**
+     * Returns the number of partitions to split a query into. A query that is
+     * evaluated by a partition of an enclosing query is not split again.
+     */
+    private static int parallelism(Stack stack) {
+      return IN_PARTITION.get()
+          ? 1
+          : Prop.PARALLELISM.intValue(stack.session.map);
+    }
+
+    /**
+     * Evaluates a query by splitting the elements of its first scan into
+     * partitions, evaluating each partition in a fork-join task up to the
+     * exchange, then merging the partitions' rows in order.
+     */
+    private List<Object> evalParallel(
+        Stack stack,
+        ScanRowSink scan,
+        ExchangeRowSink exchange,
+        int parallelism) {
+      final Iterable<Object> elements =
+          (Iterable<Object>) scan.code.eval(stack);
+      if (!(elements instanceof List)
+          || ((List<Object>) elements).size() < parallelism) {
+        scan.scan(stack, elements);
+        return scan.result(stack);
+      }
+      final List<Object> list = (List<Object>) elements;
+      final int n = list.size();
+      final List<Callable<ExchangeRowSink>> tasks = new ArrayList<>();
+      for (int i = 0; i < parallelism; i++) {
+        final List<Object> part =
+            list.subList(
+                (int) ((long) n * i / parallelism),
+                (int) ((long) n * (i + 1) / parallelism));
+        tasks.add(
+            () -> {
+              // Each partition has its own sinks, and its own copy of the
+              // stack, so that the only state it shares with other partitions
+              // is read-only.
+              final ScanRowSink scan2 = (ScanRowSink) rowSinkFactory.get();
+              final ExchangeRowSink exchange2 =
+                  requireNonNull(scan2.exchange());
+              final Stack stack2 = stack.copy();
+              exchange2.partitioned = true;
+              return ThreadLocals.let(
+                  IN_PARTITION,
+                  true,
+                  () -> {
+                    scan2.start(stack2);
+                    scan2.scan(stack2, part);
+                    return exchange2;
+                  });
+            });
+      }
+      final @Nullable IntConsumer listener = PARTITION_LISTENER.get();
+      if (listener != null) {
+        listener.accept(tasks.size());
+      }
+      for (Future<ExchangeRowSink> future :
+          ForkJoinPool.commonPool().invokeAll(tasks)) {
+        if (exchange.isDone()) {
+          break;
+        }
+        exchange.merge(stack, getUnchecked(future));
+      }
+      return scan.result(stack);
+    }
+  }
+
+  /**
+   * Returns the result of a completed task, rethrowing the exception it threw,
+   * if any.
+   */
+  private static <E> E getUnchecked(Future<E> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new RuntimeException(cause);
+    }
   }
 
   /** Abstract implementation for row sinks that have one successor. */
@@ -264,10 +481,55 @@ public abstract class RowSinks {
       return rowSink.result(stack);
     }
 
+    @Override
+    public boolean isDone() {
+      return rowSink.isDone();
+    }
+
     @Override
     public int maxSlots() {
       return rowSink.maxSlots();
     }
+
+    /**
+     * Returns whether this sink can be evaluated in each of several partitions
+     * of its input. It must be stateless, except for state that is private to
+     * each copy of the sink.
+     */
+    boolean canPartition() {
+      return false;
+    }
+
+    /**
+     * Returns the {@link ExchangeRowSink} that follows this sink, or null if
+     * there is none, or if a sink before it cannot be partitioned.
+     */
+    @Nullable
+    ExchangeRowSink exchange() {
+      for (RowSink r = this; ; ) {
+        if (r instanceof ExchangeRowSink) {
+          return (ExchangeRowSink) r;
+        }
+        if (!(r instanceof BaseRowSink) || !((BaseRowSink) r).canPartition()) {
+          return null;
+        }
+        r = ((BaseRowSink) r).rowSink;
+      }
+    }
+  }
+
+  /**
+   * Closes an iterator if it holds resources, such as an open file; called when
+   * a scan stops before reaching the end.
+   */
+  static void close(Iterator<?> iterator) {
+    if (iterator instanceof AutoCloseable) {
+      try {
+        ((AutoCloseable) iterator).close();
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    }
   }
 
   /** Implementation of {@link RowSink} for a {@code join} step. */
@@ -280,6 +542,9 @@ public abstract class RowSinks {
     final boolean optionalRight;
 
     final Code code;
+    /** Whether {@link #code} has the same value for every input row. */
+    final boolean invariant;
+
     final Code conditionCode;
     /**
      * Counts candidate pairs, for an {@code ordinal} in the condition; null if
@@ -287,11 +552,18 @@ public abstract class RowSinks {
      */
     final int @Nullable [] ordinalSlots;
 
+    /**
+     * Elements of the collection, if {@link #invariant}; read by the first
+     * input row, and scanned by every input row.
+     */
+    @Nullable Iterable<Object> elements;
+
     ScanRowSink(
         Op op,
         Core.Pat pat,
         int varCount,
         Code code,
+        boolean invariant,
         Code conditionCode,
         int @Nullable [] ordinalSlots,
         RowSink rowSink) {
@@ -305,12 +577,14 @@ public abstract class RowSinks {
       this.varCount = varCount;
       this.optionalRight = op.optionalizesRight();
       this.code = code;
+      this.invariant = invariant;
       this.conditionCode = conditionCode;
       this.ordinalSlots = ordinalSlots;
     }
 
     @Override
     public void start(Stack stack) {
+      elements = null;
       if (ordinalSlots != null) {
         // The count runs across the whole join, not per input row, so it is
         // reset here rather than in accept.
@@ -344,30 +618,220 @@ public abstract class RowSinks {
       return varCount + rowSink.maxSlots();
     }
 
+    @Override
+    boolean canPartition() {
+      return ordinalSlots == null;
+    }
+
     @Override
     public void accept(Stack stack) {
+      if (invariant) {
+        // The collection is the same for every input row. If it is not held
+        // in memory (say it streams rows from a database), read it into memory
+        // once, rather than once per input row.
+        @Nullable Iterable<Object> elements = this.elements;
+        if (elements == null) {
+          elements = (Iterable<Object>) code.eval(stack);
+          if (!(elements instanceof RandomAccess)) {
+            elements = ImmutableList.copyOf(elements);
+          }
+          this.elements = elements;
+        }
+        scan(stack, elements);
+        return;
+      }
       // Evaluate the collection expression using the full stack so that outer
       // variables (StackCode nodes) resolve correctly.
-      final Iterable<Object> elements = (Iterable<Object>) code.eval(stack);
+      scan(stack, (Iterable<Object>) code.eval(stack));
+    }
+
+    /** Joins the input row on the stack to each of the given elements. */
+    void scan(Stack stack, Iterable<Object> elements) {
       // Grow slots if needed for scan variable slots.
       Stack s = stack.ensureSize(varCount);
       final int savedTop = s.save();
       boolean matched = false;
+      final Iterator<Object> iterator = elements.iterator();
+      try {
+        while (iterator.hasNext()) {
+          final Object element = iterator.next();
+          s.restore(savedTop);
+          // Push scan variable bindings onto the stack.
+          if (Closure.StackClosure.pushBindings(pat, element, s)) {
+            if ((Boolean) conditionCode.eval(s)) {
+              if (optionalRight) {
+                // 'left join': the newly scanned fields are optional
+                // downstream, so wrap them in 'SOME'. (The 'on' condition
+                // above saw the raw, unwrapped values.)
+                for (int k = savedTop; k < savedTop + varCount; k++) {
+                  s.slots[k] = Codes.optionSome(s.slots[k]);
+                }
+              }
+              matched = true;
+              rowSink.accept(s);
+              if (rowSink.isDone()) {
+                // Downstream needs no more rows; stop reading the source.
+                break;
+              }
+            }
+          }
+        }
+      } finally {
+        close(iterator);
+      }
+      s.restore(savedTop);
+      if (optionalRight && !matched) {
+        // 'left join' with no matching right row: emit the input ('left') row
+        // with 'NONE' for the newly scanned fields.
+        for (int k = 0; k < varCount; k++) {
+          s.push(Codes.OPTION_NONE);
+        }
+        rowSink.accept(s);
+        s.restore(savedTop);
+      }
+    }
+  }
+
+  /**
+   * Implementation of {@link RowSink} for an inner {@code join} or {@code left
+   * join} step that is evaluated by hashing the source ('right') side.
+   *
+   * <p>The hash table is built when the first input row arrives, so an empty
+   * input does not evaluate the source. Each bucket holds its elements in
+   * source order, so the output order is the same as for a nested-loop join.
+   */
+  private static class HashJoinRowSink extends BaseRowSink {
+    final Op op; // inner (SCAN) or left
+    final Core.Pat pat;
+    /** Number of stack slots pushed per element. */
+    final int varCount;
+    /** Whether the newly scanned fields are optional downstream (left join). */
+    final boolean optionalRight;
+
+    final Code code;
+    final ImmutableList<Code> leftKeyCodes;
+    final ImmutableList<Code> rightKeyCodes;
+    final Code conditionCode;
+
+    /** Source elements, grouped by key; populated by {@link #build}. */
+    final Map<Object, List<Object>> map = new HashMap<>();
+
+    boolean built;
+
+    HashJoinRowSink(
+        Op op,
+        Core.Pat pat,
+        int varCount,
+        Code code,
+        ImmutableList<Code> leftKeyCodes,
+        ImmutableList<Code> rightKeyCodes,
+        Code conditionCode,
+        RowSink rowSink) {
+      super(rowSink);
+      checkArgument(
+          op == Op.SCAN || op == Op.LEFT_JOIN, "not a hash join: %s", op);
+      checkArgument(
+          !leftKeyCodes.isEmpty()
+              && leftKeyCodes.size() == rightKeyCodes.size(),
+          "keys must be non-empty and the same size");
+      this.op = op;
+      this.pat = pat;
+      this.varCount = varCount;
+      this.optionalRight = op.optionalizesRight();
+      this.code = code;
+      this.leftKeyCodes = leftKeyCodes;
+      this.rightKeyCodes = rightKeyCodes;
+      this.conditionCode = conditionCode;
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "hashJoin",
+          d ->
+              d.arg("pat", pat)
+                  .arg("exp", code)
+                  .args("leftKeys", leftKeyCodes)
+                  .args("rightKeys", rightKeyCodes)
+                  .argIf(
+                      "condition",
+                      conditionCode,
+                      !ScanRowSink.isConstantTrue(conditionCode))
+                  .arg("sink", rowSink));
+    }
+
+    @Override
+    public int maxSlots() {
+      return varCount + rowSink.maxSlots();
+    }
+
+    @Override
+    boolean canPartition() {
+      // Each partition builds its own hash table.
+      return true;
+    }
+
+    @Override
+    public void start(Stack stack) {
+      // Each execution of the query re-evaluates the source.
+      map.clear();
+      built = false;
+      super.start(stack);
+    }
+
+    /** Evaluates a key. A composite key is a list of the key values. */
+    static Object key(ImmutableList<Code> keyCodes, Stack stack) {
+      if (keyCodes.size() == 1) {
+        return keyCodes.get(0).eval(stack);
+      }
+      final Object[] values = new Object[keyCodes.size()];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = keyCodes.get(i).eval(stack);
+      }
+      return Tuple.wrap(values);
+    }
+
+    /** Evaluates the source and populates the hash table. */
+    private void build(Stack stack) {
+      final Iterable<Object> elements = (Iterable<Object>) code.eval(stack);
+      final Stack s = stack.ensureSize(varCount);
+      final int savedTop = s.save();
       for (Object element : elements) {
         s.restore(savedTop);
-        // Push scan variable bindings onto the stack.
+        // An element that does not match the pattern can never be emitted.
         if (Closure.StackClosure.pushBindings(pat, element, s)) {
+          map.computeIfAbsent(key(rightKeyCodes, s), k -> new ArrayList<>())
+              .add(element);
+        }
+      }
+      s.restore(savedTop);
+      built = true;
+    }
+
+    @Override
+    public void accept(Stack stack) {
+      if (!built) {
+        build(stack);
+      }
+      final List<Object> bucket = map.get(key(leftKeyCodes, stack));
+      final Stack s = stack.ensureSize(varCount);
+      final int savedTop = s.save();
+      boolean matched = false;
+      if (bucket != null) {
+        for (Object element : bucket) {
+          s.restore(savedTop);
+          Closure.StackClosure.pushBindings(pat, element, s);
           if ((Boolean) conditionCode.eval(s)) {
             if (optionalRight) {
-              // 'left join': the newly scanned fields are optional downstream,
-              // so wrap them in 'SOME'. (The 'on' condition above saw the raw,
-              // unwrapped values.)
               for (int k = savedTop; k < savedTop + varCount; k++) {
                 s.slots[k] = Codes.optionSome(s.slots[k]);
               }
             }
             matched = true;
             rowSink.accept(s);
+            if (rowSink.isDone()) {
+              break;
+            }
           }
         }
       }
@@ -404,6 +868,11 @@ public abstract class RowSinks {
     final int leftSlotCount;
 
     final Code code;
+    /** Equi-join keys of the input row, or null if the join is not keyed. */
+    final @Nullable ImmutableList<Code> leftKeyCodes;
+    /** Equi-join keys of a source row, or null if the join is not keyed. */
+    final @Nullable ImmutableList<Code> rightKeyCodes;
+
     final Code conditionCode;
     /**
      * Counts candidate pairs, for an {@code ordinal} in the condition; null if
@@ -418,12 +887,25 @@ public abstract class RowSinks {
 
     /** Materialized source rows; set in {@link #start}. */
     final List<Object> rightRows = new ArrayList<>();
+    /**
+     * Indexes of source rows, partitioned by key, each partition in source
+     * order; set in {@link #start} if the join is keyed.
+     */
+    final Map<Object, Partition> partitions = new HashMap<>();
+    /**
+     * Indexes of all source rows, in source order; the single partition that
+     * every input row probes if the join is not keyed.
+     */
+    final Partition allRows = new Partition();
     /**
      * Source rows that have not yet matched any input row (a set bit means the
      * row at that index is unmatched). Iterated by {@link #result} to emit the
-     * unmatched rows, visiting only the set bits.
+     * unmatched rows, visiting only the set bits. It spans all partitions, so
+     * that unmatched rows are emitted in source order.
      */
     final BitSet rightUnmatched = new BitSet();
+    /** Indexes of the matches of the current input row. */
+    int[] matchIndexes = new int[0];
 
     BuildJoinRowSink(
         Op op,
@@ -431,6 +913,8 @@ public abstract class RowSinks {
         int varCount,
         int leftSlotCount,
         Code code,
+        @Nullable ImmutableList<Code> leftKeyCodes,
+        @Nullable ImmutableList<Code> rightKeyCodes,
         Code conditionCode,
         int @Nullable [] ordinalSlots,
         RowSink rowSink) {
@@ -439,11 +923,20 @@ public abstract class RowSinks {
           op == Op.RIGHT_JOIN || op == Op.FULL_JOIN,
           "not a build join: %s",
           op);
+      checkArgument(
+          leftKeyCodes == null
+              ? rightKeyCodes == null
+              : rightKeyCodes != null
+                  && !leftKeyCodes.isEmpty()
+                  && leftKeyCodes.size() == rightKeyCodes.size(),
+          "keys must be both null, or non-empty and the same size");
       this.op = op;
       this.pat = pat;
       this.varCount = varCount;
       this.leftSlotCount = leftSlotCount;
       this.code = code;
+      this.leftKeyCodes = leftKeyCodes;
+      this.rightKeyCodes = rightKeyCodes;
       this.conditionCode = conditionCode;
       this.optionalRight = op.optionalizesRight();
       this.fullJoin = op == Op.FULL_JOIN;
@@ -454,14 +947,17 @@ public abstract class RowSinks {
     public Describer describe(Describer describer) {
       return describer.start(
           "buildJoin",
-          d ->
-              d.arg("pat", pat)
-                  .arg("exp", code)
-                  .argIf(
-                      "condition",
-                      conditionCode,
-                      !ScanRowSink.isConstantTrue(conditionCode))
-                  .arg("sink", rowSink));
+          d -> {
+            d.arg("pat", pat).arg("exp", code);
+            if (leftKeyCodes != null && rightKeyCodes != null) {
+              d.args("leftKeys", leftKeyCodes).args("rightKeys", rightKeyCodes);
+            }
+            d.argIf(
+                    "condition",
+                    conditionCode,
+                    !ScanRowSink.isConstantTrue(conditionCode))
+                .arg("sink", rowSink);
+          });
     }
 
     @Override
@@ -476,18 +972,50 @@ public abstract class RowSinks {
         ordinalSlots[0] = -1;
       }
       // Materialize the source ('right') side. It is independent of the input,
-      // so a single evaluation suffices.
+      // so a single evaluation suffices. The input fields are not yet on the
+      // stack; 'code' and 'rightKeyCodes' are compiled accordingly.
       final Iterable<Object> elements = (Iterable<Object>) code.eval(stack);
       this.rightRows.clear();
       Iterables.addAll(rightRows, elements);
       // Initially every source row is unmatched.
       rightUnmatched.set(0, rightRows.size());
       rightUnmatched.clear(rightRows.size(), rightUnmatched.length());
+      partitions.clear();
+      allRows.clear();
+      if (rightKeyCodes == null) {
+        for (int ri = 0; ri < rightRows.size(); ri++) {
+          allRows.add(ri);
+        }
+      } else {
+        final Stack s = stack.ensureSize(varCount);
+        final int savedTop = s.save();
+        for (int ri = 0; ri < rightRows.size(); ri++) {
+          s.restore(savedTop);
+          // A row that does not match the pattern can never be matched; it is
+          // in no partition, but remains unmatched.
+          if (Closure.StackClosure.pushBindings(pat, rightRows.get(ri), s)) {
+            partitions
+                .computeIfAbsent(
+                    HashJoinRowSink.key(rightKeyCodes, s), k -> new Partition())
+                .add(ri);
+          }
+        }
+        s.restore(savedTop);
+      }
+      if (matchIndexes.length < rightRows.size()) {
+        matchIndexes = new int[rightRows.size()];
+      }
       super.start(stack);
     }
 
     @Override
     public void accept(Stack stack) {
+      final Partition partition;
+      if (leftKeyCodes == null) {
+        partition = allRows;
+      } else {
+        partition = partitions.get(HashJoinRowSink.key(leftKeyCodes, stack));
+      }
       final Stack s = stack.ensureSize(varCount);
       final int savedTop = s.save();
       // Save the raw input ('left') field values. They are present in this row,
@@ -497,15 +1025,18 @@ public abstract class RowSinks {
       System.arraycopy(
           s.slots, savedTop - leftSlotCount, rawLeft, 0, leftSlotCount);
       // Find the source rows matching this input row. The 'on' condition sees
-      // the raw, unwrapped values.
-      final int[] matchIndexes = new int[rightRows.size()];
+      // the raw, unwrapped values. Only rows in the input row's partition are
+      // candidates.
       int matchCount = 0;
-      for (int ri = 0; ri < rightRows.size(); ri++) {
-        s.restore(savedTop);
-        if (Closure.StackClosure.pushBindings(pat, rightRows.get(ri), s)
-            && (Boolean) conditionCode.eval(s)) {
-          matchIndexes[matchCount++] = ri;
-          rightUnmatched.clear(ri);
+      if (partition != null) {
+        for (int p = 0; p < partition.size; p++) {
+          final int ri = partition.rows[p];
+          s.restore(savedTop);
+          if (Closure.StackClosure.pushBindings(pat, rightRows.get(ri), s)
+              && (Boolean) conditionCode.eval(s)) {
+            matchIndexes[matchCount++] = ri;
+            rightUnmatched.clear(ri);
+          }
         }
       }
       s.restore(savedTop);
@@ -514,7 +1045,7 @@ public abstract class RowSinks {
         s.slots[k] = Codes.optionSome(s.slots[k]);
       }
       // Emit each matching (input, source) pair.
-      for (int m = 0; m < matchCount; m++) {
+      for (int m = 0; m < matchCount && !rowSink.isDone(); m++) {
         s.restore(savedTop);
         Closure.StackClosure.pushBindings(
             pat, rightRows.get(matchIndexes[m]), s);
@@ -549,7 +1080,7 @@ public abstract class RowSinks {
       // Emit the source rows that matched no input row, visiting only the set
       // (unmatched) bits.
       for (int ri = rightUnmatched.nextSetBit(0);
-          ri >= 0;
+          ri >= 0 && !rowSink.isDone();
           ri = rightUnmatched.nextSetBit(ri + 1)) {
         s.restore(savedTop);
         // The input fields are absent: 'NONE'.
@@ -571,6 +1102,23 @@ public abstract class RowSinks {
       s.restore(savedTop);
       return rowSink.result(stack);
     }
+
+    /** Indexes of the source rows in a partition, in source order. */
+    private static class Partition {
+      int[] rows = new int[4];
+      int size;
+
+      void add(int row) {
+        if (size == rows.length) {
+          rows = Arrays.copyOf(rows, size * 2);
+        }
+        rows[size++] = row;
+      }
+
+      void clear() {
+        size = 0;
+      }
+    }
   }
 
   /** Implementation of {@link RowSink} for a {@code where} step. */
@@ -588,6 +1136,11 @@ public abstract class RowSinks {
           "where", d -> d.arg("condition", filterCode).arg("sink", rowSink));
     }
 
+    @Override
+    boolean canPartition() {
+      return true;
+    }
+
     @Override
     public void accept(Stack stack) {
       if ((Boolean) filterCode.eval(stack)) {
@@ -702,6 +1255,11 @@ public abstract class RowSinks {
         rowSink.accept(stack);
       }
     }
+
+    @Override
+    public boolean isDone() {
+      return take <= 0 || rowSink.isDone();
+    }
   }
 
   /**
@@ -781,12 +1339,16 @@ public abstract class RowSinks {
      * the value's fields are the key directly, matching the key built by {@link
      * #computeKey(Stack)} for the left-hand side, so the two sides probe the
      * same map entries.
+     *
+     * <p>The key is a {@link Tuple}, whose hash code is computed once. If the
+     * element is already a tuple, as it is if {@link Codes.TupleCode} created
+     * it, it is its own key.
      */
     Object elementKey(Object element) {
       if (names.size() == 1) {
         return element;
       }
-      return ImmutableList.copyOf((List<Object>) element);
+      return Tuple.copyOf((List<?>) element);
     }
 
     /**
@@ -836,7 +1398,7 @@ public abstract class RowSinks {
           int idx = inSlots.leftList().indexOf(names.get(i));
           keyValues[i] = inSlots.right(idx).eval(stack);
         }
-        return ImmutableList.copyOf(keyValues);
+        return Tuple.wrap(keyValues);
       }
     }
 
@@ -980,6 +1542,9 @@ public abstract class RowSinks {
         for (Object element : map.keySet()) {
           rowSink.accept(withRowFromKey(s, element));
           s.restore(savedTop);
+          if (rowSink.isDone()) {
+            break;
+          }
         }
       }
       return rowSink.result(stack);
@@ -1110,7 +1675,7 @@ public abstract class RowSinks {
         final int savedTop = s.top;
         map.forEach(
             (k, v) -> {
-              if (v[0] > 0) {
+              if (v[0] > 0 && !rowSink.isDone()) {
                 rowSink.accept(withRowFromKey(s, k));
                 s.restore(savedTop);
               }
@@ -1145,24 +1710,115 @@ public abstract class RowSinks {
       Stack s = stack.ensureSize(names.size());
       final int savedTop = s.top;
       for (Code code : codes) {
-        final Iterable<Object> elements = (Iterable<Object>) code.eval(stack);
-        for (Object element : elements) {
-          if (!distinct || addElement(element)) {
-            rowSink.accept(withRowFromKey(s, element));
-            s.restore(savedTop);
+        if (rowSink.isDone()) {
+          break;
+        }
+        final Iterator<Object> elements =
+            ((Iterable<Object>) code.eval(stack)).iterator();
+        try {
+          while (elements.hasNext() && !rowSink.isDone()) {
+            final Object element = elements.next();
+            if (!distinct || addElement(element)) {
+              rowSink.accept(withRowFromKey(s, element));
+              s.restore(savedTop);
+            }
           }
+        } finally {
+          close(elements);
         }
       }
       return rowSink.result(stack);
     }
   }
 
-  /** Implementation of {@link RowSink} for a {@code group} step. */
-  private static class GroupRowSink extends BaseRowSink {
+  /**
+   * Abstract implementation of {@link RowSink} for a {@code group} step.
+   *
+   * @param <G> State of one group
+   */
+  private abstract static class AbstractGroupRowSink<G> extends BaseRowSink {
     final Code keyCode;
     final ImmutableList<String> keyNames;
     /** group names followed by aggregate names */
     final ImmutableList<String> outNames;
+    /** {@link #outNames}, to be resolved to {@link GlobalFrame} slots */
+    final GlobalFrame.Names outGlobalNames;
+    // Keys iterate in the order they first arrive (not hash order), so that
+    // 'group' and 'distinct' preserve the input's arrival order.
+    final Map<Object, G> groups = new LinkedHashMap<>();
+
+    AbstractGroupRowSink(
+        Code keyCode,
+        ImmutableList<String> keyNames,
+        ImmutableList<String> outNames,
+        RowSink rowSink) {
+      super(rowSink);
+      this.keyCode = requireNonNull(keyCode);
+      this.keyNames = requireNonNull(keyNames);
+      this.outNames = requireNonNull(outNames);
+      this.outGlobalNames = GlobalFrame.Names.of(outNames);
+      checkArgument(isPrefix(keyNames, outNames));
+    }
+
+    static <E> boolean isPrefix(List<E> list0, List<E> list1) {
+      return list0.size() <= list1.size()
+          && list0.equals(list1.subList(0, list0.size()));
+    }
+
+    /** Creates the state of a group that has no rows. */
+    abstract G newGroup();
+
+    /** Computes the aggregates of a group into {@code aggResults}. */
+    abstract void aggregate(Stack stack, G group, Object[] aggResults);
+
+    @Override
+    public List<Object> result(Stack stack) {
+      final GlobalFrame globalEnv = stack.currentEnv();
+      final int[] outSlots = outGlobalNames.slots(globalEnv);
+      final @Nullable GlobalFrame savedEnv = stack.env();
+      final Map<Object, G> map2;
+      if (groups.isEmpty()
+          && keyCode instanceof Codes.TupleCode
+          && ((Codes.TupleCode) keyCode).codes.isEmpty()) {
+        map2 = ImmutableMap.of(ImmutableList.of(), newGroup());
+      } else {
+        map2 = groups;
+      }
+      try {
+        final Object[] aggResults =
+            new Object[outNames.size() - keyNames.size()];
+        for (Map.Entry<Object, G> entry : map2.entrySet()) {
+          final List list = (List) entry.getKey();
+          // Bind key vars in a new frame so GetCode-based aggregate argument
+          // expressions can read them. Each group has its own frame, because
+          // a closure created downstream may keep it.
+          final Object[] values = new Object[outSlots.length];
+          for (int j = 0; j < list.size(); j++) {
+            values[j] = list.get(j);
+          }
+          stack.setEnv(globalEnv.bind(outSlots, values));
+          // Compute all aggregates.
+          aggregate(stack, entry.getValue(), aggResults);
+          // Put agg results; downstream rowSink sees key + all agg vars.
+          System.arraycopy(
+              aggResults, 0, values, keyNames.size(), aggResults.length);
+          rowSink.accept(stack);
+          if (rowSink.isDone()) {
+            break;
+          }
+        }
+        return rowSink.result(stack);
+      } finally {
+        stack.setEnv(savedEnv);
+      }
+    }
+  }
+
+  /**
+   * Implementation of {@link RowSink} for a {@code group} step that buffers the
+   * rows of each group, then applies the aggregate functions to them.
+   */
+  private static class GroupRowSink extends AbstractGroupRowSink<List<Object>> {
     /**
      * (Name, code) slots to capture scope variables during {@code
      * accept(Stack)}.
@@ -1176,10 +1832,6 @@ public abstract class RowSinks {
     final int scanDepth;
 
     final ImmutableList<Applicable> aggregateCodes;
-    // Keys iterate in the order they first arrive (not hash order), so that
-    // 'group' and 'distinct' preserve the input's arrival order.
-    final ListMultimap<Object, Object> map =
-        MultimapBuilder.linkedHashKeys().arrayListValues().build();
     final Object[] values;
 
     GroupRowSink(
@@ -1190,15 +1842,11 @@ public abstract class RowSinks {
         ImmutableList<String> keyNames,
         ImmutableList<String> outNames,
         RowSink rowSink) {
-      super(rowSink);
-      this.keyCode = requireNonNull(keyCode);
+      super(keyCode, keyNames, outNames, rowSink);
       this.aggregateCodes = requireNonNull(aggregateCodes);
       this.inSlots = requireNonNull(inSlots);
       this.scanDepth = scanDepth;
-      this.keyNames = requireNonNull(keyNames);
-      this.outNames = requireNonNull(outNames);
       this.values = inSlots.size() == 1 ? null : new Object[inSlots.size()];
-      checkArgument(isPrefix(keyNames, outNames));
     }
 
     @Override
@@ -1206,11 +1854,6 @@ public abstract class RowSinks {
       return scanDepth + rowSink.maxSlots();
     }
 
-    static <E> boolean isPrefix(List<E> list0, List<E> list1) {
-      return list0.size() <= list1.size()
-          && list0.equals(list1.subList(0, list0.size()));
-    }
-
     @Override
     public Describer describe(Describer describer) {
       return describer.start(
@@ -1224,71 +1867,118 @@ public abstract class RowSinks {
 
     @Override
     public void accept(Stack stack) {
+      final Object row;
       if (inSlots.size() == 1) {
-        map.put(keyCode.eval(stack), inSlots.right(0).eval(stack));
+        row = inSlots.right(0).eval(stack);
       } else {
         for (int i = 0; i < inSlots.size(); i++) {
           values[i] = inSlots.right(i).eval(stack);
         }
-        map.put(keyCode.eval(stack), values.clone());
+        row = values.clone();
       }
+      groups.computeIfAbsent(keyCode.eval(stack), k -> newGroup()).add(row);
     }
 
     @Override
-    public List<Object> result(Stack stack) {
-      final Map<String, Object> globalEnv = stack.currentEnv();
-      // Save old values for all output names.
-      final Object[] savedValues = new Object[outNames.size()];
-      for (int j = 0; j < outNames.size(); j++) {
-        savedValues[j] = globalEnv.get(outNames.get(j));
-      }
-      final Map<Object, List<Object>> map2;
-      if (map.isEmpty()
-          && keyCode instanceof Codes.TupleCode
-          && ((Codes.TupleCode) keyCode).codes.isEmpty()) {
-        map2 = ImmutableMap.of(ImmutableList.of(), ImmutableList.of());
-      } else {
-        //noinspection UnstableApiUsage
-        map2 = Multimaps.asMap(map);
+    List<Object> newGroup() {
+      return new ArrayList<>();
+    }
+
+    @Override
+    void aggregate(Stack stack, List<Object> rows, Object[] aggResults) {
+      for (int j = 0; j < aggregateCodes.size(); j++) {
+        aggResults[j] = aggregateCodes.get(j).apply(stack, rows);
       }
-      try {
-        for (Map.Entry<Object, List<Object>> entry : map2.entrySet()) {
-          final List list = (List) entry.getKey();
-          // Set key vars in globalEnv so GetCode-based aggregate argument
-          // expressions can read them.
-          for (int j = 0; j < list.size(); j++) {
-            globalEnv.put(keyNames.get(j), list.get(j));
-          }
-          // Compute all aggregates.
-          final List<Object> rows = entry.getValue();
-          final Object[] aggResults = new Object[aggregateCodes.size()];
-          for (int j = 0; j < aggregateCodes.size(); j++) {
-            aggResults[j] = aggregateCodes.get(j).apply(stack, rows);
-          }
-          // Put agg results; downstream rowSink sees key + all agg vars.
-          for (int j = 0; j < aggResults.length; j++) {
-            globalEnv.put(outNames.get(keyNames.size() + j), aggResults[j]);
-          }
-          rowSink.accept(stack);
-        }
-        return rowSink.result(stack);
-      } finally {
-        // Restore saved values.
-        for (int j = 0; j < outNames.size(); j++) {
-          final Object saved = savedValues[j];
-          if (saved == null) {
-            globalEnv.remove(outNames.get(j));
-          } else {
-            globalEnv.put(outNames.get(j), saved);
-          }
-        }
+    }
+  }
+
+  /**
+   * Implementation of {@link RowSink} for a {@code group} step whose aggregate
+   * functions are all {@link Codes.Accumulable accumulable}.
+   *
+   * <p>Each aggregate's argument is evaluated as the row arrives, and added to
+   * the group's accumulator. The sink does not buffer rows, and uses memory
+   * proportional to the number of groups.
+   */
+  private static class AccumulateGroupRowSink
+      extends AbstractGroupRowSink<Codes.Accumulator[]> {
+    final ImmutableList<Codes.Accumulable> aggregates;
+    /** Argument of each aggregate, evaluated in {@link #accept(Stack)}. */
+    final ImmutableList<Code> argumentCodes;
+
+    AccumulateGroupRowSink(
+        Code keyCode,
+        ImmutableList<Codes.Accumulable> aggregates,
+        ImmutableList<Code> argumentCodes,
+        ImmutableList<String> keyNames,
+        ImmutableList<String> outNames,
+        RowSink rowSink) {
+      super(keyCode, keyNames, outNames, rowSink);
+      this.aggregates = requireNonNull(aggregates);
+      this.argumentCodes = requireNonNull(argumentCodes);
+      checkArgument(aggregates.size() == argumentCodes.size());
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "group",
+          d -> {
+            d.arg("key", keyCode);
+            forEachIndexed(
+                aggregates,
+                (aggregate, j) ->
+                    d.arg(
+                        "agg",
+                        describer2 ->
+                            describer2.start(
+                                "accumulate",
+                                d2 ->
+                                    d2.arg("fn", aggregate)
+                                        .arg("arg", argumentCodes.get(j)))));
+            d.arg("sink", rowSink);
+          });
+    }
+
+    @Override
+    public void accept(Stack stack) {
+      final Codes.Accumulator[] accumulators =
+          groups.computeIfAbsent(keyCode.eval(stack), k -> newGroup());
+      for (int j = 0; j < accumulators.length; j++) {
+        accumulators[j].add(argumentCodes.get(j).eval(stack));
+      }
+    }
+
+    @Override
+    Codes.Accumulator[] newGroup() {
+      final Codes.Accumulator[] accumulators =
+          new Codes.Accumulator[aggregates.size()];
+      for (int j = 0; j < accumulators.length; j++) {
+        accumulators[j] = aggregates.get(j).accumulator();
+      }
+      return accumulators;
+    }
+
+    @Override
+    void aggregate(
+        Stack stack, Codes.Accumulator[] accumulators, Object[] aggResults) {
+      for (int j = 0; j < accumulators.length; j++) {
+        aggResults[j] = accumulators[j].result();
       }
     }
   }
 
-  /** Implementation of {@link RowSink} for an {@code order} step. */
+  /**
+   * Implementation of {@link RowSink} for an {@code order} step.
+   *
+   * <p>Evaluates each row's sort key once, as the row arrives, into a list
+   * parallel to the rows, then sorts the rows' indexes by key. The sort is
+   * stable.
+   */
   private static class OrderRowSink extends BaseRowSink {
+    /** Sort key, evaluated in {@link #accept(Stack)}. */
     final Code code;
+
     final Comparator comparator;
     /**
      * (Name, code) slots to capture scope variables during {@code
@@ -1297,7 +1987,7 @@ public abstract class RowSinks {
     final ImmutablePairList<String, Code> inSlots;
 
     final List<Object> rows = new ArrayList<>();
-    final Object @Nullable [] values;
+    final List<Object> keys = new ArrayList<>();
 
     OrderRowSink(
         Code code,
@@ -1308,7 +1998,6 @@ public abstract class RowSinks {
       this.code = code;
       this.comparator = comparator;
       this.inSlots = inSlots;
-      this.values = inSlots.size() == 1 ? null : new Object[inSlots.size()];
     }
 
     @Override
@@ -1319,15 +2008,20 @@ public abstract class RowSinks {
 
     @Override
     public void accept(Stack stack) {
-      // Use inSlots to capture scope variables from stack/env.
+      keys.add(code.eval(stack));
+      rows.add(captureRow(stack));
+    }
+
+    /** Uses inSlots to capture scope variables from stack/env. */
+    Object captureRow(Stack stack) {
       if (inSlots.size() == 1) {
-        rows.add(inSlots.right(0).eval(stack));
+        return inSlots.right(0).eval(stack);
       } else {
         final Object[] row = new Object[inSlots.size()];
         for (int i = 0; i < inSlots.size(); i++) {
           row[i] = inSlots.right(i).eval(stack);
         }
-        rows.add(row);
+        return row;
       }
     }
 
@@ -1338,20 +2032,22 @@ public abstract class RowSinks {
 
     @Override
     public List<Object> result(Stack stack) {
+      final Integer[] indexes = new Integer[rows.size()];
+      for (int i = 0; i < indexes.length; i++) {
+        indexes[i] = i;
+      }
+      // Arrays.sort on objects is a stable merge sort.
+      //noinspection unchecked
+      Arrays.sort(
+          indexes, (i, j) -> comparator.compare(keys.get(i), keys.get(j)));
       Stack s = stack.ensureSize(inSlots.size());
       final int savedTop = s.top;
-      final Stack s2 = s; // effectively final for lambda
-      rows.sort(
-          (left, right) -> {
-            final Object leftVal = code.eval(withRow(s2, left));
-            s2.restore(savedTop);
-            final Object rightVal = code.eval(withRow(s2, right));
-            s2.restore(savedTop);
-            return comparator.compare(leftVal, rightVal);
-          });
-      for (Object row : rows) {
-        rowSink.accept(withRow(s, row));
+      for (Integer i : indexes) {
+        rowSink.accept(withRow(s, rows.get(i)));
         s.restore(savedTop);
+        if (rowSink.isDone()) {
+          break;
+        }
       }
       return rowSink.result(stack);
     }
@@ -1364,7 +2060,7 @@ public abstract class RowSinks {
      * <p>All scope vars (both formerly stack-based and formerly env-based) are
      * now pushed as stack slots; no {@code globalEnv} extension is needed.
      */
-    private Stack withRow(Stack s, Object row) {
+    Stack withRow(Stack s, Object row) {
       if (inSlots.size() == 1) {
         s.push(row);
       } else {
@@ -1377,6 +2073,125 @@ public abstract class RowSinks {
     }
   }
 
+  /**
+   * Implementation of {@link RowSink} for an {@code order} step followed by a
+   * {@code take} step, and optionally a {@code skip} step between them.
+   *
+   * <p>Rather than sorting all rows, keeps the first {@code skip + take} rows
+   * in a bounded heap. Uses memory proportional to {@code skip + take}, and
+   * time proportional to {@code rows * log(skip + take)}.
+   *
+   * <p>Ties are broken by arrival order, so the result is the same as that of a
+   * stable sort followed by {@code skip} and {@code take}.
+   */
+  private static class TopNRowSink extends OrderRowSink {
+    final @Nullable Code skipCode;
+    final Code takeCode;
+    /** Entry comparator; orders by key, then by arrival order. */
+    final Comparator<Entry> entryComparator;
+
+    /**
+     * Heap of the best {@code skip + take} entries seen so far; the head is the
+     * worst of them.
+     */
+    final PriorityQueue<Entry> heap;
+
+    int skip;
+    int limit;
+    long count;
+
+    @SuppressWarnings("unchecked")
+    TopNRowSink(
+        Code code,
+        Comparator comparator,
+        @Nullable Code skipCode,
+        Code takeCode,
+        ImmutablePairList<String, Code> inSlots,
+        RowSink rowSink) {
+      super(code, comparator, inSlots, rowSink);
+      this.skipCode = skipCode;
+      this.takeCode = requireNonNull(takeCode);
+      final Comparator<Entry> keyComparator =
+          (e0, e1) -> comparator.compare(e0.key, e1.key);
+      this.entryComparator =
+          keyComparator.thenComparingLong(entry -> entry.ordinal);
+      this.heap = new PriorityQueue<>(entryComparator.reversed());
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      return describer.start(
+          "topN",
+          d -> {
+            d.arg("code", code);
+            if (skipCode != null) {
+              d.arg("skip", skipCode);
+            }
+            d.arg("take", takeCode).arg("sink", rowSink);
+          });
+    }
+
+    @Override
+    public void start(Stack stack) {
+      // Evaluate the counts in the same order as the 'skip' and 'take'
+      // sinks would.
+      skip = skipCode == null ? 0 : Math.max((Integer) skipCode.eval(stack), 0);
+      final int take = Math.max((Integer) takeCode.eval(stack), 0);
+      limit =
+          take == 0 ? 0 : (int) Math.min((long) skip + take, Integer.MAX_VALUE);
+      heap.clear();
+      count = 0;
+      rowSink.start(stack);
+    }
+
+    @Override
+    public boolean isDone() {
+      return limit == 0 || rowSink.isDone();
+    }
+
+    @Override
+    public void accept(Stack stack) {
+      if (limit == 0) {
+        return;
+      }
+      final Entry entry =
+          new Entry(code.eval(stack), count++, captureRow(stack));
+      if (heap.size() < limit) {
+        heap.add(entry);
+      } else if (entryComparator.compare(entry, heap.element()) < 0) {
+        heap.remove();
+        heap.add(entry);
+      }
+    }
+
+    @Override
+    public List<Object> result(Stack stack) {
+      final Entry[] entries = heap.toArray(new Entry[0]);
+      heap.clear();
+      Arrays.sort(entries, entryComparator);
+      Stack s = stack.ensureSize(inSlots.size());
+      final int savedTop = s.top;
+      for (int i = skip; i < entries.length && !rowSink.isDone(); i++) {
+        rowSink.accept(withRow(s, entries[i].row));
+        s.restore(savedTop);
+      }
+      return rowSink.result(stack);
+    }
+
+    /** Row, with its sort key and arrival order. */
+    private static class Entry {
+      final Object key;
+      final long ordinal;
+      final Object row;
+
+      Entry(Object key, long ordinal, Object row) {
+        this.key = key;
+        this.ordinal = ordinal;
+        this.row = row;
+      }
+    }
+  }
+
   /**
    * Implementation of {@link RowSink} for a {@code yield} step.
    *
@@ -1426,6 +2241,11 @@ public abstract class RowSinks {
       return codes.size() + rowSink.maxSlots();
     }
 
+    @Override
+    boolean canPartition() {
+      return ordinalSlots == null;
+    }
+
     @Override
     public void accept(Stack stack) {
       Stack s = stack.ensureSize(codes.size());
@@ -1449,6 +2269,92 @@ public abstract class RowSinks {
     }
   }
 
+  /**
+   * Implementation of {@link RowSink} that marks the end of the steps that can
+   * be evaluated in parallel partitions.
+   *
+   * <p>In a query that is not partitioned, it passes each row through. In a
+   * partition, if the following sink is a {@link CollectRowSink} it passes rows
+   * through to that sink (which belongs to the partition), and otherwise it
+   * buffers the values of each row's stack slots. The exchange of the query
+   * merges each partition's rows, in order, into its own following sink by
+   * {@link #merge}; the steps after the exchange, such as {@code group} or
+   * {@code order}, therefore run in one thread.
+   */
+  private static class ExchangeRowSink extends BaseRowSink {
+    /** Whether this sink belongs to a partition of a query. */
+    boolean partitioned;
+    /** Whether, in a partition, rows go directly to a collect sink. */
+    boolean collect;
+    /** Stack top when the partition started; rows are the slots above it. */
+    int base;
+    /** Rows buffered by a partition that does not collect. */
+    final List<Object[]> rows = new ArrayList<>();
+
+    ExchangeRowSink(RowSink rowSink) {
+      super(rowSink);
+    }
+
+    @Override
+    public Describer describe(Describer describer) {
+      // An exchange does not change the rows, so it does not appear in plans.
+      return rowSink.describe(describer);
+    }
+
+    @Override
+    public void start(Stack stack) {
+      if (!partitioned) {
+        super.start(stack);
+        return;
+      }
+      base = stack.top;
+      rows.clear();
+      collect =
+          rowSink instanceof CollectRowSink
+              && ((CollectRowSink) rowSink).ordinalSlots == null;
+      if (collect) {
+        rowSink.start(stack);
+      }
+    }
+
+    @Override
+    public void accept(Stack stack) {
+      if (!partitioned || collect) {
+        rowSink.accept(stack);
+      } else {
+        rows.add(Arrays.copyOfRange(stack.slots, base, stack.top));
+      }
+    }
+
+    @Override
+    public boolean isDone() {
+      return (!partitioned || collect) && rowSink.isDone();
+    }
+
+    /** Merges the rows of a partition into the following sink. */
+    void merge(Stack stack, ExchangeRowSink partition) {
+      if (partition.collect) {
+        ((CollectRowSink) rowSink)
+            .list.addAll(((CollectRowSink) partition.rowSink).list);
+        return;
+      }
+      // The partition's stack had the same layout as this stack, so pushing a
+      // row's values re-creates the row as the partition saw it.
+      for (Object[] row : partition.rows) {
+        final Stack s = stack.ensureSize(row.length);
+        final int savedTop = s.top;
+        for (Object value : row) {
+          s.push(value);
+        }
+        rowSink.accept(s);
+        s.restore(savedTop);
+        if (rowSink.isDone()) {
+          break;
+        }
+      }
+    }
+  }
+
   /**
    * Implementation of {@link RowSink} that the last step of a {@code from}
    * writes into.
@@ -55,21 +55,27 @@ public class Session {
 
   private static Session createEmpty() {
     final Session s = new Session(ImmutableMap.of());
-    s.globalEnv = ImmutableMap.of();
+    s.globalEnv = new GlobalFrame(s.slotTable);
     return s;
   }
 
   /**
-   * The authoritative global environment, as a flat name-to-value map.
+   * The authoritative global environment, as a frame of slots.
    *
    * <p>Updated after each top-level statement so that closures created during
    * that statement always see the latest bindings when invoked later, without
    * per-closure patching.
    *
-   * <p>Group/aggregate and CalciteCompiler bridge code temporarily mutate this
-   * map (put + restore) during evaluation.
+   * <p>Group/aggregate and CalciteCompiler bridge code do not change this
+   * frame; they evaluate with a child frame (see {@link Stack#setEnv}).
    */
-  public Map<String, Object> globalEnv;
+  public GlobalFrame globalEnv;
+
+  /**
+   * Slots of global names in the frames of this session, including {@link
+   * #globalEnv}.
+   */
+  public final GlobalFrame.SlotTable slotTable = new GlobalFrame.SlotTable();
 
   /** The plan of the previous command. */
   public @Nullable Code code;
@@ -82,6 +88,9 @@ public class Session {
   /** Property values. */
   public final Map<Prop, Object> map;
 
+  /** Cache of the contents of data files in {@link #file}. */
+  public final Files.Cache fileCache = new Files.Cache();
+
   /**
    * File system.
    *
@@ -110,6 +119,12 @@ public class Session {
   /** Implementation of "use". */
   private Shell shell = Shells.INSTANCE;
 
+  /**
+   * Stack that each thread uses to call this session's functions without a
+   * stack. See {@link Stack#forThread}.
+   */
+  final ThreadLocal<@Nullable Stack> threadStack = new ThreadLocal<>();
+
   /**
    * Creates a Session.
    *
@@ -136,7 +151,7 @@ public class Session {
     this.typeSystem = typeSystem;
     this.file =
         Suppliers.memoize(
-            () -> Files.create(Prop.DIRECTORY.fileValue(this.map)));
+            () -> Files.create(Prop.DIRECTORY.fileValue(this.map), fileCache));
   }
 
   /**
@@ -21,8 +21,7 @@ package net.hydromatic.morel.eval;
 import static java.util.Objects.requireNonNull;
 
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
 /**
  * Evaluation stack for the Morel interpreter.
@@ -33,8 +32,9 @@ import java.util.Map;
  * giving O(1) access without walking an environment chain.
  *
  * <p>Global (top-level and built-in) bindings are accessed via {@link
- * Session#globalEnv}, a flat {@link HashMap} that row-sink and aggregate code
- * temporarily mutate (put + restore) during relational evaluation.
+ * #currentEnv()}, which is {@link Session#globalEnv} unless code has set a
+ * child frame (see {@link #setEnv}); row-sink and aggregate code set a child
+ * frame that binds group keys during relational evaluation.
  *
  * <p>{@code Stack} is shared across a function call chain. Built-in functions
  * that do not bind local variables pass the {@code Stack} through unchanged;
@@ -42,19 +42,23 @@ import java.util.Map;
  * #slots} and pop them on return.
  *
  * <p>{@code Stack} is NOT thread-safe. Each evaluation thread must use its own
- * {@code Stack} instance.
+ * {@code Stack} instance. A function that is called without a stack, say by a
+ * built-in function such as {@code List.map}, pushes its frame onto a stack
+ * that the current thread keeps for the session (see {@link #forThread}), so
+ * that a call does not allocate a stack.
  */
 public final class Stack {
   /** Empty stack with an empty session, for trivial calculations. */
   private static final Stack EMPTY = new Stack(Session.EMPTY, new Object[0], 0);
 
+  /** Initial capacity of the stack of a thread. */
+  private static final int THREAD_CAPACITY = 64;
+
   /**
    * The current session.
    *
    * <p>Provides access to {@link Session#globalEnv}, the authoritative
-   * environment for top-level declarations and built-ins. Row-sink and
-   * aggregate code temporarily extend {@code session.globalEnv} during
-   * evaluation.
+   * environment for top-level declarations and built-ins.
    *
    * <p>Is {@link Session#EMPTY} when a stack is created for compile-time
    * constant evaluation (e.g. inlining or constant-folding in tests).
@@ -75,6 +79,18 @@ public final class Stack {
    */
   public int top;
 
+  /**
+   * Highest slot that has been reserved by {@link #reserve} since the stack was
+   * last {@link #clear() cleared}. Only a thread's stack, from {@link
+   * #forThread}, is cleared.
+   */
+  private int highWater;
+
+  /**
+   * Frame of global values that overrides {@link Session#globalEnv}, or null.
+   */
+  private @Nullable GlobalFrame env;
+
   /**
    * Creates a Stack with a pre-allocated slots array.
    *
@@ -96,9 +112,42 @@ public final class Stack {
    */
   public Stack(
       final Session session, final Object[] parentSlots, final int top) {
+    this(session, parentSlots, top, null);
+  }
+
+  private Stack(
+      Session session, Object[] slots, int top, @Nullable GlobalFrame env) {
     this.session = session;
-    this.slots = parentSlots;
+    this.slots = slots;
     this.top = top;
+    this.env = env;
+  }
+
+  /**
+   * Returns the stack that the current thread uses to call functions of a
+   * session, with room for {@code needed} slots above its {@link #top}.
+   *
+   * <p>The caller pushes its frame above {@code top}, and must restore {@code
+   * top} when it is done, even if it throws. Frames are popped in the reverse
+   * order that they are pushed, so one stack serves every call in the thread,
+   * including calls made re-entrantly from built-in functions.
+   *
+   * <p>If the thread has no stack for the session, or its stack does not have
+   * room, creates a stack with at least double the capacity, and uses it for
+   * subsequent calls. Code addresses slots relative to {@code top}, so the
+   * frames that callers have pushed onto the previous stack stay there.
+   */
+  public static Stack forThread(Session session, int needed) {
+    final @Nullable Stack stack = session.threadStack.get();
+    if (stack != null && stack.reserve(needed)) {
+      return stack;
+    }
+    final int capacity =
+        stack == null ? THREAD_CAPACITY : stack.slots.length * 2;
+    final Stack stack2 = new Stack(session, Math.max(needed, capacity));
+    stack2.reserve(needed);
+    session.threadStack.set(stack2);
+    return stack2;
   }
 
   /** Creates a stack with {@link Session#EMPTY} and given capacity. */
@@ -112,11 +161,34 @@ public final class Stack {
   /**
    * Returns the current global environment.
    *
-   * <p>Delegates to {@link Session#globalEnv}, which may have been temporarily
-   * mutated by row-sink or aggregate code.
+   * <p>This is the frame most recently set by {@link #setEnv}, if any,
+   * otherwise {@link Session#globalEnv}.
+   */
+  public GlobalFrame currentEnv() {
+    final @Nullable GlobalFrame env = this.env;
+    return env != null ? env : requireNonNull(session.globalEnv, "globalEnv");
+  }
+
+  /**
+   * Returns the frame that overrides {@link Session#globalEnv}, or null (for
+   * save/restore).
    */
-  public Map<String, Object> currentEnv() {
-    return requireNonNull(session.globalEnv, "globalEnv");
+  public @Nullable GlobalFrame env() {
+    return env;
+  }
+
+  /**
+   * Sets the frame that overrides {@link Session#globalEnv}; if null, code
+   * reads {@code session.globalEnv}.
+   *
+   * <p>Code that binds global names during evaluation, such as a {@code group}
+   * step, sets a child frame (see {@link GlobalFrame#bind}), and restores the
+   * previous frame when it is done, even if it throws. A closure remembers the
+   * frame of the stack on which it was created, and sets it while its body
+   * runs.
+   */
+  public void setEnv(@Nullable GlobalFrame env) {
+    this.env = env;
   }
 
   /** Pushes {@code value} onto the stack. */
@@ -134,19 +206,54 @@ public final class Stack {
     top = savedTop;
   }
 
+  /**
+   * Reserves room for {@code needed} slots above {@link #top}, and returns
+   * whether this stack has room.
+   */
+  public boolean reserve(int needed) {
+    final int size = top + needed;
+    if (size > slots.length) {
+      return false;
+    }
+    if (size > highWater) {
+      highWater = size;
+    }
+    return true;
+  }
+
   /**
    * Returns this stack if it already has room for {@code needed} slots above
    * {@link #top}, or a new stack with a grown {@link #slots} array otherwise.
    *
    * <p>When compile-time slot estimates are accurate this method always returns
-   * {@code this}; it exists as a safe fallback for cases (e.g. deep recursion)
-   * where the required depth was not predictable at compile time.
+   * {@code this}; it exists as a safe fallback for cases where the required
+   * depth was not predictable at compile time. (A call to a closure does not
+   * use it; if the caller's stack does not have room, the closure pushes its
+   * frame onto the {@link #forThread thread's stack}.)
    */
   public Stack ensureSize(int needed) {
-    if (slots.length >= top + needed) {
+    if (reserve(needed)) {
       return this;
     }
-    return new Stack(session, Arrays.copyOf(slots, top + needed), top);
+    return new Stack(session, Arrays.copyOf(slots, top + needed), top, env);
+  }
+
+  /**
+   * Creates a stack with a copy of this stack's slots, and the same top and
+   * global environment, for use by another thread.
+   */
+  public Stack copy() {
+    return new Stack(session, slots.clone(), top, env);
+  }
+
+  /**
+   * Releases the values in the slots that have been used since the stack was
+   * last cleared, so that a thread's stack, which lives as long as its thread
+   * and session, does not keep them alive. Call when {@link #top} is 0.
+   */
+  public void clear() {
+    Arrays.fill(slots, 0, Math.min(highWater, slots.length), null);
+    highWater = 0;
   }
 }
 
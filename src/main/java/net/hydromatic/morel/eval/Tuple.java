@@ -0,0 +1,116 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.eval;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Value of a tuple or record.
+ *
+ * <p>Holds its fields in an array (for a record, in {@link
+ * net.hydromatic.morel.type.RecordType#ORDERING} order), and computes its hash
+ * code at most once, so that it is cheap to use as the key of a hash table in a
+ * {@code group}, {@code distinct}, {@code union}, {@code intersect} or {@code
+ * except} step.
+ *
+ * <p>It is an immutable {@link List}, equal to, and with the same hash code as,
+ * any other list with the same elements. Code that does not know about this
+ * class can continue to read tuples as lists.
+ */
+public final class Tuple extends AbstractList<@Nullable Object>
+    implements RandomAccess {
+  private final @Nullable Object[] values;
+
+  /** Hash code, or 0 if not yet computed. */
+  private int hash;
+
+  private Tuple(@Nullable Object[] values) {
+    this.values = requireNonNull(values);
+  }
+
+  /**
+   * Creates a tuple backed by an array.
+   *
+   * <p>The tuple takes ownership of the array; the caller must not modify it
+   * afterwards.
+   */
+  public static Tuple wrap(@Nullable Object[] values) {
+    return new Tuple(values);
+  }
+
+  /** Creates a tuple that contains a copy of an array. */
+  public static Tuple copyOf(@Nullable Object[] values) {
+    return new Tuple(values.clone());
+  }
+
+  /** Returns a tuple with the same elements as a list. */
+  public static Tuple copyOf(List<?> list) {
+    if (list instanceof Tuple) {
+      return (Tuple) list;
+    }
+    return new Tuple(list.toArray());
+  }
+
+  @Override
+  public @Nullable Object get(int index) {
+    return values[index];
+  }
+
+  @Override
+  public int size() {
+    return values.length;
+  }
+
+  @Override
+  public @Nullable Object[] toArray() {
+    return values.clone();
+  }
+
+  @Override
+  public int hashCode() {
+    int h = hash;
+    if (h == 0) {
+      // Same as List.hashCode.
+      h = Arrays.hashCode(values);
+      hash = h;
+    }
+    return h;
+  }
+
+  @Override
+  public boolean equals(@Nullable Object o) {
+    if (o == this) {
+      return true;
+    }
+    if (o instanceof Tuple) {
+      final Tuple that = (Tuple) o;
+      return (this.hash == 0 || that.hash == 0 || this.hash == that.hash)
+          && Arrays.equals(this.values, that.values);
+    }
+    return super.equals(o);
+  }
+}
+
+// End Tuple.java
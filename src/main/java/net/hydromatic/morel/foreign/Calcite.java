@@ -18,10 +18,17 @@
  */
 package net.hydromatic.morel.foreign;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
 import java.util.function.Function;
 import net.hydromatic.morel.compile.Environment;
 import net.hydromatic.morel.eval.Code;
@@ -31,6 +38,10 @@ import net.hydromatic.morel.eval.Stack;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.util.ThreadLocals;
 import org.apache.calcite.DataContext;
+import org.apache.calcite.adapter.enumerable.EnumerableConvention;
+import org.apache.calcite.adapter.enumerable.EnumerableInterpretable;
+import org.apache.calcite.adapter.enumerable.EnumerableRel;
+import org.apache.calcite.adapter.enumerable.EnumerableRules;
 import org.apache.calcite.adapter.java.JavaTypeFactory;
 import org.apache.calcite.config.CalciteConnectionConfig;
 import org.apache.calcite.interpreter.Interpreter;
@@ -40,14 +51,19 @@ import org.apache.calcite.linq4j.QueryProvider;
 import org.apache.calcite.plan.RelOptLattice;
 import org.apache.calcite.plan.RelOptMaterialization;
 import org.apache.calcite.plan.RelOptPlanner;
+import org.apache.calcite.plan.RelOptSchema;
+import org.apache.calcite.plan.RelOptTable;
 import org.apache.calcite.plan.RelOptUtil;
 import org.apache.calcite.plan.RelTraitSet;
+import org.apache.calcite.prepare.CalciteCatalogReader;
 import org.apache.calcite.rel.RelNode;
 import org.apache.calcite.rel.core.RelFactories;
 import org.apache.calcite.rel.metadata.DefaultRelMetadataProvider;
 import org.apache.calcite.rel.type.DelegatingTypeSystem;
 import org.apache.calcite.rel.type.RelDataTypeSystem;
+import org.apache.calcite.runtime.Bindable;
 import org.apache.calcite.schema.SchemaPlus;
+import org.apache.calcite.sql.SqlExplainLevel;
 import org.apache.calcite.sql2rel.RelDecorrelator;
 import org.apache.calcite.tools.Frameworks;
 import org.apache.calcite.tools.Program;
@@ -57,6 +73,13 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 
 /** Runtime context. */
 public class Calcite {
+  /**
+   * Relational expressions compiled to Java, keyed by their digest. The value
+   * is empty if an expression could not be compiled.
+   */
+  private static final Cache<String, Optional<CompiledRel>> COMPILED_RELS =
+      CacheBuilder.newBuilder().maximumSize(1_000).build();
+
   final RelBuilder relBuilder;
   final JavaTypeFactory typeFactory;
   public final SchemaPlus rootSchema;
@@ -94,6 +117,20 @@ public class Calcite {
    * converting it to Morel list type {@code type}.
    */
   public Code code(Environment env, RelNode rel, Type type) {
+    return code(env, rel, type, false);
+  }
+
+  /**
+   * Creates a {@code Code} that evaluates a Calcite relational expression,
+   * converting it to Morel list type {@code type}.
+   *
+   * <p>If {@code enumerable} is true, converts the expression to Calcite's
+   * Enumerable convention and compiles it to Java; if that fails, or if {@code
+   * enumerable} is false, the expression is evaluated using Calcite's
+   * interpreter.
+   */
+  public Code code(
+      Environment env, RelNode rel, Type type, boolean enumerable) {
     // Transform the relational expression, converting sub-queries. For example,
     // RexSubQuery.IN becomes a Join.
     final Program program =
@@ -108,7 +145,91 @@ public class Calcite {
 
     final Function<Enumerable<Object[]>, List<Object>> converter =
         Converters.fromEnumerable(rel, type);
-    return new CalciteCode(dataContext, rel2, env, converter);
+    final @Nullable CompiledRel compiledRel = enumerable ? compile(rel2) : null;
+    return new CalciteCode(
+        dataContext(rel2), rel2, env, converter, compiledRel);
+  }
+
+  /**
+   * Returns a data context whose root schema contains the tables that a
+   * relational expression scans.
+   *
+   * <p>Code generated for the Enumerable convention finds a table, such as a
+   * JDBC table, by looking up its schema in the root schema of the data
+   * context. Foreign values are usually created by a different {@code Calcite}
+   * than the one that compiles a statement, so the tables are not in this
+   * context's root schema. If the tables belong to more than one root schema,
+   * returns this context, and the compiled code will fail over to the
+   * interpreter.
+   */
+  private DataContext dataContext(RelNode rel) {
+    final Set<SchemaPlus> rootSchemas = new LinkedHashSet<>();
+    for (RelOptTable table : RelOptUtil.findAllTables(rel)) {
+      final RelOptSchema relOptSchema = table.getRelOptSchema();
+      if (relOptSchema instanceof CalciteCatalogReader) {
+        rootSchemas.add(
+            ((CalciteCatalogReader) relOptSchema).getRootSchema().plus());
+      }
+    }
+    if (rootSchemas.size() != 1 || rootSchemas.contains(rootSchema)) {
+      return dataContext;
+    }
+    return new EmptyDataContext(typeFactory, rootSchemas.iterator().next());
+  }
+
+  /**
+   * Converts a relational expression to Calcite's Enumerable convention and
+   * compiles it, or returns null if it cannot be converted.
+   *
+   * <p>The result is cached, keyed by the digest of the expression, so that a
+   * plan that is compiled again, in this session or another, reuses the class
+   * that was generated the first time.
+   */
+  static @Nullable CompiledRel compile(RelNode rel) {
+    final String digest =
+        RelOptUtil.toString(rel, SqlExplainLevel.DIGEST_ATTRIBUTES);
+    try {
+      return COMPILED_RELS.get(digest, () -> compile2(rel)).orElse(null);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private static Optional<CompiledRel> compile2(RelNode rel) {
+    final RelOptPlanner planner = rel.getCluster().getPlanner();
+    final Program program = Programs.ofRules(EnumerableRules.ENUMERABLE_RULES);
+    final Map<String, Object> parameters = new HashMap<>();
+    try {
+      // The planner belongs to the cluster, which all expressions built by
+      // this Calcite share; the program clears it before using it.
+      final RelNode rel2;
+      synchronized (planner) {
+        rel2 =
+            program.run(
+                planner,
+                rel,
+                rel.getTraitSet().replace(EnumerableConvention.INSTANCE),
+                ImmutableList.of(),
+                ImmutableList.of());
+      }
+      @SuppressWarnings("unchecked")
+      final Bindable<Object> bindable =
+          EnumerableInterpretable.toBindable(
+              parameters,
+              null,
+              (EnumerableRel) rel2,
+              EnumerableRel.Prefer.ARRAY);
+      return Optional.of(
+          new CompiledRel(
+              bindable,
+              ImmutableMap.copyOf(parameters),
+              rel2.getRowType().getFieldCount()));
+    } catch (RuntimeException | AssertionError e) {
+      // Not every expression can be converted, for example if it contains a
+      // user-defined function that has no Java implementation. Such
+      // expressions will be interpreted.
+      return Optional.empty();
+    }
   }
 
   /** Copied from {@link Programs}. */
@@ -182,6 +303,73 @@ public class Calcite {
     }
   }
 
+  /**
+   * Data context that returns the values that a compiled relational expression
+   * stashed, and otherwise delegates to an underlying data context.
+   */
+  private static class StashDataContext implements DataContext {
+    private final DataContext dataContext;
+    private final Map<String, Object> parameters;
+
+    StashDataContext(DataContext dataContext, Map<String, Object> parameters) {
+      this.dataContext = dataContext;
+      this.parameters = parameters;
+    }
+
+    public SchemaPlus getRootSchema() {
+      return dataContext.getRootSchema();
+    }
+
+    public JavaTypeFactory getTypeFactory() {
+      return dataContext.getTypeFactory();
+    }
+
+    public QueryProvider getQueryProvider() {
+      return dataContext.getQueryProvider();
+    }
+
+    public @Nullable Object get(String name) {
+      final Object value = parameters.get(name);
+      return value != null ? value : dataContext.get(name);
+    }
+  }
+
+  /**
+   * Relational expression that has been compiled to Java.
+   *
+   * <p>The generated code produces a row as an {@code Object[]}, except that a
+   * row with one field is just the value of the field, and a row with no fields
+   * is a list.
+   */
+  static class CompiledRel {
+    final Bindable<Object> bindable;
+    final ImmutableMap<String, Object> parameters;
+    final int fieldCount;
+
+    CompiledRel(
+        Bindable<Object> bindable,
+        ImmutableMap<String, Object> parameters,
+        int fieldCount) {
+      this.bindable = bindable;
+      this.parameters = parameters;
+      this.fieldCount = fieldCount;
+    }
+
+    /** Executes the compiled expression, returning an array for each row. */
+    Enumerable<Object[]> bind(DataContext dataContext) {
+      final Enumerable<Object> enumerable =
+          bindable.bind(new StashDataContext(dataContext, parameters));
+      switch (fieldCount) {
+        case 0:
+          return enumerable.select(o -> new Object[0]);
+        case 1:
+          return enumerable.select(o -> new Object[] {o});
+        default:
+          return enumerable.select(o -> (Object[]) o);
+      }
+    }
+  }
+
   /**
    * Evaluates a Calcite relational expression, converting it to Morel list type
    * {@code type}.
@@ -191,16 +379,19 @@ public class Calcite {
     final RelNode rel;
     final Environment env;
     final Function<Enumerable<Object[]>, List<Object>> converter;
+    final @Nullable CompiledRel compiledRel;
 
     CalciteCode(
         DataContext dataContext,
         RelNode rel,
         Environment env,
-        Function<Enumerable<Object[]>, List<Object>> converter) {
+        Function<Enumerable<Object[]>, List<Object>> converter,
+        @Nullable CompiledRel compiledRel) {
       this.dataContext = dataContext;
       this.rel = rel;
       this.env = env;
       this.converter = converter;
+      this.compiledRel = compiledRel;
     }
 
     // to help with debugging
@@ -225,6 +416,16 @@ public class Calcite {
                   CalciteFunctions.THREAD_CX,
                   c -> c.withEnv(env),
                   () -> {
+                    if (compiledRel != null) {
+                      try {
+                        return converter.apply(compiledRel.bind(dataContext));
+                      } catch (RuntimeException e) {
+                        // The generated code could not find a table or
+                        // function that the interpreter can; for example,
+                        // one whose schema is not in the data context.
+                        // Evaluate using the interpreter.
+                      }
+                    }
                     final Interpreter interpreter =
                         new Interpreter(dataContext, rel);
                     return converter.apply(interpreter);
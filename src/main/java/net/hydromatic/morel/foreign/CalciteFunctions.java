@@ -294,7 +294,8 @@ public class CalciteFunctions {
         final Compiler compiler = new Compiler(typeSystem);
         // Initialize session.globalEnv so that closures created during
         // evaluation (via StackMatchCode) have a valid globalEnv.
-        session.globalEnv = Codes.globalEnvOf(Codes.emptyEnvWith(session, env));
+        session.globalEnv =
+            Codes.globalEnvOf(session, Codes.emptyEnvWith(session, env));
         return new Compiled(
             ml,
             compiler.compile(env, e3),
@@ -29,11 +29,11 @@ import static org.apache.calcite.avatica.util.DateTimeUtils.unixTimestampToStrin
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import java.math.BigDecimal;
-import java.util.AbstractList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
+import net.hydromatic.morel.eval.Tuple;
 import net.hydromatic.morel.eval.Unit;
 import net.hydromatic.morel.type.DataType;
 import net.hydromatic.morel.type.PrimitiveType;
@@ -50,7 +50,6 @@ import org.apache.calcite.rel.type.RelDataType;
 import org.apache.calcite.rel.type.RelDataTypeFactory;
 import org.apache.calcite.rel.type.RelDataTypeField;
 import org.apache.calcite.sql.type.SqlTypeName;
-import org.apache.calcite.util.ImmutableNullableList;
 
 /** Utilities for Converter. */
 public class Converters {
@@ -457,17 +456,11 @@ public class Converters {
           final ImmutableList<Function<Object, Object>> converters = b.build();
           return v -> {
             final Object[] values = (Object[]) v;
-            return new AbstractList<Object>() {
-              @Override
-              public int size() {
-                return values.length;
-              }
-
-              @Override
-              public Object get(int index) {
-                return converters.get(index).apply(values[index]);
-              }
-            };
+            final Object[] values2 = new Object[values.length];
+            for (int i = 0; i < values.length; i++) {
+              values2[i] = converters.get(i).apply(values[i]);
+            }
+            return Tuple.wrap(values2);
           };
 
         case ID: // primitive type, e.g. int
@@ -506,7 +499,7 @@ public class Converters {
       for (int i = 0; i < tempValues.length; i++) {
         tempValues[i] = converterList.get(i).apply(a);
       }
-      return ImmutableNullableList.copyOf(tempValues);
+      return Tuple.copyOf(tempValues);
     }
   }
 }
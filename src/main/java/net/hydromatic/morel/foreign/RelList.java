@@ -18,45 +18,124 @@
  */
 package net.hydromatic.morel.foreign;
 
-import com.google.common.base.Suppliers;
+import java.lang.ref.SoftReference;
 import java.util.AbstractList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.function.Function;
-import java.util.function.Supplier;
 import net.hydromatic.morel.compile.Environment;
 import org.apache.calcite.DataContext;
 import org.apache.calcite.interpreter.Interpreter;
+import org.apache.calcite.linq4j.Enumerable;
+import org.apache.calcite.linq4j.Enumerator;
 import org.apache.calcite.rel.RelNode;
+import org.checkerframework.checker.nullness.qual.Nullable;
 
-/** A list whose contents are computed by evaluating a relational expression. */
+/**
+ * A list whose contents are computed by evaluating a relational expression.
+ *
+ * <p>Each iteration over the list streams rows from the relational expression,
+ * so that a query that reads a large table, or stops after a few rows, does not
+ * hold the whole table in memory. (If a query scans a table many times, say as
+ * the inner side of a nested-loop join, the query reads it into memory once per
+ * execution.) Random access (for example {@link #get} or {@link #size})
+ * evaluates the expression into a list, which the garbage collector may
+ * reclaim.
+ */
 public class RelList extends AbstractList<Object> {
   /** Value printed instead of the contents of an external relation. */
   public static final String RELATION = "<relation>";
 
   public final RelNode rel;
-  private final Supplier<List<Object>> supplier;
+  private final DataContext dataContext;
+  private final Function<Object[], Object> converter;
+
+  /**
+   * Whether to try to compile {@link #rel} to Java, as opposed to always
+   * evaluating it using Calcite's interpreter.
+   */
+  private final boolean compile;
+
+  /**
+   * Contents of the list, for random access; null until it is first needed. The
+   * reference is soft, so that a table that is shared by many queries does not
+   * stay in memory.
+   */
+  private volatile @Nullable SoftReference<List<Object>> listRef;
 
   RelList(
       RelNode rel,
       DataContext dataContext,
       Function<Object[], Object> converter) {
+    this(rel, dataContext, converter, false);
+  }
+
+  private RelList(
+      RelNode rel,
+      DataContext dataContext,
+      Function<Object[], Object> converter,
+      boolean compile) {
     this.rel = rel;
-    //noinspection FunctionalExpressionCanBeFolded
-    supplier =
-        Suppliers.memoize(
-                () ->
-                    new Interpreter(dataContext, rel)
-                        .select(converter::apply)
-                        .toList())
-            ::get;
+    this.dataContext = dataContext;
+    this.converter = converter;
+    this.compile = compile;
+  }
+
+  /**
+   * Returns a list whose contents are computed by evaluating a relational
+   * expression that is derived from this list's expression, typically by adding
+   * a filter or project.
+   *
+   * <p>The expression must have the same number and types of fields as this
+   * list's expression. It is compiled to Java, if possible, so that adapters
+   * such as JDBC can evaluate the filter and project in the data source.
+   */
+  public RelList withRel(RelNode rel) {
+    return new RelList(rel, dataContext, converter, true);
+  }
+
+  /** Returns an enumerable that evaluates the relational expression. */
+  private Enumerable<Object> enumerable() {
+    if (compile) {
+      final Calcite.@Nullable CompiledRel compiledRel = Calcite.compile(rel);
+      if (compiledRel != null) {
+        return compiledRel.bind(dataContext).select(converter::apply);
+      }
+    }
+    return new Interpreter(dataContext, rel).select(converter::apply);
+  }
+
+  /** Returns the contents of this list, evaluating them if necessary. */
+  private List<Object> list() {
+    final @Nullable SoftReference<List<Object>> listRef = this.listRef;
+    @Nullable List<Object> list = listRef == null ? null : listRef.get();
+    if (list == null) {
+      list = enumerable().toList();
+      this.listRef = new SoftReference<>(list);
+    }
+    return list;
   }
 
   public Object get(int index) {
-    return supplier.get().get(index);
+    return list().get(index);
   }
 
   public int size() {
-    return supplier.get().size();
+    return list().size();
+  }
+
+  /**
+   * {@inheritDoc}
+   *
+   * <p>Returns an iterator that reads rows from the relational expression as it
+   * goes. The iterator is {@link AutoCloseable}; closing it releases the
+   * underlying resources, such as a JDBC result set, if the caller stops before
+   * the last row.
+   */
+  @Override
+  public Iterator<Object> iterator() {
+    return new StreamingIterator(enumerable().enumerator());
   }
 
   /**
@@ -80,7 +159,51 @@ public class RelList extends AbstractList<Object> {
    * @see Environment#asString()
    */
   public String asString() {
-    return supplier.get().toString();
+    return list().toString();
+  }
+
+  /** Iterator that reads from an {@link Enumerator}. */
+  private static class StreamingIterator
+      implements Iterator<Object>, AutoCloseable {
+    private final Enumerator<Object> enumerator;
+    private boolean hasNext;
+    private boolean closed;
+
+    StreamingIterator(Enumerator<Object> enumerator) {
+      this.enumerator = enumerator;
+      advance();
+    }
+
+    private void advance() {
+      hasNext = enumerator.moveNext();
+      if (!hasNext) {
+        close();
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return hasNext;
+    }
+
+    @Override
+    public Object next() {
+      if (!hasNext) {
+        throw new NoSuchElementException();
+      }
+      final Object o = enumerator.current();
+      advance();
+      return o;
+    }
+
+    @Override
+    public void close() {
+      if (!closed) {
+        closed = true;
+        hasNext = false;
+        enumerator.close();
+      }
+    }
   }
 }
 
@@ -0,0 +1,133 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Append-only list that consists of a sequence of chunks.
+ *
+ * <p>Appending a chunk is O(1), and does not copy the chunk. A {@link
+ * #snapshot()} is an immutable view of the chunks appended so far; it remains
+ * valid, and unchanged, as further chunks are appended.
+ *
+ * <p>Chunks must not be modified after they are appended.
+ *
+ * @param <E> Element type
+ */
+public class ChunkedList<E> {
+  private final List<List<E>> chunks = new ArrayList<>();
+
+  /**
+   * Offset of the end of each chunk; {@code ends[i]} is the size of the list
+   * consisting of chunks 0 to {@code i}.
+   */
+  private int[] ends = new int[8];
+
+  private int size;
+
+  /** Returns the number of elements in all chunks. */
+  public int size() {
+    return size;
+  }
+
+  /** Appends a chunk. Does nothing if the chunk is empty. */
+  public void add(List<E> chunk) {
+    if (chunk.isEmpty()) {
+      return;
+    }
+    final int n = chunks.size();
+    if (n == ends.length) {
+      ends = Arrays.copyOf(ends, n * 2);
+    }
+    size = Math.addExact(size, chunk.size());
+    ends[n] = size;
+    chunks.add(chunk);
+  }
+
+  /** Returns an immutable view of the chunks appended so far. */
+  public List<E> snapshot() {
+    return new Snapshot(chunks.size(), size);
+  }
+
+  /** Immutable view of the first {@code chunkCount} chunks. */
+  private class Snapshot extends AbstractList<E> implements RandomAccess {
+    private final int chunkCount;
+    private final int size;
+
+    Snapshot(int chunkCount, int size) {
+      this.chunkCount = chunkCount;
+      this.size = size;
+    }
+
+    @Override
+    public int size() {
+      return size;
+    }
+
+    @Override
+    public E get(int index) {
+      checkElementIndex(index, size);
+      // Find the first chunk whose end is greater than index.
+      int k = Arrays.binarySearch(ends, 0, chunkCount, index);
+      k = k < 0 ? -(k + 1) : k + 1;
+      final int start = k == 0 ? 0 : ends[k - 1];
+      return chunks.get(k).get(index - start);
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+      return new Iterator<E>() {
+        int chunk = 0;
+        Iterator<E> iterator =
+            chunkCount == 0 ? null : chunks.get(0).iterator();
+
+        @Override
+        public boolean hasNext() {
+          while (iterator != null) {
+            if (iterator.hasNext()) {
+              return true;
+            }
+            iterator =
+                ++chunk < chunkCount ? chunks.get(chunk).iterator() : null;
+          }
+          return false;
+        }
+
+        @Override
+        public E next() {
+          if (!hasNext()) {
+            throw new NoSuchElementException();
+          }
+          return iterator.next();
+        }
+      };
+    }
+  }
+}
+
+// End ChunkedList.java
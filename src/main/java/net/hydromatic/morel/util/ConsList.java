@@ -19,7 +19,6 @@
 package net.hydromatic.morel.util;
 
 import com.google.common.collect.ImmutableList;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
@@ -29,11 +28,25 @@ import org.checkerframework.checker.nullness.qual.Nullable;
 /**
  * List that consists of a head element and an immutable non-empty list.
  *
+ * <p>Prepending an element ({@link #of}), and getting the head ({@code
+ * get(0)}), tail ({@code subList(1, size())}) and size of the list are O(1).
+ * Iteration, {@link #equals} and {@link #hashCode} walk the list without
+ * copying it. The first random access beyond the head flattens the list into an
+ * array, which is cached, so that a series of random accesses is O(1)
+ * amortized.
+ *
  * @param <E> Element type
  */
 public class ConsList<E> extends AbstractImmutableList<E> {
   private final E first;
   private final List<E> rest;
+  private final int size;
+
+  /** Hash code; 0 if not yet computed. */
+  private int hash;
+
+  /** Elements as an array; null until the first random access. */
+  private @Nullable ImmutableList<E> flat;
 
   /**
    * Creates a ConsList. It consists of an element pre-pended to another list.
@@ -52,69 +65,127 @@ public class ConsList<E> extends AbstractImmutableList<E> {
   private ConsList(E first, List<E> rest) {
     this.first = first;
     this.rest = rest;
+    this.size = rest.size() + 1;
   }
 
   public E get(int index) {
-    for (ConsList<E> c = this; ; c = (ConsList<E>) c.rest) {
-      if (index == 0) {
-        return c.first;
-      }
-      --index;
-      if (!(c.rest instanceof ConsList)) {
-        return c.rest.get(index);
-      }
+    if (index == 0) {
+      return first;
+    }
+    if (index < 0 || index >= size) {
+      throw new IndexOutOfBoundsException("index " + index + ", size " + size);
     }
+    return flatten().get(index);
   }
 
-  @SuppressWarnings("rawtypes")
   public int size() {
-    int s = 1;
-    for (ConsList c = this; ; c = (ConsList) c.rest, ++s) {
-      if (!(c.rest instanceof ConsList)) {
-        return s + c.rest.size();
-      }
-    }
+    return size;
   }
 
   @Override
   public int hashCode() {
-    return flatten().hashCode();
+    int h = hash;
+    if (h == 0) {
+      h = 1;
+      for (E e : this) {
+        h = 31 * h + (e == null ? 0 : e.hashCode());
+      }
+      hash = h;
+    }
+    return h;
   }
 
   @Override
   public boolean equals(Object o) {
-    return o == this || o instanceof List && flatten().equals(o);
+    if (o == this) {
+      return true;
+    }
+    if (!(o instanceof List)) {
+      return false;
+    }
+    final List<?> list = (List<?>) o;
+    if (list.size() != size
+        || o instanceof ConsList && hashCode() != o.hashCode()) {
+      return false;
+    }
+    final Iterator<?> iterator = list.iterator();
+    for (E e : this) {
+      final Object e2 = iterator.next();
+      if (e == null ? e2 != null : !e.equals(e2)) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public String toString() {
-    return flatten().toString();
+    final StringBuilder b = new StringBuilder("[");
+    for (E e : this) {
+      if (b.length() > 1) {
+        b.append(", ");
+      }
+      b.append(e);
+    }
+    return b.append(']').toString();
   }
 
+  /** Returns the elements of this list as an immutable list, and caches it. */
   protected final List<E> flatten() {
-    final List<E> list = new ArrayList<>();
-    for (ConsList<E> c = this; ; c = (ConsList<E>) c.rest) {
-      list.add(c.first);
-      if (!(c.rest instanceof ConsList)) {
-        list.addAll(c.rest);
-        return list;
-      }
+    ImmutableList<E> list = flat;
+    if (list == null) {
+      final ImmutableList.Builder<E> b =
+          ImmutableList.builderWithExpectedSize(size);
+      forEach(b::add);
+      flat = list = b.build();
     }
+    return list;
   }
 
   @Override
   public List<E> subList(int fromIndex, int toIndex) {
+    if (toIndex == size) {
+      // A suffix of the list is a tail, so is available without copying.
+      if (fromIndex < 0 || fromIndex > size) {
+        throw new IndexOutOfBoundsException(
+            "fromIndex " + fromIndex + ", size " + size);
+      }
+      List<E> list = this;
+      while (fromIndex > 0 && list instanceof ConsList) {
+        list = ((ConsList<E>) list).rest;
+        --fromIndex;
+      }
+      return fromIndex == 0 ? list : list.subList(fromIndex, list.size());
+    }
     return flatten().subList(fromIndex, toIndex);
   }
 
-  @Override
-  public ListIterator<E> listIterator() {
-    return flatten().listIterator();
-  }
-
   @Override
   public Iterator<E> iterator() {
-    return flatten().iterator();
+    return new Iterator<E>() {
+      @Nullable ConsList<E> cons = ConsList.this;
+      @Nullable Iterator<E> restIterator;
+
+      @Override
+      public boolean hasNext() {
+        return cons != null || restIterator.hasNext();
+      }
+
+      @Override
+      public E next() {
+        final ConsList<E> c = cons;
+        if (c == null) {
+          return restIterator.next();
+        }
+        if (c.rest instanceof ConsList) {
+          cons = (ConsList<E>) c.rest;
+        } else {
+          cons = null;
+          restIterator = c.rest.iterator();
+        }
+        return c.first;
+      }
+    };
   }
 
   @Override
@@ -123,32 +194,33 @@ public class ConsList<E> extends AbstractImmutableList<E> {
   }
 
   public @Nullable Object[] toArray() {
-    return flatten().toArray();
+    return toArray(new Object[size]);
   }
 
   @SuppressWarnings("rawtypes")
   public <T> @Nullable T[] toArray(@Nullable T[] a) {
-    final int s = size();
-    if (s > a.length) {
-      a = Arrays.copyOf(a, s);
-    } else if (s < a.length) {
-      a[s] = null;
+    if (size > a.length) {
+      a = Arrays.copyOf(a, size);
+    } else if (size < a.length) {
+      a[size] = null;
     }
     int i = 0;
-    for (ConsList c = this; ; c = (ConsList) c.rest) {
+    for (E e : this) {
       //noinspection unchecked
-      a[i++] = (T) c.first;
-      if (!(c.rest instanceof ConsList)) {
-        Object[] a2 = c.rest.toArray();
-        //noinspection SuspiciousSystemArraycopy
-        System.arraycopy(a2, 0, a, i, a2.length);
-        return a;
-      }
+      a[i++] = (T) e;
     }
+    return a;
   }
 
   public int indexOf(Object o) {
-    return flatten().indexOf(o);
+    int i = 0;
+    for (E e : this) {
+      if (o == null ? e == null : o.equals(e)) {
+        return i;
+      }
+      ++i;
+    }
+    return -1;
   }
 
   public int lastIndexOf(Object o) {
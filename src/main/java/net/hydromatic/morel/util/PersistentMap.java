@@ -0,0 +1,300 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import static java.util.Objects.requireNonNull;
+
+import java.util.Arrays;
+import java.util.function.BiConsumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Immutable map, implemented as a hash array mapped trie (HAMT).
+ *
+ * <p>{@link #get} and {@link #plus} are O(log<sub>32</sub> n). {@link #plus}
+ * returns a new map, which shares all but the path from the root to the changed
+ * entry with this map; this map is unchanged.
+ *
+ * <p>Keys and values must not be null.
+ *
+ * @param <K> Key type
+ * @param <V> Value type
+ */
+public final class PersistentMap<K, V> {
+  @SuppressWarnings("rawtypes")
+  private static final PersistentMap EMPTY =
+      new PersistentMap<>(BitmapNode.EMPTY, 0);
+
+  /** Number of bits of the hash code consumed by each level of the trie. */
+  private static final int BITS = 5;
+
+  private final Node root;
+  private final int size;
+
+  private PersistentMap(Node root, int size) {
+    this.root = requireNonNull(root);
+    this.size = size;
+  }
+
+  /** Returns an empty map. */
+  @SuppressWarnings("unchecked")
+  public static <K, V> PersistentMap<K, V> of() {
+    return (PersistentMap<K, V>) EMPTY;
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder b = new StringBuilder("{");
+    forEach(
+        (k, v) -> {
+          b.append(b.length() > 1 ? ", " : "");
+          b.append(k).append('=').append(v);
+        });
+    return b.append('}').toString();
+  }
+
+  /** Returns the number of entries. */
+  public int size() {
+    return size;
+  }
+
+  /** Returns whether this map is empty. */
+  public boolean isEmpty() {
+    return size == 0;
+  }
+
+  /** Returns the value of a key, or null if the key is not present. */
+  @SuppressWarnings("unchecked")
+  public @Nullable V get(Object key) {
+    return (V) root.get(key, hash(key), 0);
+  }
+
+  /**
+   * Returns a map that is this map plus an entry; if the key is present, the
+   * new value replaces the old. Returns this map if the key is already mapped
+   * to the same value.
+   */
+  public PersistentMap<K, V> plus(K key, V value) {
+    requireNonNull(key, "key");
+    requireNonNull(value, "value");
+    final boolean[] added = {false};
+    final Node root2 = root.plus(key, value, hash(key), 0, added);
+    if (root2 == root) {
+      return this;
+    }
+    return new PersistentMap<>(root2, added[0] ? size + 1 : size);
+  }
+
+  /** Calls a consumer for each entry, in no particular order. */
+  @SuppressWarnings("unchecked")
+  public void forEach(BiConsumer<? super K, ? super V> consumer) {
+    root.forEach((BiConsumer<Object, Object>) consumer);
+  }
+
+  /** Spreads the bits of a hash code, as {@link java.util.HashMap} does. */
+  private static int hash(Object key) {
+    final int h = key.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /** Returns the bit that represents a hash code at a given level. */
+  private static int bit(int hash, int shift) {
+    return 1 << ((hash >>> shift) & 31);
+  }
+
+  /** Node in the trie. */
+  private abstract static class Node {
+    abstract @Nullable Object get(Object key, int hash, int shift);
+
+    /**
+     * Returns a node that is this node plus an entry, or this node if the key
+     * is already mapped to the value. Sets {@code added[0]} if the key was not
+     * present.
+     */
+    abstract Node plus(
+        Object key, Object value, int hash, int shift, boolean[] added);
+
+    abstract void forEach(BiConsumer<Object, Object> consumer);
+  }
+
+  /**
+   * Node whose children are indexed by a bitmap.
+   *
+   * <p>For each bit that is set, the array has two slots: a key and a value, or
+   * null and a child node.
+   */
+  private static class BitmapNode extends Node {
+    static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+    final int bitmap;
+    final @Nullable Object[] array;
+
+    BitmapNode(int bitmap, @Nullable Object[] array) {
+      this.bitmap = bitmap;
+      this.array = array;
+    }
+
+    /** Returns the index in the array of the slots for a bit. */
+    private int index(int bit) {
+      return Integer.bitCount(bitmap & (bit - 1)) * 2;
+    }
+
+    @Override
+    @Nullable
+    Object get(Object key, int hash, int shift) {
+      final int bit = bit(hash, shift);
+      if ((bitmap & bit) == 0) {
+        return null;
+      }
+      final int i = index(bit);
+      final @Nullable Object k = array[i];
+      final Object v = requireNonNull(array[i + 1]);
+      if (k == null) {
+        return ((Node) v).get(key, hash, shift + BITS);
+      }
+      return key.equals(k) ? v : null;
+    }
+
+    @Override
+    Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+      final int bit = bit(hash, shift);
+      final int i = index(bit);
+      if ((bitmap & bit) == 0) {
+        final @Nullable Object[] array2 = new Object[array.length + 2];
+        System.arraycopy(array, 0, array2, 0, i);
+        array2[i] = key;
+        array2[i + 1] = value;
+        System.arraycopy(array, i, array2, i + 2, array.length - i);
+        added[0] = true;
+        return new BitmapNode(bitmap | bit, array2);
+      }
+      final @Nullable Object k = array[i];
+      final Object v = requireNonNull(array[i + 1]);
+      if (k == null) {
+        final Node child = (Node) v;
+        final Node child2 = child.plus(key, value, hash, shift + BITS, added);
+        return child2 == child ? this : with(i, null, child2);
+      }
+      if (key.equals(k)) {
+        return v == value ? this : with(i, k, value);
+      }
+      added[0] = true;
+      final Node child = node(shift + BITS, k, v, hash(k), key, value, hash);
+      return with(i, null, child);
+    }
+
+    /** Returns a copy of this node with a given key and value at a slot. */
+    private BitmapNode with(int i, @Nullable Object key, Object value) {
+      final @Nullable Object[] array2 = array.clone();
+      array2[i] = key;
+      array2[i + 1] = value;
+      return new BitmapNode(bitmap, array2);
+    }
+
+    /** Creates a node that contains two entries with different keys. */
+    private static Node node(
+        int shift,
+        Object key1,
+        Object value1,
+        int hash1,
+        Object key2,
+        Object value2,
+        int hash2) {
+      if (hash1 == hash2) {
+        return new CollisionNode(
+            hash1, new Object[] {key1, value1, key2, value2});
+      }
+      final boolean[] added = {false};
+      return EMPTY
+          .plus(key1, value1, hash1, shift, added)
+          .plus(key2, value2, hash2, shift, added);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> consumer) {
+      for (int i = 0; i < array.length; i += 2) {
+        final @Nullable Object k = array[i];
+        final Object v = requireNonNull(array[i + 1]);
+        if (k == null) {
+          ((Node) v).forEach(consumer);
+        } else {
+          consumer.accept(k, v);
+        }
+      }
+    }
+  }
+
+  /** Node whose keys all have the same hash code. */
+  private static class CollisionNode extends Node {
+    final int hash;
+
+    /** Alternating keys and values. */
+    final Object[] array;
+
+    CollisionNode(int hash, Object[] array) {
+      this.hash = hash;
+      this.array = array;
+    }
+
+    @Override
+    @Nullable
+    Object get(Object key, int hash, int shift) {
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          return array[i + 1];
+        }
+      }
+      return null;
+    }
+
+    @Override
+    Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+      if (hash != this.hash) {
+        // Push this node down a level, below a node that can also hold the
+        // new key.
+        return new BitmapNode(bit(this.hash, shift), new Object[] {null, this})
+            .plus(key, value, hash, shift, added);
+      }
+      for (int i = 0; i < array.length; i += 2) {
+        if (key.equals(array[i])) {
+          if (array[i + 1] == value) {
+            return this;
+          }
+          final Object[] array2 = array.clone();
+          array2[i + 1] = value;
+          return new CollisionNode(hash, array2);
+        }
+      }
+      final Object[] array2 = Arrays.copyOf(array, array.length + 2);
+      array2[array.length] = key;
+      array2[array.length + 1] = value;
+      added[0] = true;
+      return new CollisionNode(hash, array2);
+    }
+
+    @Override
+    void forEach(BiConsumer<Object, Object> consumer) {
+      for (int i = 0; i < array.length; i += 2) {
+        consumer.accept(array[i], array[i + 1]);
+      }
+    }
+  }
+}
+
+// End PersistentMap.java
@@ -0,0 +1,538 @@
+/*
+ * Licensed to Julian Hyde under one or more contributor license
+ * agreements.  See the NOTICE file distributed with this work
+ * for additional information regarding copyright ownership.
+ * Julian Hyde licenses this file to you under the Apache
+ * License, Version 2.0 (the "License"); you may not use this
+ * file except in compliance with the License.  You may obtain a
+ * copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied.  See the License for the specific
+ * language governing permissions and limitations under the
+ * License.
+ */
+package net.hydromatic.morel.util;
+
+import static java.lang.String.format;
+import static java.util.Objects.requireNonNull;
+
+import com.google.common.collect.ImmutableList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.BiConsumer;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+/**
+ * Unification algorithm that represents each class of equivalent variables as a
+ * tree in a union-find structure, after Huet (1976).
+ *
+ * <p>When {@link MartelliUnifier} binds a variable, it applies the binding to
+ * every term pair that is waiting to be processed, and checks that the variable
+ * does not occur in its term; its running time therefore grows faster than
+ * linearly in the number of variables.
+ *
+ * <p>This unifier never rewrites a term. It merges classes, using union by size
+ * and path compression, and binds each class to at most one sequence; when it
+ * processes a pair, it finds the class of each variable. Merging two classes
+ * that are bound to sequences unifies the sequences once, and thereafter the
+ * classes are one. The occurs check is deferred until all pairs have been
+ * processed, when a single depth-first search over the classes finds any cycle.
+ *
+ * <p>It supports the same {@link Action actions} and {@link Constraint
+ * constraints} as {@link MartelliUnifier}. An action is called when the class
+ * of its variable is first bound to a sequence. Constraints are re-examined
+ * each time that the queue of pairs becomes empty.
+ */
+public class UnionFindUnifier extends Unifier {
+  @Override
+  public Result unify(
+      List<TermTerm> termPairs,
+      Map<Variable, Action> termActions,
+      List<Constraint> constraints,
+      Tracer tracer) {
+    final Work work = new Work(tracer, termActions, constraints);
+    termPairs.forEach(work.queue::add);
+    return work.run();
+  }
+
+  /** Workspace for {@link UnionFindUnifier}. */
+  private class Work {
+    final Tracer tracer;
+    final Map<Variable, Action> termActions;
+    final ArrayQueue<TermTerm> queue = new ArrayQueue<>();
+    final List<MutableConstraint> constraintQueue = new ArrayList<>();
+
+    /** Node of each variable that has been seen, in order of appearance. */
+    final Map<Variable, Node> nodes = new LinkedHashMap<>();
+
+    /** Substitution passed to actions; reflects the current classes. */
+    final Substitution substitution = new WorkSubstitution();
+
+    /** Adds a pair of terms to the queue; passed to actions. */
+    final BiConsumer<Term, Term> consumer =
+        (left, right) -> queue.add(new TermTerm(left, right));
+
+    Work(
+        Tracer tracer,
+        Map<Variable, Action> termActions,
+        List<Constraint> constraints) {
+      this.tracer = tracer;
+      this.termActions = termActions;
+      constraints.forEach(c -> constraintQueue.add(new MutableConstraint(c)));
+    }
+
+    @Override
+    public String toString() {
+      return format(
+          "queue %s constraints %s nodes %s", queue, constraintQueue, nodes);
+    }
+
+    Result run() {
+      for (; ; ) {
+        for (TermTerm pair; (pair = queue.poll()) != null; ) {
+          final Failure failure = unify(pair.left, pair.right);
+          if (failure != null) {
+            return failure;
+          }
+        }
+        // Constraints may add pairs to the queue; if so, process them.
+        final Failure failure = checkConstraints();
+        if (failure != null) {
+          return failure;
+        }
+        if (queue.isEmpty()) {
+          break;
+        }
+      }
+
+      final Failure failure = checkCycles();
+      if (failure != null) {
+        return failure;
+      }
+
+      final Map<Variable, Term> result = new LinkedHashMap<>();
+      nodes.forEach(
+          (variable, node) -> {
+            final Term term = termOf(node);
+            if (term != null) {
+              result.put(variable, term);
+            }
+          });
+
+      // Any overload constraint that still has more than one candidate never
+      // had its argument type pinned down; surface it so that it can become a
+      // predicate of a qualified type.
+      final List<Constraint> residualConstraints = new ArrayList<>();
+      for (MutableConstraint constraint : constraintQueue) {
+        if (constraint.constraint.name != null
+            && constraint.candidateCount > 1) {
+          residualConstraints.add(constraint.constraint);
+        }
+      }
+      return SubstitutionResult.create(result, residualConstraints);
+    }
+
+    /** Returns the node of a variable, creating it if necessary. */
+    Node node(Variable variable) {
+      return nodes.computeIfAbsent(variable, Node::new);
+    }
+
+    /**
+     * Returns the term that a variable's node is equivalent to: the sequence
+     * that its class is bound to, or the variable at the root of its class, or
+     * null if the variable is the root of an unbound class.
+     */
+    @Nullable
+    Term termOf(Node node) {
+      final Node root = node.find();
+      if (root.sequence != null) {
+        return root.sequence;
+      }
+      return root == node ? null : root.variable;
+    }
+
+    @Nullable
+    Failure unify(Term left, Term right) {
+      if (left instanceof Variable) {
+        final Node leftRoot = node((Variable) left).find();
+        if (right instanceof Variable) {
+          return unifyNodes(leftRoot, node((Variable) right).find());
+        }
+        return unifyNodeSequence(leftRoot, (Sequence) right);
+      }
+      if (right instanceof Variable) {
+        tracer.onSwap(left, right);
+        return unifyNodeSequence(
+            node((Variable) right).find(), (Sequence) left);
+      }
+      return unifySequences((Sequence) left, (Sequence) right);
+    }
+
+    /** Unifies two classes, given their roots. */
+    private @Nullable Failure unifyNodes(Node left, Node right) {
+      if (left == right) {
+        tracer.onDelete(left.variable, right.variable);
+        return null;
+      }
+      final @Nullable Sequence leftSequence = left.sequence;
+      final @Nullable Sequence rightSequence = right.sequence;
+
+      // Variables in the class that is about to learn its sequence.
+      final List<Variable> newlyBound =
+          termActions.isEmpty()
+              ? ImmutableList.of()
+              : leftSequence == null && rightSequence != null
+                  ? ImmutableList.copyOf(left.members)
+                  : rightSequence == null && leftSequence != null
+                      ? ImmutableList.copyOf(right.members)
+                      : ImmutableList.of();
+
+      tracer.onVariable(left.variable, right.variable);
+      final Node root = union(left, right);
+      if (leftSequence != null && rightSequence != null) {
+        root.sequence = leftSequence;
+        return unifySequences(leftSequence, rightSequence);
+      }
+      root.sequence = leftSequence != null ? leftSequence : rightSequence;
+      if (root.sequence != null) {
+        act(newlyBound, root.sequence);
+      }
+      return null;
+    }
+
+    /** Unifies a class, given its root, with a sequence. */
+    private @Nullable Failure unifyNodeSequence(Node root, Sequence sequence) {
+      if (root.sequence != null) {
+        return unifySequences(root.sequence, sequence);
+      }
+      tracer.onVariable(root.variable, sequence);
+      root.sequence = sequence;
+      act(root.members, sequence);
+      return null;
+    }
+
+    private @Nullable Failure unifySequences(Sequence left, Sequence right) {
+      if (left == right) {
+        tracer.onDelete(left, right);
+        return null;
+      }
+      if (!left.operator.equals(right.operator)
+          || left.terms.size() != right.terms.size()
+          || isOrderednessConflict(left, right)) {
+        tracer.onConflict(left, right);
+        return failure("conflict: " + render(left) + " vs " + render(right));
+      }
+      tracer.onSequence(left, right);
+      for (int i = 0; i < left.terms.size(); i++) {
+        queue.add(new TermTerm(left.terms.get(i), right.terms.get(i)));
+      }
+      return null;
+    }
+
+    /**
+     * Merges two classes, given their roots, and returns the root of the merged
+     * class. The root of the larger class becomes the root; if they are the
+     * same size, the right class's root becomes the root, so that unifying
+     * variables "X" and "Y" yields "Y/X".
+     */
+    private Node union(Node left, Node right) {
+      final Node root;
+      final Node child;
+      if (left.members.size() > right.members.size()) {
+        root = left;
+        child = right;
+      } else {
+        root = right;
+        child = left;
+      }
+      child.parent = root;
+      root.members.addAll(child.members);
+      child.members = ImmutableList.of();
+      child.sequence = null;
+      return root;
+    }
+
+    /** Calls the actions of variables whose class has just been bound. */
+    private void act(List<Variable> variables, Sequence sequence) {
+      if (termActions.isEmpty()) {
+        return;
+      }
+      for (Variable variable : variables) {
+        final Action action = termActions.get(variable);
+        if (action != null) {
+          action.accept(variable, sequence, substitution, consumer);
+        }
+      }
+    }
+
+    /**
+     * Re-examines each constraint that has not fired, discarding candidates
+     * that can no longer unify with its argument. Calls the action of a
+     * constraint when just one candidate remains, and fails if none remain.
+     */
+    private @Nullable Failure checkConstraints() {
+      for (MutableConstraint constraint : constraintQueue) {
+        if (constraint.fired) {
+          continue;
+        }
+        final Constraint c = constraint.constraint;
+        final Term arg = substitution.resolve(c.arg);
+        int count = 0;
+        @Nullable Term term1 = null;
+        Constraint.@Nullable Action action1 = null;
+        for (int i = 0; i < c.termActions.size(); i++) {
+          final Term candidate = substitution.resolve(c.termActions.left(i));
+          if (arg.couldUnifyWith(candidate)) {
+            ++count;
+            term1 = candidate;
+            action1 = c.termActions.right(i);
+          }
+        }
+        constraint.candidateCount = count;
+        switch (count) {
+          case 0:
+            if (c.name != null) {
+              return failure(
+                  format(
+                      "no instance of '%s' matches argument type '%s'",
+                      c.name, render(arg)));
+            }
+            return failure("no valid overloads");
+          case 1:
+            constraint.fired = true;
+            requireNonNull(action1)
+                .accept(arg, requireNonNull(term1), consumer);
+            break;
+          default:
+            break;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Returns a failure if a class is bound to a sequence that, directly or
+     * indirectly, contains a variable of the class.
+     */
+    private @Nullable Failure checkCycles() {
+      final Map<Node, Boolean> visited = new HashMap<>();
+      for (Node node : nodes.values()) {
+        if (node.parent == node && node.sequence != null) {
+          final Failure failure = checkCycle(node, visited);
+          if (failure != null) {
+            return failure;
+          }
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Visits a class, given its root. The visited map holds false for a class
+     * that is being visited, and true for a class that has been visited.
+     */
+    private @Nullable Failure checkCycle(
+        Node root, Map<Node, Boolean> visited) {
+      final Boolean done = visited.putIfAbsent(root, false);
+      if (done != null) {
+        if (done) {
+          return null;
+        }
+        final Sequence sequence = requireNonNull(root.sequence);
+        tracer.onCycle(root.variable, sequence);
+        return failure("cycle: variable " + root.variable + " in " + sequence);
+      }
+      final Failure failure =
+          checkCycleTerms(requireNonNull(root.sequence), visited);
+      if (failure != null) {
+        return failure;
+      }
+      visited.put(root, true);
+      return null;
+    }
+
+    private @Nullable Failure checkCycleTerms(
+        Sequence sequence, Map<Node, Boolean> visited) {
+      for (Term term : sequence.terms) {
+        final @Nullable Failure failure;
+        if (term instanceof Sequence) {
+          failure = checkCycleTerms((Sequence) term, visited);
+        } else {
+          final Node node = nodes.get((Variable) term);
+          final Node root = node == null ? null : node.find();
+          failure =
+              root == null || root.sequence == null
+                  ? null
+                  : checkCycle(root, visited);
+        }
+        if (failure != null) {
+          return failure;
+        }
+      }
+      return null;
+    }
+
+    /**
+     * Substitutes the current bindings into a term, to the fullest extent.
+     *
+     * <p>Does not loop if the bindings are cyclic; a variable is not expanded
+     * inside its own expansion.
+     */
+    Term resolve(Term term, Map<Node, Term> resolved, Set<Node> active) {
+      if (term instanceof Variable) {
+        final Node node = nodes.get((Variable) term);
+        if (node == null) {
+          return term;
+        }
+        final Node root = node.find();
+        if (root.sequence == null || active.contains(root)) {
+          return root.variable;
+        }
+        final Term term2 = resolved.get(root);
+        if (term2 != null) {
+          return term2;
+        }
+        active.add(root);
+        final Term term3 = resolve(root.sequence, resolved, active);
+        active.remove(root);
+        resolved.put(root, term3);
+        return term3;
+      }
+      final Sequence sequence = (Sequence) term;
+      if (sequence.terms.isEmpty()) {
+        return sequence;
+      }
+      final List<Term> terms = new ArrayList<>(sequence.terms.size());
+      boolean changed = false;
+      for (Term t : sequence.terms) {
+        final Term t2 = resolve(t, resolved, active);
+        terms.add(t2);
+        changed |= t2 != t;
+      }
+      return changed ? new Sequence(sequence.operator, terms) : sequence;
+    }
+
+    /**
+     * Substitution whose map is a view of the current classes, and whose {@link
+     * #resolve(Term)} method uses those classes directly.
+     */
+    private class WorkSubstitution extends Substitution {
+      WorkSubstitution() {
+        super(new WorkMap());
+      }
+
+      @Override
+      public Term resolve(Term term) {
+        return Work.this.resolve(term, new HashMap<>(), new HashSet<>());
+      }
+    }
+
+    /** Map from each variable to the term that it is equivalent to. */
+    private class WorkMap extends AbstractMap<Variable, Term> {
+      @Override
+      public @Nullable Term get(Object key) {
+        final Node node = nodes.get(key);
+        return node == null ? null : termOf(node);
+      }
+
+      @Override
+      public boolean containsKey(Object key) {
+        return get(key) != null;
+      }
+
+      @Override
+      public Term getOrDefault(Object key, Term defaultValue) {
+        final Term term = get(key);
+        return term == null ? defaultValue : term;
+      }
+
+      @Override
+      public Set<Entry<Variable, Term>> entrySet() {
+        final Map<Variable, Term> map = new LinkedHashMap<>();
+        nodes.forEach(
+            (variable, node) -> {
+              final Term term = termOf(node);
+              if (term != null) {
+                map.put(variable, term);
+              }
+            });
+        return map.entrySet();
+      }
+    }
+  }
+
+  /** Node in the union-find structure; one per variable. */
+  private static class Node {
+    final Variable variable;
+
+    /** Parent node; this node if it is the root of its class. */
+    Node parent = this;
+
+    /** Variables in this class; empty unless this is a root. */
+    List<Variable> members;
+
+    /** Sequence that this class is bound to; null unless this is a root. */
+    @Nullable Sequence sequence;
+
+    Node(Variable variable) {
+      this.variable = requireNonNull(variable);
+      this.members = new ArrayList<>();
+      this.members.add(variable);
+    }
+
+    @Override
+    public String toString() {
+      return parent == this
+          ? variable + (sequence == null ? "" : "=" + sequence)
+          : variable + "->" + parent.variable;
+    }
+
+    /** Returns the root of this node's class, compressing the path to it. */
+    Node find() {
+      Node root = this;
+      while (root.parent != root) {
+        root = root.parent;
+      }
+      for (Node node = this; node != root; ) {
+        final Node next = node.parent;
+        node.parent = root;
+        node = next;
+      }
+      return root;
+    }
+  }
+
+  /** State of a {@link Constraint} during unification. */
+  private static class MutableConstraint {
+    final Constraint constraint;
+
+    /** Number of candidates that could unify with the argument. */
+    int candidateCount;
+
+    /** Whether the constraint's action has been called. */
+    boolean fired;
+
+    MutableConstraint(Constraint constraint) {
+      this.constraint = requireNonNull(constraint);
+      this.candidateCount = constraint.termActions.size();
+    }
+
+    @Override
+    public String toString() {
+      return format("{constraint %s %s}", constraint, candidateCount);
+    }
+  }
+}
+
+// End UnionFindUnifier.java
@@ -23,6 +23,7 @@ import static net.hydromatic.morel.Matchers.equalsUnordered;
 import static net.hydromatic.morel.Matchers.isCode;
 import static net.hydromatic.morel.Matchers.isFullyCalcite;
 import static net.hydromatic.morel.Matchers.list;
+import static net.hydromatic.morel.Matchers.scansRel;
 import static net.hydromatic.morel.Ml.ml;
 import static org.hamcrest.core.Is.is;
 
@@ -68,6 +69,33 @@ public class AlgebraTest {
                 20, 30, 30, 20, 30, 30, 10, 20, 10, 30, 20, 30, 20, 10));
   }
 
+  /**
+   * Tests that a query that Morel evaluates (not in hybrid mode) pushes its
+   * filter, and the columns that it uses, into the scan of a JDBC table.
+   */
+  @Test
+  void testScottPushdown() {
+    final String ml =
+        "from e in scott.emps\n"
+            + "  where e.deptno = 20 andalso e.ename <> \"SCOTT\"\n"
+            + "  yield e.empno";
+    final String plan =
+        "LogicalProject(comm=[0.00:DECIMAL(7, 2)], deptno=[$1], empno=[$2], "
+            + "ename=[$3], hiredate=[1970-01-01], job=[''], mgr=[0:SMALLINT], "
+            + "sal=[0.00:DECIMAL(7, 2)])\n"
+            + "  LogicalFilter(condition=[AND(=($1, 20), SEARCH($3, "
+            + "Sarg[(-\u221E..'SCOTT'), ('SCOTT'..+\u221E); NULL AS TRUE]"
+            + ":CHAR(5)))])\n"
+            + "    LogicalProject(comm=[$6], deptno=[$7], empno=[$0], "
+            + "ename=[$1], hiredate=[$4], job=[$2], mgr=[$3], sal=[$5])\n"
+            + "      JdbcTableScan(table=[[scott, EMP]])\n";
+    ml(ml)
+        .withBinding("scott", BuiltInDataSet.SCOTT)
+        .assertType("int bag")
+        .assertCore(-1, scansRel(plan))
+        .assertEvalIter(equalsOrdered(7369, 7566, 7876, 7902));
+  }
+
   @Test
   void testScottOrder() {
     final String ml =
@@ -52,6 +52,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
 import java.io.PrintStream;
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -61,10 +62,12 @@ import net.hydromatic.morel.compile.CompileException;
 import net.hydromatic.morel.eval.Applicable1;
 import net.hydromatic.morel.eval.Codes;
 import net.hydromatic.morel.eval.Prop;
+import net.hydromatic.morel.eval.RowSinks;
 import net.hydromatic.morel.foreign.ForeignValue;
 import net.hydromatic.morel.parse.MorelParseException;
 import net.hydromatic.morel.type.DataType;
 import net.hydromatic.morel.type.TypeVar;
+import net.hydromatic.morel.util.ThreadLocals;
 import org.hamcrest.CustomTypeSafeMatcher;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
@@ -2600,6 +2603,78 @@ public class MainTest {
     ml(ml).assertEvalIter(equalsOrdered(102, 103));
   }
 
+  /**
+   * Tests that a query is evaluated in partitions if the "parallelism" property
+   * is greater than 1, even if the thread that evaluates it belongs to a
+   * fork-join pool (as JUnit's worker threads do), and that the partitions'
+   * rows are merged in order.
+   */
+  @Test
+  void testFromParallel() {
+    final List<Integer> partitionCounts = new ArrayList<>();
+    final String ml =
+        "from i in List.tabulate (100, fn i => i)\n"
+            + "  where i mod 7 = 0\n"
+            + "  yield i div 7";
+    ThreadLocals.let(
+        RowSinks.PARTITION_LISTENER,
+        partitionCounts::add,
+        () ->
+            ml(ml)
+                .with(Prop.PARALLELISM, 4)
+                .assertEvalIter(
+                    equalsOrdered(
+                        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14)));
+    assertThat(partitionCounts, is(ImmutableList.of(4)));
+
+    // With the default parallelism, the query is not split.
+    partitionCounts.clear();
+    ThreadLocals.let(
+        RowSinks.PARTITION_LISTENER,
+        partitionCounts::add,
+        () ->
+            ml(ml)
+                .assertEvalIter(
+                    equalsOrdered(
+                        0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14)));
+    assertThat(partitionCounts.isEmpty(), is(true));
+
+    // A query whose partitions evaluate a nested query with a 'group' step.
+    // Each evaluation binds its group keys in a frame of its own, so the
+    // partitions do not see each other's keys.
+    partitionCounts.clear();
+    final String ml2 =
+        "from i in List.tabulate (100, fn i => i)\n"
+            + "  where i mod 7 = 0\n"
+            + "  yield from j in [i, i div 7, i]\n"
+            + "    group j compute {c = count over ()}";
+    ThreadLocals.let(
+        RowSinks.PARTITION_LISTENER,
+        partitionCounts::add,
+        () ->
+            ml(ml2)
+                .with(Prop.PARALLELISM, 4)
+                .assertEval(
+                    is(
+                        list(
+                            list(list(3, 0)),
+                            list(list(2, 7), list(1, 1)),
+                            list(list(2, 14), list(1, 2)),
+                            list(list(2, 21), list(1, 3)),
+                            list(list(2, 28), list(1, 4)),
+                            list(list(2, 35), list(1, 5)),
+                            list(list(2, 42), list(1, 6)),
+                            list(list(2, 49), list(1, 7)),
+                            list(list(2, 56), list(1, 8)),
+                            list(list(2, 63), list(1, 9)),
+                            list(list(2, 70), list(1, 10)),
+                            list(list(2, 77), list(1, 11)),
+                            list(list(2, 84), list(1, 12)),
+                            list(list(2, 91), list(1, 13)),
+                            list(list(2, 98), list(1, 14))))));
+    assertThat(partitionCounts, is(ImmutableList.of(4)));
+  }
+
   /**
    * A query with an unconstrained scan that is deduced to be of type {@code
    * bool option} and therefore iterates over {@code [SOME true, SOME false,
@@ -3003,7 +3078,8 @@ public class MainTest {
         "from("
             + "sink join(pat r, exp tuple(tuple(constant(2), constant(3))), "
             + "sink group(key tuple(apply(fnValue nth:0, argCode stack(offset 1, name r))), "
-            + "agg aggregate, "
+            + "agg accumulate(fn Relational.sum$int, "
+            + "arg apply(fnValue nth:1, argCode stack(offset 1, name r))), "
             + "sink collect(tuple(get(name a), "
             + "apply2(fnValue Int.+, get(name a), get(name a)), "
             + "get(name sb))))))";
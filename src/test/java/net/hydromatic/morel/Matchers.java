@@ -38,13 +38,17 @@ import java.util.regex.Pattern;
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.AstNode;
 import net.hydromatic.morel.ast.AstWriter;
+import net.hydromatic.morel.ast.Core;
 import net.hydromatic.morel.ast.Pos;
+import net.hydromatic.morel.ast.Visitor;
 import net.hydromatic.morel.eval.Applicable1;
 import net.hydromatic.morel.eval.Code;
 import net.hydromatic.morel.eval.Codes;
+import net.hydromatic.morel.foreign.RelList;
 import net.hydromatic.morel.type.DataType;
 import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.util.MorelException;
+import org.apache.calcite.plan.RelOptUtil;
 import org.checkerframework.checker.nullness.qual.Nullable;
 import org.hamcrest.BaseMatcher;
 import org.hamcrest.CustomTypeSafeMatcher;
@@ -162,6 +166,46 @@ public abstract class Matchers {
     };
   }
 
+  /**
+   * Matches a Core declaration that scans a foreign relation whose relational
+   * expression has a given plan; for example, a plan into which {@link
+   * net.hydromatic.morel.compile.ForeignPushdown} has pushed a filter.
+   */
+  static Matcher<Core.Decl> scansRel(String expected) {
+    return new CustomTypeSafeMatcher<Core.Decl>("scan of rel " + expected) {
+      @Override
+      protected boolean matchesSafely(Core.Decl decl) {
+        return relPlans(decl).contains(expected);
+      }
+
+      @Override
+      protected void describeMismatchSafely(
+          Core.Decl decl, Description description) {
+        description.appendText("was ").appendValue(relPlans(decl));
+      }
+    };
+  }
+
+  /** Returns the plans of the foreign relations that a declaration scans. */
+  private static List<String> relPlans(Core.Decl decl) {
+    final List<String> plans = new ArrayList<>();
+    decl.accept(
+        new Visitor() {
+          @Override
+          protected void visit(Core.Scan scan) {
+            if (scan.exp instanceof Core.Literal) {
+              final Object value =
+                  ((Core.Literal) scan.exp).unwrap(Object.class);
+              if (value instanceof RelList) {
+                plans.add(RelOptUtil.toString(((RelList) value).rel));
+              }
+            }
+            super.visit(scan);
+          }
+        });
+    return plans;
+  }
+
   static List<Object> list(Object... values) {
     return Arrays.asList(values);
   }
@@ -171,6 +171,51 @@ public class ScriptTest {
     checkRun("script/type-inference.smli");
   }
 
+  /**
+   * Runs {@code datatype.smli} a second time, using {@link
+   * net.hydromatic.morel.util.UnionFindUnifier} to unify types. The types
+   * deduced, and therefore the output, are the same as with the default
+   * unifier.
+   */
+  @Test
+  void testDatatypeUnionFind() throws Exception {
+    checkRunUnionFind("script/datatype.smli");
+  }
+
+  /**
+   * Runs {@code overload.smli} a second time, using {@link
+   * net.hydromatic.morel.util.UnionFindUnifier}.
+   */
+  @Test
+  void testOverloadUnionFind() throws Exception {
+    checkRunUnionFind("script/overload.smli");
+  }
+
+  /**
+   * Runs a script using {@link net.hydromatic.morel.util.UnionFindUnifier}.
+   *
+   * <p>The script is given by its absolute path, so that its output goes to a
+   * different file from the ordinary run's output.
+   *
+   * <p>Not every script is suitable. When two types conflict, the unifiers may
+   * find the conflict in a different order, and the error message may list the
+   * two types the other way around (for example, {@code type-inference.smli}
+   * has "conflict: int vs string").
+   */
+  private static void checkRunUnionFind(String path) throws IOException {
+    final URL url = ScriptTest.class.getResource("/" + n2u(path));
+    assertThat(url, notNullValue());
+    final File file = urlToFile(url);
+    assertThat(file, notNullValue());
+    Script.create(
+            file.getAbsolutePath(),
+            null,
+            false,
+            ImmutableMap.of(Prop.UNIFIER, Prop.Unifier.UNION_FIND),
+            Tracers.empty())
+        .run();
+  }
+
   /**
    * Runs {@code dual.smli} a second time, in Calcite ("hybrid") mode, asserting
    * that each query is pushed down to Calcite.
@@ -33,11 +33,13 @@ import java.io.StringWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import net.hydromatic.morel.util.MartelliUnifier;
 import net.hydromatic.morel.util.RobinsonUnifier;
 import net.hydromatic.morel.util.Tracers;
 import net.hydromatic.morel.util.Unifier;
 import net.hydromatic.morel.util.Unifiers;
+import net.hydromatic.morel.util.UnionFindUnifier;
 import org.hamcrest.Matcher;
 import org.junit.jupiter.api.Test;
 
@@ -505,6 +507,76 @@ public abstract class UnifierTest {
       assertThatUnify(pairs, is(expected));
     }
   }
+
+  /**
+   * Variant of test that uses {@link
+   * net.hydromatic.morel.util.UnionFindUnifier}.
+   */
+  public static class UnionFindUnifierTest extends UnifierTest {
+    protected Unifier createUnifier() {
+      return new UnionFindUnifier();
+    }
+
+    /** The occurs check, deferred until the end, finds an indirect cycle. */
+    @Test
+    void testIndirectCycle() {
+      final Unifier.Variable y = unifier.variable("Y");
+      final Unifier.Variable z = unifier.variable("Z");
+      final Unifier.Variable w = unifier.variable("W");
+      assertThatCannotUnify(termPairs(X, a(y), y, b(z), z, arrow(X, w)));
+      assertThatUnify(
+          termPairs(X, a(y), y, b(z), z, arrow(w, w)),
+          is("[a(b(->(W, W)))/X, b(->(W, W))/Y, ->(W, W)/Z]"));
+    }
+
+    /** Unifies a long chain of variables, the last of which is an atom. */
+    @Test
+    void testChain() {
+      final int n = 10_000;
+      final List<Unifier.TermTerm> pairs = new ArrayList<>();
+      for (int i = 0; i < n; i++) {
+        pairs.add(
+            new Unifier.TermTerm(unifier.variable(i), unifier.variable(i + 1)));
+      }
+      pairs.add(new Unifier.TermTerm(unifier.variable(n), unifier.atom("int")));
+      final Unifier.Result result =
+          unifier.unify(
+              pairs,
+              ImmutableMap.of(),
+              ImmutableList.of(),
+              Tracers.nullTracer());
+      assertThat(result instanceof Unifier.Substitution, is(true));
+      final Unifier.Substitution substitution = (Unifier.Substitution) result;
+      assertThat(substitution.resolve(unifier.variable(0)), hasToString("int"));
+      assertThat(
+          substitution.resolve(unifier.variable(n / 2)), hasToString("int"));
+    }
+
+    /**
+     * Tests that an action is called when the class of its variable is bound to
+     * a sequence, even if the variable was bound to another variable first.
+     */
+    @Test
+    void testAction() {
+      final Unifier.Variable y = unifier.variable("Y");
+      final Unifier.Variable w = unifier.variable("W");
+      final Map<Unifier.Variable, Unifier.Action> actions =
+          ImmutableMap.of(
+              y,
+              (variable, term, substitution, termPairs) ->
+                  termPairs.accept(w, ((Unifier.Sequence) term).terms.get(0)));
+      final Unifier.Result result =
+          unifier.unify(
+              termPairs(y, X, X, a(b())),
+              actions,
+              ImmutableList.of(),
+              Tracers.nullTracer());
+      assertThat(result instanceof Unifier.Substitution, is(true));
+      assertThat(
+          ((Unifier.Substitution) result).resolve(),
+          hasToString("[b/W, a(b)/X, a(b)/Y]"));
+    }
+  }
 }
 
 // End UnifierTest.java
@@ -19,6 +19,9 @@
 package net.hydromatic.morel;
 
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.Files.newOutputStream;
+import static java.nio.file.Files.write;
 import static net.hydromatic.morel.ast.AstBuilder.ast;
 import static net.hydromatic.morel.eval.Codes.isNegative;
 import static net.hydromatic.morel.util.ColorScheme.rgbToLuma;
@@ -60,15 +63,21 @@ import com.google.common.collect.Range;
 import com.google.common.graph.GraphBuilder;
 import com.google.common.graph.Graphs;
 import com.google.common.graph.MutableGraph;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.math.BigDecimal;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
@@ -76,20 +85,33 @@ import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Predicate;
+import java.util.zip.GZIPOutputStream;
 import net.hydromatic.morel.ast.Ast;
 import net.hydromatic.morel.ast.Pos;
 import net.hydromatic.morel.compile.BuiltIn;
 import net.hydromatic.morel.eval.Codes;
+import net.hydromatic.morel.eval.Comparators;
+import net.hydromatic.morel.eval.DataValue;
+import net.hydromatic.morel.eval.File;
+import net.hydromatic.morel.eval.Files;
+import net.hydromatic.morel.eval.GlobalFrame;
+import net.hydromatic.morel.eval.Tuple;
+import net.hydromatic.morel.type.DataType;
+import net.hydromatic.morel.type.ForallType;
 import net.hydromatic.morel.type.PrimitiveType;
 import net.hydromatic.morel.type.RangeExtent;
+import net.hydromatic.morel.type.Type;
 import net.hydromatic.morel.type.TypeSystem;
 import net.hydromatic.morel.util.ArrayQueue;
+import net.hydromatic.morel.util.ChunkedList;
 import net.hydromatic.morel.util.ColorScheme;
+import net.hydromatic.morel.util.ConsList;
 import net.hydromatic.morel.util.Folder;
 import net.hydromatic.morel.util.MapList;
 import net.hydromatic.morel.util.Ord;
 import net.hydromatic.morel.util.Pair;
 import net.hydromatic.morel.util.PairList;
+import net.hydromatic.morel.util.PersistentMap;
 import net.hydromatic.morel.util.Static;
 import net.hydromatic.morel.util.TailList;
 import net.hydromatic.morel.util.WordComparator;
@@ -97,6 +119,7 @@ import org.apache.calcite.runtime.FlatLists;
 import org.apache.calcite.util.ImmutableIntList;
 import org.hamcrest.Matcher;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
 /** Tests for various utility classes. */
 public class UtilTest {
@@ -140,6 +163,430 @@ public class UtilTest {
     assertThat(list.isEmpty(), is(false));
   }
 
+  /** Tests {@link ChunkedList}. */
+  @Test
+  void testChunkedList() {
+    final ChunkedList<String> chunkedList = new ChunkedList<>();
+    final List<String> empty = chunkedList.snapshot();
+    assertThat(empty.isEmpty(), is(true));
+    assertThat(empty.iterator().hasNext(), is(false));
+
+    chunkedList.add(Arrays.asList("a", "b"));
+    chunkedList.add(ImmutableList.of());
+    chunkedList.add(ImmutableList.of("c"));
+    final List<String> abc = chunkedList.snapshot();
+    chunkedList.add(Arrays.asList("d", "e", "f"));
+    final List<String> abcdef = chunkedList.snapshot();
+
+    // An earlier snapshot does not see chunks appended later.
+    assertThat(empty, is(ImmutableList.of()));
+    assertThat(abc, is(Arrays.asList("a", "b", "c")));
+    assertThat(abc.hashCode(), is(Arrays.asList("a", "b", "c").hashCode()));
+    assertThat(abcdef, hasToString("[a, b, c, d, e, f]"));
+    assertThat(chunkedList.size(), is(6));
+    assertThat(abcdef.get(0), is("a"));
+    assertThat(abcdef.get(1), is("b"));
+    assertThat(abcdef.get(2), is("c"));
+    assertThat(abcdef.get(3), is("d"));
+    assertThat(abcdef.get(5), is("f"));
+    assertThrows(IndexOutOfBoundsException.class, () -> abc.get(3));
+    assertThrows(IndexOutOfBoundsException.class, () -> abc.get(-1));
+    assertThat(abcdef.indexOf("e"), is(4));
+    assertThat(abcdef.subList(2, 4), is(Arrays.asList("c", "d")));
+
+    // Many chunks.
+    final ChunkedList<Integer> ints = new ChunkedList<>();
+    for (int i = 0; i < 1_000; i++) {
+      ints.add(ImmutableList.of(2 * i, 2 * i + 1));
+    }
+    final List<Integer> list = ints.snapshot();
+    assertThat(list.size(), is(2_000));
+    for (int i = 0; i < 2_000; i++) {
+      assertThat(list.get(i), is(i));
+    }
+    int i = 0;
+    for (int e : list) {
+      assertThat(e, is(i++));
+    }
+    assertThat(i, is(2_000));
+  }
+
+  /** Tests {@link ConsList}. */
+  @Test
+  void testConsList() {
+    final List<String> empty = ImmutableList.of();
+    final List<String> c = ConsList.of("c", empty);
+    assertThat(c, instanceOf(ImmutableList.class));
+    final List<String> bc = ConsList.of("b", c);
+    final List<String> abc = ConsList.of("a", bc);
+    assertThat(abc, instanceOf(ConsList.class));
+    assertThat(abc.size(), is(3));
+    assertThat(abc, hasToString("[a, b, c]"));
+
+    // The tail is shared, not copied.
+    assertThat(abc.subList(1, 3), sameInstance(bc));
+    assertThat(abc.subList(2, 3), sameInstance(c));
+    assertThat(abc.subList(3, 3), is(empty));
+    assertThat(abc.subList(0, 2), is(Arrays.asList("a", "b")));
+
+    // Equality and hash code are consistent with other lists.
+    final List<String> abc2 = Arrays.asList("a", "b", "c");
+    assertThat(abc.equals(abc2), is(true));
+    assertThat(abc2.equals(abc), is(true));
+    assertThat(abc.equals(ImmutableList.copyOf(abc2)), is(true));
+    assertThat(abc.hashCode(), is(abc2.hashCode()));
+    assertThat(abc.equals(bc), is(false));
+    assertThat(abc.equals(ConsList.of("a", ConsList.of("b", c))), is(true));
+    assertThat(abc.equals(ConsList.of("x", bc)), is(false));
+
+    assertThat(abc.get(0), is("a"));
+    assertThat(abc.get(2), is("c"));
+    assertThrows(IndexOutOfBoundsException.class, () -> abc.get(3));
+    assertThat(abc.indexOf("b"), is(1));
+    assertThat(abc.indexOf("z"), is(-1));
+    assertThat(abc.lastIndexOf("c"), is(2));
+    assertThat(abc.contains("c"), is(true));
+    assertThat(Arrays.asList(abc.toArray()), is(abc2));
+    assertThat(Lists.reverse(abc), is(Arrays.asList("c", "b", "a")));
+
+    // A long list; each operation walks the list at most once.
+    List<Integer> list = ImmutableList.of(0);
+    for (int i = 1; i < 100_000; i++) {
+      list = ConsList.of(i, list);
+    }
+    assertThat(list.size(), is(100_000));
+    assertThat(list.get(0), is(99_999));
+    assertThat(list.get(99_999), is(0));
+    assertThat(list.subList(99_998, 100_000), is(Arrays.asList(1, 0)));
+    int sum = 0;
+    for (int i : list) {
+      sum += i % 3;
+    }
+    assertThat(sum, is(99_999));
+  }
+
+  /** Tests {@link PersistentMap}. */
+  @Test
+  void testPersistentMap() {
+    final PersistentMap<String, Integer> empty = PersistentMap.of();
+    assertThat(empty.isEmpty(), is(true));
+    assertThat(empty.get("a"), nullValue());
+
+    final PersistentMap<String, Integer> a = empty.plus("a", 1);
+    final PersistentMap<String, Integer> ab = a.plus("b", 2);
+    assertThat(ab.size(), is(2));
+    assertThat(ab.get("a"), is(1));
+    assertThat(ab.get("b"), is(2));
+    assertThat(ab.get("c"), nullValue());
+
+    // Adding an entry does not change the original map.
+    assertThat(a.size(), is(1));
+    assertThat(a.get("b"), nullValue());
+    assertThat(empty.isEmpty(), is(true));
+
+    // Replacing a value does not change the size; replacing a value with
+    // itself returns the same map.
+    final PersistentMap<String, Integer> ab2 = ab.plus("a", 3);
+    assertThat(ab2.size(), is(2));
+    assertThat(ab2.get("a"), is(3));
+    assertThat(ab.get("a"), is(1));
+    assertThat(ab2.plus("a", ab2.get("a")), sameInstance(ab2));
+
+    // "Aa" and "BB" have the same hash code.
+    assertThat("Aa".hashCode(), is("BB".hashCode()));
+    final PersistentMap<String, Integer> collide =
+        ab.plus("Aa", 4).plus("BB", 5).plus("C#", 6);
+    assertThat(collide.size(), is(5));
+    assertThat(collide.get("Aa"), is(4));
+    assertThat(collide.get("BB"), is(5));
+    assertThat(collide.get("C#"), is(6));
+    assertThat(collide.plus("BB", 7).get("BB"), is(7));
+    assertThat(collide.plus("BB", 7).get("Aa"), is(4));
+
+    // Compare with a HashMap over many random operations.
+    final Random random = new Random(1);
+    final Map<Integer, Integer> map = new HashMap<>();
+    PersistentMap<Integer, Integer> pmap = PersistentMap.of();
+    for (int i = 0; i < 10_000; i++) {
+      final int k = random.nextInt(2_000) - 1_000;
+      map.put(k, i);
+      pmap = pmap.plus(k, i);
+      assertThat(pmap.size(), is(map.size()));
+    }
+    final Map<Integer, Integer> map2 = new HashMap<>();
+    pmap.forEach(map2::put);
+    assertThat(map2, is(map));
+    for (int k = -1_100; k < 1_100; k++) {
+      assertThat(pmap.get(k), is(map.get(k)));
+    }
+  }
+
+  /** Tests {@link GlobalFrame}. */
+  @Test
+  void testGlobalFrame() {
+    // A name has the same slot in every frame that uses a table.
+    final GlobalFrame.SlotTable table = new GlobalFrame.SlotTable();
+    final int x = table.slot("x");
+    final int y = table.slot("y");
+    assertThat(table.slot("x"), is(x));
+    assertThat(y, not(x));
+    assertThat(table.name(y), is("y"));
+    assertThat(
+        table.slots(Arrays.asList("y", "x", "y")), is(new int[] {y, x, y}));
+
+    final GlobalFrame frame = new GlobalFrame(table);
+    final GlobalFrame frame2 = new GlobalFrame(table);
+    assertThat(frame.get(x), nullValue());
+    frame.set(x, 1);
+    frame.put("y", "a");
+    assertThat(frame.get(x), is(1));
+    assertThat(frame.get(y), is("a"));
+    assertThat(frame2.get(x), nullValue());
+    assertThat(frame2, hasToString("{}"));
+    frame2.set(x, 2);
+    assertThat(frame2, hasToString("{x=2}"));
+
+    // Setting null unbinds.
+    frame.set(x, null);
+    assertThat(frame.get(x), nullValue());
+
+    // The frame grows to hold slots allocated after it was created.
+    final int z = table.slot("z" + 1_000);
+    for (int i = 0; i < 1_000; i++) {
+      table.slot("z" + i);
+    }
+    final int last = table.slot("z" + 999);
+    assertThat(frame.get(last), nullValue());
+    frame.set(last, true);
+    frame.set(z, false);
+    assertThat(frame.get(last), is(true));
+    assertThat(frame.get(z), is(false));
+    assertThat(frame.get(y), is("a"));
+
+    // Another table allocates slots independently.
+    final GlobalFrame.SlotTable table2 = new GlobalFrame.SlotTable();
+    assertThat(table2.slot("z" + 999), is(0));
+    assertThat(table2.size(), is(1));
+
+    // A child frame binds some slots, reads others from its parent, and does
+    // not change its parent.
+    frame2.set(y, "b");
+    final Object[] values = {3, null};
+    final GlobalFrame child = frame2.bind(new int[] {x, z}, values);
+    assertThat(child.get(x), is(3));
+    assertThat(child.get(y), is("b"));
+    assertThat(child.get(z), nullValue());
+    values[1] = "c";
+    assertThat(child.get(z), is("c"));
+    assertThat(child, hasToString("{x=3, y=b, z1000=c}"));
+    assertThat(frame2, hasToString("{x=2, y=b}"));
+    assertThrows(IllegalStateException.class, () -> child.set(x, 4));
+
+    // Names resolve against the table of a frame.
+    final GlobalFrame.Names names = GlobalFrame.Names.of(Arrays.asList("y"));
+    assertThat(names.slots(frame), is(new int[] {y}));
+    final GlobalFrame frame3 = new GlobalFrame(table2);
+    assertThat(names.slots(frame3), is(new int[] {1}));
+    assertThat(names.slots(frame), is(new int[] {y}));
+  }
+
+  /** Tests {@link DataValue}. */
+  @Test
+  void testDataValue() {
+    final TypeSystem typeSystem = new TypeSystem();
+    BuiltIn.dataTypes(typeSystem, new ArrayList<>());
+
+    // The ordinal of each built-in constructor is its position in its
+    // datatype.
+    for (BuiltIn.Datatype datatype : BuiltIn.Datatype.values()) {
+      final Type type = typeSystem.lookup(datatype);
+      final DataType dataType =
+          (DataType)
+              (type instanceof ForallType ? ((ForallType) type).type : type);
+      for (BuiltIn.Constructor constructor : datatype.constructors()) {
+        assertThat(
+            DataValue.ordinal(dataType, constructor.constructor),
+            is(DataValue.ordinal(constructor)));
+      }
+    }
+
+    // A DataValue is equal to a list with the same elements, and has the same
+    // hash code.
+    final DataValue none = DataValue.of(BuiltIn.Constructor.OPTION_NONE);
+    final DataValue some = DataValue.of(BuiltIn.Constructor.OPTION_SOME, 1);
+    assertThat(none, is(ImmutableList.of("NONE")));
+    assertThat(ImmutableList.of("NONE"), is(none));
+    assertThat(none.hashCode(), is(ImmutableList.of("NONE").hashCode()));
+    assertThat(some, is(Arrays.asList("SOME", 1)));
+    assertThat(Arrays.asList("SOME", 1), is(some));
+    assertThat(some.hashCode(), is(Arrays.asList("SOME", 1).hashCode()));
+    assertThat(some, is(DataValue.of(BuiltIn.Constructor.OPTION_SOME, 1)));
+    assertThat(some, not(DataValue.of(BuiltIn.Constructor.OPTION_SOME, 2)));
+    assertThat(some, not(none));
+    assertThat(some, hasSize(2));
+    assertThat(some.get(1), is(1));
+    assertThat(none, hasSize(1));
+    assertThat(none.arg(), nullValue());
+    assertThat(some, hasToString("[SOME, 1]"));
+    assertThat(some.is("SOME"), is(true));
+    assertThat(some.is("NONE"), is(false));
+
+    // Comparing DataValues gives the same result as comparing lists.
+    @SuppressWarnings("unchecked")
+    final Comparator<Object> comparator =
+        Comparators.comparatorFor(
+            typeSystem, typeSystem.option(PrimitiveType.INT));
+    final List<List<Object>> values =
+        Arrays.asList(
+            DataValue.of(BuiltIn.Constructor.OPTION_SOME, 2),
+            none,
+            some,
+            DataValue.of(BuiltIn.Constructor.OPTION_SOME, 0));
+    for (List<Object> v1 : values) {
+      for (List<Object> v2 : values) {
+        final int c = comparator.compare(v1, v2);
+        assertThat(
+            comparator.compare(
+                ImmutableList.copyOf(v1), ImmutableList.copyOf(v2)),
+            is(c));
+      }
+    }
+    final List<List<Object>> sortedValues = new ArrayList<>(values);
+    sortedValues.sort(comparator);
+    assertThat(
+        sortedValues, hasToString("[[NONE], [SOME, 0], [SOME, 1], [SOME, 2]]"));
+  }
+
+  /** Tests {@link Tuple}. */
+  @Test
+  void testTuple() {
+    final Object[] values = {1, "a", true};
+    final Tuple t = Tuple.copyOf(values);
+    values[0] = 2;
+    assertThat(t.get(0), is(1));
+    assertThat(t, hasSize(3));
+    assertThat(t, hasToString("[1, a, true]"));
+
+    // A tuple is equal to a list with the same elements, and has the same
+    // hash code.
+    final List<Object> list = Arrays.asList(1, "a", true);
+    assertThat(t, is(list));
+    assertThat(list, is(t));
+    assertThat(t.hashCode(), is(list.hashCode()));
+    assertThat(t.hashCode(), is(ImmutableList.copyOf(list).hashCode()));
+    assertThat(t, is(Tuple.wrap(new Object[] {1, "a", true})));
+    assertThat(t, not(Tuple.wrap(new Object[] {1, "a", false})));
+    assertThat(t, not(Tuple.wrap(new Object[] {1, "a"})));
+    assertThat(Tuple.copyOf(t), sameInstance(t));
+    assertThat(Tuple.copyOf(list), is(t));
+
+    // Tuples may contain nulls.
+    final Tuple t2 = Tuple.wrap(new Object[] {null, 1});
+    assertThat(t2, is(Arrays.asList(null, 1)));
+    assertThat(t2.hashCode(), is(Arrays.asList(null, 1).hashCode()));
+
+    // toArray returns a copy.
+    final Object[] array = t.toArray();
+    array[1] = "b";
+    assertThat(t.get(1), is("a"));
+
+    // Tuples are immutable.
+    assertThrows(UnsupportedOperationException.class, () -> t.set(0, 3));
+    assertThrows(UnsupportedOperationException.class, () -> t.add(3));
+  }
+
+  /**
+   * Tests that {@link Files} parses CSV files, and caches their contents until
+   * they change.
+   */
+  @Test
+  void testFileCache(@TempDir Path dir) throws IOException {
+    final Path csv = dir.resolve("t.csv");
+    write(
+        csv,
+        ("i:int,s:string,r:double\n"
+                + "1,'a, b',1.5\n"
+                + "-20,c,NULL\r\n"
+                + "\n"
+                + "NULL,'',-2.25\n"
+                + "2147483647,'d',1e3")
+            .getBytes(UTF_8));
+    final Files.Cache cache = new Files.Cache();
+    final File file = Files.create(csv.toFile(), cache);
+    final List<?> rows = file.valueAs(List.class);
+    // Fields are sorted by name: i, r, s.
+    assertThat(
+        rows,
+        is(
+            Arrays.asList(
+                Arrays.asList(1, 1.5f, "a, b"),
+                Arrays.asList(-20, 0f, "c"),
+                Arrays.asList(0, -2.25f, ""),
+                Arrays.asList(Integer.MAX_VALUE, 1000f, "d"))));
+
+    // The second read uses the cache, even via a different File.
+    final Object row0 = rows.get(0);
+    assertThat(((List<?>) file.valueAs(List.class)).get(0), sameInstance(row0));
+    assertThat(
+        ((List<?>) Files.create(csv.toFile(), cache).valueAs(List.class))
+            .get(0),
+        sameInstance(row0));
+
+    // If the file changes, it is read again.
+    final String csv2 =
+        "i:int,s:string,r:double\n" //
+            + "3,e,0.5\n";
+    write(csv, csv2.getBytes(UTF_8));
+    assertThat(
+        file.valueAs(List.class),
+        is(ImmutableList.of(Arrays.asList(3, 0.5f, "e"))));
+
+    // A compressed file.
+    final Path gz = dir.resolve("u.csv.gz");
+    try (OutputStream out = new GZIPOutputStream(newOutputStream(gz))) {
+      out.write("j:int\n".getBytes(UTF_8));
+      for (int i = 0; i < 100_000; i++) {
+        out.write((i + "\n").getBytes(UTF_8));
+      }
+    }
+    final List<?> rows2 = Files.create(gz.toFile(), cache).valueAs(List.class);
+    assertThat(rows2, hasSize(100_000));
+    assertThat(rows2.get(99_999), is(ImmutableList.of(99_999)));
+    assertThat(
+        ((List<?>) Files.create(gz.toFile(), cache).valueAs(List.class)).get(0),
+        sameInstance(rows2.get(0)));
+  }
+
+  /**
+   * Tests that iterating over the rows of a data file reads them one at a time,
+   * so that an iteration that stops early does not read the whole file.
+   */
+  @Test
+  void testFileScan(@TempDir Path dir) throws Exception {
+    // The last row is invalid; reading the whole file will fail.
+    final Path csv = dir.resolve("t.csv");
+    final String csv1 =
+        "i:int\n" //
+            + "1\n"
+            + "2\n"
+            + "3\n"
+            + "x\n";
+    write(csv, csv1.getBytes(UTF_8));
+    final File file = Files.create(csv.toFile(), new Files.Cache());
+    final List<?> rows = file.valueAs(List.class);
+    assertThat(rows.isEmpty(), is(false));
+    final Iterator<?> iterator = rows.iterator();
+    assertThat(iterator.next(), is(ImmutableList.of(1)));
+    assertThat(iterator.next(), is(ImmutableList.of(2)));
+    assertThat(iterator.next(), is(ImmutableList.of(3)));
+    ((AutoCloseable) iterator).close();
+
+    assertThrows(NumberFormatException.class, rows::size);
+    final Iterator<?> iterator2 = rows.iterator();
+    assertThat(iterator2.next(), is(ImmutableList.of(1)));
+    ((AutoCloseable) iterator2).close();
+  }
+
   @Test
   void testOrd() {
     final List<String> abc = Arrays.asList("a", "b", "c");
@@ -18,15 +18,24 @@
  */
 package net.hydromatic.morel.compile;
 
+import static java.util.Objects.requireNonNull;
 import static net.hydromatic.morel.ast.CoreBuilder.core;
 import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsInstanceOf.instanceOf;
+import static org.hamcrest.core.IsSame.sameInstance;
 
 import com.google.common.collect.ImmutableSet;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
+import net.hydromatic.morel.ast.Core;
+import net.hydromatic.morel.type.Binding;
 import net.hydromatic.morel.type.PrimitiveType;
+import net.hydromatic.morel.util.Pair;
 import org.hamcrest.CustomTypeSafeMatcher;
 import org.hamcrest.Matcher;
 import org.junit.jupiter.api.Test;
@@ -52,6 +61,62 @@ public class EnvironmentTest {
     checkOptimizeSubEnvironment(e0a);
   }
 
+  /**
+   * Tests that a long chain of bindings is indexed, and that lookups in the
+   * index see the same bindings as lookups in the chain.
+   */
+  @Test
+  void testIndexedEnvironment() {
+    final List<Core.IdPat> ids = new ArrayList<>();
+    final List<Environment> envs = new ArrayList<>();
+    Environment env = Environments.empty();
+    for (int i = 0; i < 200; i++) {
+      // Every tenth variable obscures the variable bound 5 steps earlier.
+      final Core.IdPat id =
+          i % 10 == 9
+              ? ids.get(i - 5)
+              : core.idPat(PrimitiveType.INT, "v" + i, 0);
+      ids.add(id);
+      env = env.bind(id, i);
+      envs.add(env);
+    }
+    // An environment is indexed after every 16 unindexed bindings, so the
+    // chain has an index every 16 environments.
+    int indexedCount = 0;
+    int lastIndexed = -1;
+    for (int i = 0; i < envs.size(); i++) {
+      if (envs.get(i) instanceof Environments.IndexedEnvironment) {
+        ++indexedCount;
+        lastIndexed = i;
+      }
+    }
+    assertThat(indexedCount >= 200 / 17, is(true));
+    assertThat(envs.size() - lastIndexed <= 17, is(true));
+    assertThat(env.getValueMap(false).size(), is(2 + 180));
+    assertThat(env.getTop("true"), notNullValue());
+    assertThat(env.getTop("v200"), nullValue());
+
+    for (int i = 0; i < ids.size(); i++) {
+      final Core.IdPat id = ids.get(i);
+      final Binding binding = requireNonNull(env.getTop(id.name));
+      final Pair<Binding, Environment> pair = requireNonNull(env.getOpt2(id));
+      assertThat(env.getOpt(id), sameInstance(binding));
+      assertThat(pair.left, sameInstance(binding));
+      assertThat(pair.right.isAncestorOf(env), is(true));
+
+      // Each environment sees its own binding of the variable.
+      final Environment env2 = envs.get(i);
+      assertThat(requireNonNull(env2.getTop(id.name)).value, is(i));
+      assertThat(requireNonNull(env2.getOpt(id)).value, is(i));
+      assertThat(binding.value, is(expected(i, ids)));
+    }
+  }
+
+  /** Returns the value of the latest binding of {@code ids.get(i)}. */
+  private static int expected(int i, List<Core.IdPat> ids) {
+    return ids.lastIndexOf(ids.get(i));
+  }
+
   private void checkOptimizeSubEnvironment(Environment e0) {
     final Set<String> nameSet = ImmutableSet.of("false", "true", "a", "b", "c");
     final Set<String> namePlusFooSet =